@@ -0,0 +1,218 @@
+package no.ecc.s100.security;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * 초기화된 {@link Cipher} 인스턴스를 스레드별 LRU 캐시로 재사용하는 클래스.
+ * <p>
+ * 캐시 키는 transformation, 모드, 키로 구성됩니다. 캐시된 {@link Cipher}를 같은 키로 다시
+ * init 하면 provider 조회가 생략되고, provider가 이전 키 스케줄을 그대로 재사용하므로 AES 키
+ * 확장 비용도 들지 않습니다. 대여한 {@link Cipher}는 {@link Lease#close()}로 반환하기 전까지
+ * 다른 호출자에게 나가지 않습니다.
+ * <p>
+ * 캐시된 {@link Cipher}는 초기화된 키와 키 스케줄을 가지고 있으며, 스레드가 살아 있는 동안 용량을 넘어
+ * 밀려나기 전까지 남습니다. {@link java.util.concurrent.ForkJoinPool#commonPool()}처럼 오래 사는 스레드에서
+ * 데이터 키를 사용했다면 호출자가 끝난 뒤에도 키가 메모리에 남으므로, 더 이상 필요 없는 키를 지우려면
+ * 현재 스레드는 {@link #clear()}로, 모든 스레드는 {@link #clearAll()}로 비웁니다.
+ */
+public final class S100CipherCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private static volatile int capacity = DEFAULT_CAPACITY;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    // every live thread cache, so clearAll can reach idle threads. dead
+    // threads drop out with their cache.
+    private static final Set<ThreadCache> CACHES = Collections
+            .synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static final ThreadLocal<ThreadCache> CACHE = ThreadLocal.withInitial(() -> {
+        ThreadCache cache = new ThreadCache();
+        CACHES.add(cache);
+        return cache;
+    });
+
+    private S100CipherCache() {
+
+    }
+
+    /**
+     * 캐시에서 {@link Cipher}를 대여하고 주어진 키와 파라미터로 초기화합니다. 캐시에 없으면 새로
+     * 생성합니다.
+     */
+    static Lease acquire(String transformation, int mode, SecretKey key, AlgorithmParameterSpec params)
+            throws GeneralSecurityException {
+        CacheKey cacheKey = new CacheKey(transformation, mode, key);
+        Cipher cipher = CACHE.get().take(cacheKey);
+        if (cipher == null) {
+            misses.increment();
+            cipher = S100CryptoProviders.newCipher(transformation);
+        } else {
+            hits.increment();
+        }
+        cipher.init(mode, key, params);
+        return new Lease(cacheKey, cipher);
+    }
+
+    /**
+     * 스레드별 캐시가 유지할 최대 {@link Cipher} 개수를 설정합니다.
+     *
+     * @param newCapacity 최대 개수 (1 이상)
+     */
+    public static void setCapacity(int newCapacity) {
+        if (newCapacity < 1) {
+            throw new IllegalArgumentException("Cipher cache capacity must be positive: " + newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 캐시에서 재사용된 {@link Cipher} 대여 횟수
+     */
+    public static long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return 새 {@link Cipher}를 생성해야 했던 대여 횟수
+     */
+    public static long getMissCount() {
+        return misses.sum();
+    }
+
+    public static void resetCounters() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * 현재 스레드의 캐시를 비웁니다.
+     */
+    public static void clear() {
+        CACHE.get().clear();
+    }
+
+    /**
+     * 모든 스레드의 캐시를 비웁니다. 대여 중인 {@link Cipher}는 반환될 때 다시 캐시됩니다.
+     */
+    public static void clearAll() {
+        List<ThreadCache> caches;
+        synchronized (CACHES) {
+            caches = new ArrayList<>(CACHES);
+        }
+        for (ThreadCache cache : caches) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * 대여한 {@link Cipher}. close 하면 현재 스레드의 캐시로 반환됩니다.
+     */
+    static final class Lease implements AutoCloseable {
+
+        private final CacheKey cacheKey;
+        private Cipher cipher;
+
+        private Lease(CacheKey cacheKey, Cipher cipher) {
+            this.cacheKey = cacheKey;
+            this.cipher = cipher;
+        }
+
+        Cipher cipher() {
+            if (cipher == null) {
+                throw new IllegalStateException("Cipher already returned to cache");
+            }
+            return cipher;
+        }
+
+        @Override
+        public void close() {
+            if (cipher != null) {
+                CACHE.get().put(cacheKey, cipher);
+                cipher = null;
+            }
+        }
+
+    }
+
+    /**
+     * The LRU map of one thread. Locked because clearAll runs on other
+     * threads, the lock is otherwise uncontended.
+     */
+    private static final class ThreadCache {
+
+        private final Map<CacheKey, Cipher> ciphers = new LinkedHashMap<CacheKey, Cipher>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Cipher> eldest) {
+                return size() > capacity;
+            }
+
+        };
+
+        synchronized Cipher take(CacheKey cacheKey) {
+            return ciphers.remove(cacheKey);
+        }
+
+        synchronized void put(CacheKey cacheKey, Cipher cipher) {
+            ciphers.putIfAbsent(cacheKey, cipher);
+        }
+
+        synchronized void clear() {
+            ciphers.clear();
+        }
+
+    }
+
+    private static final class CacheKey {
+
+        private final String transformation;
+        private final int mode;
+        private final SecretKey key;
+        private final int hashCode;
+
+        CacheKey(String transformation, int mode, SecretKey key) {
+            this.transformation = transformation;
+            this.mode = mode;
+            this.key = key;
+            this.hashCode = (transformation.hashCode() * 31 + mode) * 31 + key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey o = (CacheKey) obj;
+            return mode == o.mode && transformation.equals(o.transformation) && key.equals(o.key);
+        }
+
+    }
+
+}
@@ -0,0 +1,200 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+/**
+ * S-100 데이터 파일용 {@link CipherInputStream} 대체 클래스.
+ * <p>
+ * 원본 스트림을 큰 블록 단위 버퍼로 읽어 {@link Cipher#update(byte[], int, int, byte[], int)}를 적게
+ * 호출하고, 호출자의 버퍼가 충분히 크면 중간 복사 없이 바로 그 버퍼에 씁니다. 암호화 시 앞에 붙는 랜덤
+ * 블록은 첫 입력 버퍼에 함께 넣어 처리합니다. {@link S100Crypt}의 스트림 메소드로 생성합니다.
+ */
+public final class S100CipherInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private final InputStream in;
+    private final S100CipherCache.Lease lease;
+    private final Cipher cipher;
+    private final S100PlaintextDigest digest;
+
+    private final byte[] input;
+    private int inputLength;
+
+    private final byte[] output;
+    private int outputPosition;
+    private int outputLimit;
+
+    private boolean done;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * @param in 원본 스트림
+     * @param lease 초기화된 cipher. 스트림을 닫으면 캐시로 반환됩니다.
+     * @param bufferSize 입력 버퍼 크기. AES 블록 크기의 배수
+     * @param prefix cipher에 원본 스트림보다 먼저 넣을 데이터. 없으면 null
+     */
+    S100CipherInputStream(InputStream in, S100CipherCache.Lease lease, int bufferSize, byte[] prefix) {
+        this(in, lease, bufferSize, prefix, null);
+    }
+
+    /**
+     * @param in 원본 스트림
+     * @param lease 초기화된 cipher. 스트림을 닫으면 캐시로 반환됩니다.
+     * @param bufferSize 입력 버퍼 크기. AES 블록 크기의 배수
+     * @param prefix cipher에 원본 스트림보다 먼저 넣을 데이터. 없으면 null
+     * @param digest cipher 출력으로 갱신할 체크섬. 없으면 null
+     */
+    S100CipherInputStream(InputStream in, S100CipherCache.Lease lease, int bufferSize, byte[] prefix,
+            S100PlaintextDigest digest) {
+        checkBufferSize(bufferSize);
+        this.in = in;
+        this.lease = lease;
+        this.cipher = lease.cipher();
+        this.digest = digest;
+        this.input = new byte[Math.max(bufferSize, prefix == null ? 0 : prefix.length)];
+        this.output = new byte[input.length + 2 * AES_BLOCK_SIZE];
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, input, 0, prefix.length);
+            inputLength = prefix.length;
+        }
+    }
+
+    static void checkBufferSize(int bufferSize) {
+        if (bufferSize < AES_BLOCK_SIZE || bufferSize % AES_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException(
+                    "Buffer size must be a positive multiple of " + AES_BLOCK_SIZE + ", not " + bufferSize);
+        }
+    }
+
+    /**
+     * Read the next chunk from the underlying stream and run it through the
+     * cipher into the given array.
+     *
+     * @return number of bytes written, 0 if the cipher did not produce output
+     *         yet, or -1 at the end of the stream.
+     */
+    private int process(byte[] dst, int dstOffset) throws IOException {
+        if (done) {
+            return -1;
+        }
+        int read = in.read(input, inputLength, input.length - inputLength);
+        int length;
+        try {
+            if (read < 0) {
+                done = true;
+                length = cipher.doFinal(input, 0, inputLength, dst, dstOffset);
+                finished = true;
+            } else {
+                length = cipher.update(input, 0, inputLength + read, dst, dstOffset);
+                inputLength = 0;
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        if (digest != null) {
+            digest.update(dst, dstOffset, length);
+        }
+        return length;
+    }
+
+    private boolean fill() throws IOException {
+        while (outputPosition == outputLimit) {
+            int length = process(output, 0);
+            if (length < 0) {
+                return false;
+            }
+            outputPosition = 0;
+            outputLimit = length;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (!fill()) {
+            return -1;
+        }
+        return output[outputPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        // large reads go straight from the cipher into the caller's array
+        while (outputPosition == outputLimit && len >= output.length) {
+            int length = process(b, off);
+            if (length != 0) {
+                return length;
+            }
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+        int length = Math.min(len, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, length);
+        outputPosition += length;
+        return length;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        ensureOpen();
+        long total = 0;
+        while (fill()) {
+            int length = outputLimit - outputPosition;
+            out.write(output, outputPosition, length);
+            outputPosition = outputLimit;
+            total += length;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return outputLimit - outputPosition;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            lease.close();
+        }
+        // only a stream read to the end gives a digest of the whole data
+        if (digest != null && finished) {
+            digest.complete();
+        }
+    }
+
+}
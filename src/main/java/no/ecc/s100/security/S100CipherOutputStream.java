@@ -0,0 +1,144 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+
+/**
+ * S-100 데이터 파일용 {@link CipherOutputStream} 대체 클래스.
+ * <p>
+ * 작은 쓰기는 블록 단위 버퍼에 모았다가 한 번에 암호화하여 원본 스트림에 씁니다. 버퍼보다 큰 쓰기는
+ * 버퍼를 거치지 않고 바로 암호화합니다. 암호화 시 앞에 붙는 랜덤 블록은 첫 입력 버퍼에 함께 넣어
+ * 처리합니다. {@link S100Crypt}의 스트림 메소드로 생성합니다.
+ */
+public final class S100CipherOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = S100CipherInputStream.DEFAULT_BUFFER_SIZE;
+
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private final OutputStream out;
+    private final S100CipherCache.Lease lease;
+    private final Cipher cipher;
+
+    private final byte[] input;
+    private int inputLength;
+
+    private final byte[] output;
+
+    private boolean closed;
+
+    /**
+     * @param out 암호화/복호화 결과를 쓸 스트림
+     * @param lease 초기화된 cipher. 스트림을 닫으면 캐시로 반환됩니다.
+     * @param bufferSize 입력 버퍼 크기. AES 블록 크기의 배수
+     * @param prefix 원본 데이터보다 먼저 cipher에 넣을 데이터. 없으면 null
+     */
+    S100CipherOutputStream(OutputStream out, S100CipherCache.Lease lease, int bufferSize, byte[] prefix) {
+        S100CipherInputStream.checkBufferSize(bufferSize);
+        this.out = out;
+        this.lease = lease;
+        this.cipher = lease.cipher();
+        this.input = new byte[Math.max(bufferSize, prefix == null ? 0 : prefix.length)];
+        this.output = new byte[input.length + 2 * AES_BLOCK_SIZE];
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, input, 0, prefix.length);
+            inputLength = prefix.length;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (inputLength == input.length) {
+            flushInput();
+        }
+        input[inputLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (inputLength > 0) {
+            int length = Math.min(len, input.length - inputLength);
+            System.arraycopy(b, off, input, inputLength, length);
+            inputLength += length;
+            off += length;
+            len -= length;
+            if (inputLength < input.length) {
+                return;
+            }
+            flushInput();
+        }
+
+        // whole buffers go straight from the caller's array to the cipher
+        while (len >= input.length) {
+            update(b, off, input.length);
+            off += input.length;
+            len -= input.length;
+        }
+
+        System.arraycopy(b, off, input, 0, len);
+        inputLength = len;
+    }
+
+    private void flushInput() throws IOException {
+        update(input, 0, inputLength);
+        inputLength = 0;
+    }
+
+    private void update(byte[] b, int off, int len) throws IOException {
+        try {
+            out.write(output, 0, cipher.update(b, off, len, output, 0));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * 버퍼에 모인 데이터를 암호화하여 원본 스트림에 쓰고 원본 스트림을 flush 합니다. 블록 크기에 못
+     * 미치는 나머지는 다음 쓰기 또는 close 까지 cipher에 남아 있습니다.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (inputLength > 0) {
+            flushInput();
+        }
+        out.flush();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write(output, 0, cipher.doFinal(input, 0, inputLength, output, 0));
+            inputLength = 0;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            try {
+                out.close();
+            } finally {
+                lease.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,292 @@
+package no.ecc.s100.security;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.function.Consumer;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.FileUtils;
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 많은 수의 데이터셋 permit을 적은 메모리로 보관하는 열 단위 저장소.
+ * <p>
+ * permit마다 객체를 만들지 않고 암호화된 키는 16바이트, 만료일은 epoch day {@code int}, 제품 사양은
+ * {@code short}로 배열에 저장합니다. 파일 이름은 모든 저장소가 공유하는 약한 참조 intern 풀로 중복을
+ * 없애므로 여러 선박의 permit에 같은 데이터셋이 있어도 문자열은 하나만 남습니다. 파일 이름으로 찾기는
+ * 개방 주소법 해시 테이블을 사용합니다. permit은 {@link S100DataPermit}과 같은 getter를 가진
+ * {@link View}로 읽습니다. 만료일은 일 단위로 저장됩니다. 동기화되지 않습니다.
+ */
+public final class S100CompactPermitStore {
+
+    private static final int KEY_LENGTH = 16;
+    private static final int NO_EXPIRY = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final Interner<String> FILE_NAMES = Interners.newWeakInterner();
+
+    // product specification numbers are 100 to 999. others are not cached.
+    private static final S100ProductSpecification[] PRODUCT_SPECIFICATIONS = new S100ProductSpecification[1000];
+
+    private final ZoneId zone;
+
+    private int size;
+    private String[] fileNames;
+    private int[] editions;
+    private int[] expiryDays;
+    private short[] productSpecifications;
+    private byte[] keys;
+
+    // open addressing table of row + 1, 0 for empty. at most half full.
+    private int[] slots;
+
+    public S100CompactPermitStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity 처음에 할당할 permit 수
+     */
+    public S100CompactPermitStore(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        this.zone = ZoneId.systemDefault();
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate(int capacity) {
+        fileNames = fileNames == null ? new String[capacity] : Arrays.copyOf(fileNames, capacity);
+        editions = editions == null ? new int[capacity] : Arrays.copyOf(editions, capacity);
+        expiryDays = expiryDays == null ? new int[capacity] : Arrays.copyOf(expiryDays, capacity);
+        productSpecifications = productSpecifications == null ? new short[capacity]
+                : Arrays.copyOf(productSpecifications, capacity);
+        keys = keys == null ? new byte[capacity * KEY_LENGTH] : Arrays.copyOf(keys, capacity * KEY_LENGTH);
+
+        int slotCount = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) * 2;
+        if (slots == null || slots.length != slotCount) {
+            slots = new int[slotCount];
+            for (int row = 0; row < size; row++) {
+                slots[freeSlot(fileNames[row])] = row + 1;
+            }
+        }
+    }
+
+    /**
+     * permit을 추가합니다. 파일 이름이 같은 permit이 있으면 그 자리를 대체합니다.
+     *
+     * @param dataPermit 추가할 permit
+     * @return permit이 저장된 위치
+     */
+    public int add(S100DataPermit dataPermit) {
+        return add(dataPermit.getFileName(), dataPermit.getEdtn(), dataPermit.getPermitEndDate(),
+                Hex.fromString(dataPermit.getEncryptedDataKey()), dataPermit.getProductSpecification());
+    }
+
+    /**
+     * permit을 추가합니다. 파일 이름이 같은 permit이 있으면 그 자리를 대체합니다.
+     *
+     * @param fileName 데이터셋 파일 이름
+     * @param edtn 판 번호
+     * @param permitEndDate 만료일. 일 단위로 저장됩니다. 없으면 null
+     * @param encryptedDataKey 16바이트 암호화된 데이터 키
+     * @param productSpecification 제품 사양
+     * @return permit이 저장된 위치
+     * @throws IllegalArgumentException 키 길이가 16바이트가 아니거나 제품 사양 번호가 {@code short} 범위를
+     *             벗어나는 경우
+     */
+    public int add(String fileName, int edtn, Date permitEndDate, byte[] encryptedDataKey,
+            S100ProductSpecification productSpecification) {
+        if (encryptedDataKey.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Encrypted data key must be 16 bytes, not " + encryptedDataKey.length);
+        }
+        short product = toShort(productSpecification);
+        int row = indexOf(fileName);
+        if (row < 0) {
+            if (size == fileNames.length) {
+                allocate(size + (size >> 1) + 1);
+            }
+            row = size++;
+            fileNames[row] = FILE_NAMES.intern(fileName);
+            slots[freeSlot(fileName)] = row + 1;
+        }
+        editions[row] = edtn;
+        expiryDays[row] = permitEndDate == null ? NO_EXPIRY
+                : (int) permitEndDate.toInstant().atZone(zone).toLocalDate().toEpochDay();
+        productSpecifications[row] = product;
+        System.arraycopy(encryptedDataKey, 0, keys, row * KEY_LENGTH, KEY_LENGTH);
+        return row;
+    }
+
+    private int freeSlot(String fileName) {
+        int mask = slots.length - 1;
+        int slot = spread(fileName.hashCode()) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param fileName 데이터셋 파일 이름
+     * @return permit의 위치. 없으면 -1
+     */
+    public int indexOf(String fileName) {
+        int mask = slots.length - 1;
+        for (int slot = spread(fileName.hashCode()) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (fileNames[row].equals(fileName)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 배열을 현재 permit 수에 맞게 줄입니다.
+     */
+    public void trimToSize() {
+        if (size < fileNames.length) {
+            allocate(Math.max(size, 1));
+        }
+    }
+
+    /**
+     * @param index permit의 위치
+     * @return 해당 위치의 permit을 읽는 view
+     */
+    public View get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        View view = new View();
+        view.index = index;
+        return view;
+    }
+
+    /**
+     * @param fileName 데이터셋 파일 이름
+     * @return 해당 permit의 view. 없으면 null
+     */
+    public View get(String fileName) {
+        int index = indexOf(fileName);
+        return index < 0 ? null : get(index);
+    }
+
+    /**
+     * 모든 permit을 저장 순서대로 전달합니다. 하나의 view를 위치만 바꿔 재사용하므로 action 밖에서
+     * view를 보관하면 안 됩니다.
+     *
+     * @param action 각 permit에 대해 호출할 action
+     */
+    public void forEach(Consumer<? super View> action) {
+        View view = new View();
+        for (int i = 0; i < size; i++) {
+            view.index = i;
+            action.accept(view);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the number does not fit in a short
+     */
+    static short toShort(S100ProductSpecification productSpecification) {
+        int number = productSpecification.getNumber();
+        if (number < 0 || number > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported product specification number: " + number);
+        }
+        return (short) number;
+    }
+
+    static S100ProductSpecification productSpecification(int number) {
+        if (number < 0 || number >= PRODUCT_SPECIFICATIONS.length) {
+            // the int constructor only accepts 100 to 999, the parser does not
+            return new S100ProductSpecification(Integer.toString(number));
+        }
+        S100ProductSpecification productSpecification = PRODUCT_SPECIFICATIONS[number];
+        if (productSpecification == null) {
+            // racing threads create equal instances
+            productSpecification = new S100ProductSpecification(number);
+            PRODUCT_SPECIFICATIONS[number] = productSpecification;
+        }
+        return productSpecification;
+    }
+
+    /**
+     * 저장소의 한 permit을 읽는 flyweight. {@link S100DataPermit}과 같은 getter를 가집니다.
+     */
+    public final class View {
+
+        private int index;
+
+        private View() {
+
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getFileName() {
+            return fileNames[index];
+        }
+
+        public String getDataSetId() {
+            return FileUtils.getFileNameWithoutSuffix(fileNames[index]);
+        }
+
+        public int getEdtn() {
+            return editions[index];
+        }
+
+        /**
+         * @return 만료일 00:00 (기본 시간대). 없으면 null
+         */
+        public Date getPermitEndDate() {
+            int day = expiryDays[index];
+            return day == NO_EXPIRY ? null : Date.from(LocalDate.ofEpochDay(day).atStartOfDay(zone).toInstant());
+        }
+
+        /**
+         * @return 만료일의 epoch day. 없으면 {@link Integer#MIN_VALUE}
+         */
+        public int getPermitEndEpochDay() {
+            return expiryDays[index];
+        }
+
+        public String getEncryptedDataKey() {
+            return Hex.toString(getEncryptedDataKeyBytes());
+        }
+
+        public byte[] getEncryptedDataKeyBytes() {
+            return Arrays.copyOfRange(keys, index * KEY_LENGTH, (index + 1) * KEY_LENGTH);
+        }
+
+        public S100ProductSpecification getProductSpecification() {
+            return productSpecification(productSpecifications[index]);
+        }
+
+        /**
+         * @return 이 permit의 {@link S100DataPermit} 사본
+         */
+        public S100DataPermit toDataPermit() {
+            return new S100DataPermit(getFileName(), getEdtn(), getPermitEndDate(), getEncryptedDataKey(),
+                    getProductSpecification());
+        }
+
+    }
+
+}
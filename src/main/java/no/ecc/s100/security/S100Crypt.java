@@ -1,25 +1,33 @@
 package no.ecc.s100.security;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import com.google.common.io.ByteStreams;
 
+import no.ecc.s100.utility.FileUtils;
 import no.ecc.s100.utility.Hex;
+import no.ecc.s100.utility.Zip;
 
 public abstract class S100Crypt {
 
@@ -30,12 +38,21 @@ public abstract class S100Crypt {
     private static final int IV_LENGTH = 16;
     private static final int AES_BLOCK_SIZE = 16;
 
+    // files are read and written through direct buffers of this size, not
+    // mapped, so no mapping keeps them locked on Windows. must be a multiple
+    // of the AES block size.
+    static final int FILE_BUFFER_SIZE = 1024 * 1024;
+
+    // decrypted data added to a digest at a time. small enough to stay in the
+    // CPU cache.
+    private static final int DIGEST_CHUNK_SIZE = 64 * 1024;
+
     protected final SecretKey key;
 
     protected S100Crypt() {
         try {
             KeyGenerator keyGen = KeyGenerator.getInstance(ALG);
-            keyGen.init(KEY_SIZE);
+            keyGen.init(KEY_SIZE, S100EntropySource.getDefault().getSecureRandom());
             key = keyGen.generateKey();
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException(e);
@@ -56,18 +73,58 @@ public abstract class S100Crypt {
     }
 
     public byte[] encrypt(byte[] unencrypted) throws GeneralSecurityException {
-        try {
-            return ByteStreams.toByteArray(encrypt(new ByteArrayInputStream(unencrypted)));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        byte[] encrypted = new byte[getEncryptedSize(unencrypted.length)];
+        int length = encrypt(ByteBuffer.wrap(unencrypted), ByteBuffer.wrap(encrypted));
+        return length == encrypted.length ? encrypted : Arrays.copyOf(encrypted, length);
     }
 
     public byte[] decrypt(byte[] encrypted) throws GeneralSecurityException {
-        try {
-            return ByteStreams.toByteArray(decrypt(new ByteArrayInputStream(encrypted)));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        byte[] decrypted = new byte[getMaxDecryptedSize(encrypted.length)];
+        int length = decrypt(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(decrypted));
+        return length == decrypted.length ? decrypted : Arrays.copyOf(decrypted, length);
+    }
+
+    /**
+     * @param unencryptedLength 평문 길이
+     * @return {@link #encrypt(ByteBuffer, ByteBuffer)}가 이 길이의 평문에 대해 쓰는 정확한 바이트 수
+     */
+    public abstract int getEncryptedSize(int unencryptedLength);
+
+    /**
+     * @param encryptedLength 암호문 길이
+     * @return {@link #decrypt(ByteBuffer, ByteBuffer)}의 출력 버퍼에 필요한 바이트 수. 패딩 때문에 실제
+     *         복호화된 길이는 더 작을 수 있습니다.
+     */
+    public abstract int getMaxDecryptedSize(int encryptedLength);
+
+    /**
+     * src의 남은 바이트를 한 번의 cipher 처리로 암호화하여 dst에 씁니다. 두 버퍼 모두 힙 버퍼 또는
+     * 다이렉트 버퍼일 수 있습니다.
+     * 
+     * @param src 평문
+     * @param dst 암호문을 쓸 버퍼
+     * @return dst에 쓴 바이트 수
+     * @throws ShortBufferException dst의 남은 공간이 {@link #getEncryptedSize(int)}보다 작은 경우. 이때
+     *             src는 소비되지 않습니다.
+     */
+    public abstract int encrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException;
+
+    /**
+     * src의 남은 바이트를 한 번의 cipher 처리로 복호화하여 dst에 씁니다. 두 버퍼 모두 힙 버퍼 또는
+     * 다이렉트 버퍼일 수 있습니다.
+     * 
+     * @param src 암호문
+     * @param dst 복호화된 데이터를 쓸 버퍼
+     * @return dst에 쓴 바이트 수
+     * @throws ShortBufferException dst의 남은 공간이 {@link #getMaxDecryptedSize(int)}보다 작은 경우.
+     *             이때 src는 소비되지 않습니다.
+     */
+    public abstract int decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException;
+
+    private static void checkRemaining(ByteBuffer dst, int required) throws ShortBufferException {
+        if (dst.remaining() < required) {
+            throw new ShortBufferException("Need " + required + " bytes in output buffer, but only "
+                    + dst.remaining() + " remaining");
         }
     }
 
@@ -80,11 +137,93 @@ public abstract class S100Crypt {
     public abstract InputStream decrypt(InputStream in)
             throws GeneralSecurityException, IOException;
 
+
+    /**
+     * Run length bytes from src through the cipher into dst, a buffer at a
+     * time. The cipher must not hold back any output, so it has to be a
+     * transformation without padding and length a multiple of the block size.
+     * When a digest is given, the output is added to it in small chunks while
+     * it is still in the CPU cache.
+     */
+    private static void update(Cipher cipher, FileChannel src, long srcPosition, long length,
+            FileChannel dst, long dstPosition, S100PlaintextDigest digest)
+            throws GeneralSecurityException, IOException {
+        int bufferSize = (int) Math.min(FILE_BUFFER_SIZE, length);
+        ByteBuffer in = ByteBuffer.allocateDirect(bufferSize);
+        ByteBuffer out = ByteBuffer.allocateDirect(bufferSize);
+        long done = 0;
+        while (done < length) {
+            int windowSize = (int) Math.min(bufferSize, length - done);
+            in.clear().limit(windowSize);
+            readFully(src, in, srcPosition + done);
+            in.flip();
+            out.clear();
+            if (digest == null) {
+                cipher.update(in, out);
+            } else {
+                while (in.position() < windowSize) {
+                    in.limit(Math.min(in.position() + DIGEST_CHUNK_SIZE, windowSize));
+                    int start = out.position();
+                    cipher.update(in, out);
+                    digest.update(out.duplicate().flip().position(start));
+                }
+            }
+            out.flip();
+            writeFully(dst, out, dstPosition + done);
+            done += windowSize;
+        }
+    }
+
+    /**
+     * Create a temporary file next to out, rejecting an out that is the same
+     * file as in.
+     */
+    private static Path createOutput(Path in, Path out) throws IOException {
+        if (Files.exists(out) && Files.isSameFile(in, out)) {
+            throw new IllegalArgumentException("Input and output are the same file: " + out);
+        }
+        return FileUtils.createTempFileFor(out);
+    }
+
+    /**
+     * @throws EOFException if the file ends before data is full, for example
+     *             when it was truncated after its size was read
+     */
+    private static void readFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            int n = channel.read(data, position);
+            if (n < 0) {
+                throw new EOFException("File ended at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
     public static final class RandomIV extends S100Crypt {
         
         // standard states PKCS#7, but that does not exist in java. using PKCS#5 instead.
         private static final String TRANSFORMATION_NAME = "AES/CBC/PKCS5Padding";
 
+        // used for bulk file processing where the padding is handled
+        // explicitly.
+        private static final String NO_PADDING_TRANSFORMATION_NAME = "AES/CBC/NoPadding";
+
+        /**
+         * 암호문이 이보다 작으면 {@link #decryptParallel(ByteBuffer, ByteBuffer)}도 순차적으로
+         * 복호화합니다.
+         */
+        public static final int PARALLEL_DECRYPT_THRESHOLD = 4 * 1024 * 1024;
+
+        // size of the chunks decrypted in parallel. must be a multiple of the
+        // AES block size.
+        private static final int PARALLEL_CHUNK_SIZE = 1024 * 1024;
+
         public RandomIV() {
             super();
         }
@@ -95,12 +234,432 @@ public abstract class S100Crypt {
 
         private static IvParameterSpec createRandomIV() throws GeneralSecurityException {
             byte[] ivbytes = new byte[IV_LENGTH];
-            new SecureRandom().nextBytes(ivbytes);
+            S100EntropySource.getDefault().nextBytes(ivbytes);
             return new IvParameterSpec(ivbytes);
         }
 
+        @Override
+        public int getEncryptedSize(int unencryptedLength) {
+            // extra random block first, then PKCS#5 padding which always adds
+            // 1-16 bytes.
+            return AES_BLOCK_SIZE + (unencryptedLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+        }
+
+        @Override
+        public int getMaxDecryptedSize(int encryptedLength) {
+            return Math.max(0, encryptedLength - AES_BLOCK_SIZE);
+        }
+
+        @Override
+        public int encrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            checkRemaining(dst, getEncryptedSize(src.remaining()));
+
+            byte[] randomBlock = new byte[AES_BLOCK_SIZE];
+            S100EntropySource.getDefault().nextBytes(randomBlock);
+
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, createRandomIV())) {
+                Cipher cipher = lease.cipher();
+                int length = cipher.update(ByteBuffer.wrap(randomBlock), dst);
+                return length + cipher.doFinal(src, dst);
+            }
+        }
+
+        @Override
+        public int decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            if (src.remaining() < 2 * AES_BLOCK_SIZE || src.remaining() % AES_BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("Illegal encrypted data length " + src.remaining());
+            }
+            checkRemaining(dst, getMaxDecryptedSize(src.remaining()));
+
+            // Decrypting the rest of the data with the first cipher text block
+            // as IV gives exactly the same result as normal CBC decryption with
+            // an arbitrary IV where the first plain text block is discarded.
+            byte[] iv = new byte[IV_LENGTH];
+            src.get(iv);
+
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv))) {
+                return lease.cipher().doFinal(src, dst);
+            }
+        }
+
+        /**
+         * {@link #decrypt(byte[])}와 같지만 데이터가
+         * {@link #PARALLEL_DECRYPT_THRESHOLD} 이상이면 여러 코어에서 병렬로 복호화합니다.
+         * 
+         * @param encrypted 암호화된 데이터
+         * @return 복호화된 데이터
+         * @throws GeneralSecurityException 복호화 오류 시
+         */
+        public byte[] decryptParallel(byte[] encrypted) throws GeneralSecurityException {
+            byte[] decrypted = new byte[getMaxDecryptedSize(encrypted.length)];
+            int length = decryptParallel(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(decrypted));
+            return length == decrypted.length ? decrypted : Arrays.copyOf(decrypted, length);
+        }
+
+        /**
+         * {@link #decryptParallel(ByteBuffer, ByteBuffer, ForkJoinPool)}를
+         * {@link ForkJoinPool#commonPool()}로 실행합니다.
+         */
+        public int decryptParallel(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            return decryptParallel(src, dst, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * {@link #decrypt(ByteBuffer, ByteBuffer)}와 같은 결과를 만들지만 암호문을 청크로 나누어
+         * 주어진 {@link ForkJoinPool}에서 병렬로 복호화합니다. CBC 복호화에서 각 평문 블록은 두
+         * 암호문 블록에만 의존하므로 각 청크는 바로 앞 암호문 블록을 IV로 사용해 독립적으로
+         * 복호화할 수 있습니다. 데이터가 {@link #PARALLEL_DECRYPT_THRESHOLD}보다 작으면
+         * 순차적으로 복호화합니다.
+         * 
+         * @param src 암호화된 데이터
+         * @param dst 복호화된 데이터를 쓸 버퍼
+         * @param pool 병렬 복호화에 사용할 pool
+         * @return dst에 쓴 바이트 수
+         * @throws GeneralSecurityException 복호화 오류 시
+         */
+        public int decryptParallel(ByteBuffer src, ByteBuffer dst, ForkJoinPool pool)
+                throws GeneralSecurityException {
+            int length = src.remaining();
+            if (length < PARALLEL_DECRYPT_THRESHOLD) {
+                return decrypt(src, dst);
+            }
+            if (length % AES_BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("Illegal encrypted data length " + length);
+            }
+            checkRemaining(dst, getMaxDecryptedSize(length));
+
+            int srcStart = src.position();
+            int dstStart = dst.position();
+
+            // the padded last block, decrypted with the block before it as IV
+            byte[] lastBlocks = new byte[2 * AES_BLOCK_SIZE];
+            src.get(srcStart + length - lastBlocks.length, lastBlocks);
+            byte[] tail;
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, new IvParameterSpec(lastBlocks, 0, AES_BLOCK_SIZE))) {
+                tail = lease.cipher().doFinal(lastBlocks, AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+            }
+
+            // everything between the random first block and the last block
+            int bulkLength = length - 2 * AES_BLOCK_SIZE;
+            int chunks = (bulkLength + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE;
+            S100Parallel.run(() -> pool.invoke(new ParallelDecryptTask(key, src, srcStart + AES_BLOCK_SIZE, dst,
+                    dstStart, bulkLength, 0, chunks)), GeneralSecurityException.class);
+
+            dst.put(dstStart + bulkLength, tail);
+            src.position(srcStart + length);
+            dst.position(dstStart + bulkLength + tail.length);
+            return bulkLength + tail.length;
+        }
+
+        private static final class ParallelDecryptTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private final SecretKey key;
+            private final ByteBuffer src;
+            private final int srcStart;
+            private final ByteBuffer dst;
+            private final int dstStart;
+            private final int length;
+            private final int fromChunk;
+            private final int toChunk;
+
+            ParallelDecryptTask(SecretKey key, ByteBuffer src, int srcStart, ByteBuffer dst, int dstStart,
+                    int length, int fromChunk, int toChunk) {
+                this.key = key;
+                this.src = src;
+                this.srcStart = srcStart;
+                this.dst = dst;
+                this.dstStart = dstStart;
+                this.length = length;
+                this.fromChunk = fromChunk;
+                this.toChunk = toChunk;
+            }
+
+            @Override
+            protected void compute() {
+                if (toChunk - fromChunk > 1) {
+                    int middle = (fromChunk + toChunk) >>> 1;
+                    invokeAll(
+                            new ParallelDecryptTask(key, src, srcStart, dst, dstStart, length, fromChunk,
+                                    middle),
+                            new ParallelDecryptTask(key, src, srcStart, dst, dstStart, length, middle,
+                                    toChunk));
+                    return;
+                }
+
+                int offset = fromChunk * PARALLEL_CHUNK_SIZE;
+                int chunkLength = Math.min(PARALLEL_CHUNK_SIZE, length - offset);
+
+                // the cipher text block before the chunk is its IV
+                byte[] iv = new byte[IV_LENGTH];
+                src.get(srcStart + offset - IV_LENGTH, iv);
+
+                ByteBuffer in = src.duplicate();
+                in.limit(srcStart + offset + chunkLength).position(srcStart + offset);
+                ByteBuffer out = dst.duplicate();
+                out.limit(dstStart + offset + chunkLength).position(dstStart + offset);
+
+                S100Parallel.unchecked(() -> {
+                    try (S100CipherCache.Lease lease = S100CipherCache.acquire(NO_PADDING_TRANSFORMATION_NAME,
+                            Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv))) {
+                        lease.cipher().doFinal(in, out);
+                    }
+                });
+            }
+
+        }
+
+        /**
+         * 파일을 암호화하여 다른 파일로 저장합니다. 입력과 출력 파일은 고정 크기 버퍼 단위로
+         * 처리되므로 파일 크기와 관계없이 메모리 사용량이 일정합니다. 암호화된 결과는 같은 디렉토리의
+         * 임시 파일에 쓴 뒤 이동하므로 out은 완성된 파일로만 바뀌고, 실패하면 그대로 남습니다.
+         * 
+         * @param in 암호화할 파일
+         * @param out 암호화된 파일. 이미 있으면 덮어씁니다.
+         * @throws IllegalArgumentException in과 out이 같은 파일인 경우
+         * @throws GeneralSecurityException 암호화 오류 시
+         * @throws IOException 파일 입출력 오류 시
+         */
+        public void encryptFile(Path in, Path out) throws GeneralSecurityException, IOException {
+            Path tmp = createOutput(in, out);
+            try {
+                try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+                        FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    encryptFile(src, dst);
+                }
+                FileUtils.moveIntoPlace(tmp, out);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private void encryptFile(FileChannel src, FileChannel dst) throws GeneralSecurityException, IOException {
+            long size = src.size();
+            int tailLength = (int) (size % AES_BLOCK_SIZE);
+            long bulkLength = size - tailLength;
+
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(NO_PADDING_TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, createRandomIV())) {
+                Cipher cipher = lease.cipher();
+
+                byte[] randomBlock = new byte[AES_BLOCK_SIZE];
+                S100EntropySource.getDefault().nextBytes(randomBlock);
+                writeFully(dst, ByteBuffer.wrap(cipher.update(randomBlock)), 0);
+
+                update(cipher, src, 0, bulkLength, dst, AES_BLOCK_SIZE, null);
+
+                // PKCS#5/PKCS#7 padding of the last block
+                ByteBuffer lastBlock = ByteBuffer.allocate(AES_BLOCK_SIZE);
+                lastBlock.limit(tailLength);
+                readFully(src, lastBlock, bulkLength);
+                byte[] last = lastBlock.array();
+                Arrays.fill(last, tailLength, AES_BLOCK_SIZE, (byte) (AES_BLOCK_SIZE - tailLength));
+                writeFully(dst, ByteBuffer.wrap(cipher.doFinal(last)), AES_BLOCK_SIZE + bulkLength);
+            }
+        }
+
+        /**
+         * 암호화된 파일을 복호화하여 다른 파일로 저장합니다. 마지막 블록을 먼저 복호화해서 패딩을
+         * 확인하고, 나머지는 고정 크기 버퍼 단위로 처리하므로 파일 크기와 관계없이 메모리 사용량이
+         * 일정합니다. 복호화된 결과는 같은 디렉토리의 임시 파일에 쓴 뒤 이동하므로 out은 완성된
+         * 파일로만 바뀌고, 실패하면 그대로 남습니다.
+         * 
+         * @param in 암호화된 파일
+         * @param out 복호화된 파일. 이미 있으면 덮어씁니다.
+         * @throws IllegalArgumentException in과 out이 같은 파일인 경우
+         * @throws GeneralSecurityException 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 시
+         */
+        public void decryptFile(Path in, Path out) throws GeneralSecurityException, IOException {
+            decryptFile(in, out, null);
+        }
+
+        /**
+         * 암호화된 파일을 복호화하여 다른 파일로 저장하면서 평문의 체크섬을 함께 계산합니다.
+         * 복호화가 끝나면 digest의 결과가 확정됩니다.
+         * 
+         * @param in 암호화된 파일
+         * @param out 복호화된 파일. 이미 있으면 덮어씁니다.
+         * @param digest 평문으로 갱신할 체크섬. 없으면 null
+         * @throws IllegalArgumentException in과 out이 같은 파일인 경우
+         * @throws GeneralSecurityException 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 시
+         */
+        public void decryptFile(Path in, Path out, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            Path tmp = createOutput(in, out);
+            try {
+                try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+                        FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    decryptFile(src, dst, digest);
+                }
+                FileUtils.moveIntoPlace(tmp, out);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private void decryptFile(FileChannel src, FileChannel dst, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            long size = src.size();
+            if (size < 2 * AES_BLOCK_SIZE || size % AES_BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("Illegal encrypted file length " + size);
+            }
+
+            // the last cipher text block decrypted with the one before it as
+            // IV gives the unpadded tail of the plain text.
+            ByteBuffer lastBlocks = ByteBuffer.allocate(2 * AES_BLOCK_SIZE);
+            readFully(src, lastBlocks, size - 2 * AES_BLOCK_SIZE);
+            byte[] tail;
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key,
+                    new IvParameterSpec(lastBlocks.array(), 0, AES_BLOCK_SIZE))) {
+                tail = lease.cipher().doFinal(lastBlocks.array(), AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+            }
+
+            // skip the random first block, and the last block handled above
+            long bulkLength = size - 2 * AES_BLOCK_SIZE;
+
+            ByteBuffer iv = ByteBuffer.allocate(IV_LENGTH);
+            readFully(src, iv, 0);
+
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(NO_PADDING_TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv.array()))) {
+                update(lease.cipher(), src, AES_BLOCK_SIZE, bulkLength, dst, 0, digest);
+                writeFully(dst, ByteBuffer.wrap(tail), bulkLength);
+            }
+            if (digest != null) {
+                digest.update(tail, 0, tail.length);
+                digest.complete();
+            }
+        }
+
+        /**
+         * 암호화된 파일을 평문 기준 임의 위치에서 읽을 수 있는 채널을 엽니다. 읽는 위치를 포함하는
+         * 블록들만 복호화합니다.
+         * 
+         * @param encryptedFile 암호화된 파일
+         * @return 읽기 전용 {@link S100DecryptingChannel}
+         * @throws GeneralSecurityException 마지막 블록의 패딩이 잘못된 경우 등 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 시
+         */
+        public S100DecryptingChannel openDecryptingChannel(Path encryptedFile)
+                throws GeneralSecurityException, IOException {
+            return new S100DecryptingChannel(encryptedFile, key);
+        }
+
+        /**
+         * 암호화된 ZIP 데이터셋을 복호화하면서 바로 압축 해제합니다. 복호화된 ZIP 전체가 메모리에
+         * 올라가지 않으므로 데이터셋 크기와 관계없이 몇 개의 버퍼만 사용합니다.
+         * 
+         * @param encryptedFile 암호화된 ZIP 파일
+         * @param extractDir 압축 해제할 디렉토리 경로
+         * @throws GeneralSecurityException 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 또는 잘못된 ZIP 엔트리 발견 시
+         */
+        public void decryptZip(Path encryptedFile, String extractDir)
+                throws GeneralSecurityException, IOException {
+            decryptZip(Files.newInputStream(encryptedFile), extractDir);
+        }
+
+        /**
+         * 암호화된 ZIP 파일을 복호화하면서 바로 압축 해제하고, 복호화된 ZIP의 체크섬을 함께
+         * 계산합니다. 압축 해제가 끝나면 digest의 결과가 확정됩니다.
+         * 
+         * @param encryptedFile 암호화된 ZIP 파일
+         * @param extractDir 압축 해제할 디렉토리 경로
+         * @param digest 복호화된 ZIP으로 갱신할 체크섬
+         * @throws GeneralSecurityException 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 또는 잘못된 ZIP 엔트리 발견 시
+         */
+        public void decryptZip(Path encryptedFile, String extractDir, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            decryptZip(Files.newInputStream(encryptedFile), extractDir, digest);
+        }
+
+        /**
+         * 암호화된 ZIP 스트림을 복호화하면서 바로 압축 해제합니다. 입력 스트림은 닫힙니다.
+         * 
+         * @param in 암호화된 ZIP 입력 스트림
+         * @param extractDir 압축 해제할 디렉토리 경로
+         * @throws GeneralSecurityException 복호화 오류 시
+         * @throws IOException 파일 입출력 오류 또는 잘못된 ZIP 엔트리 발견 시
+         */
+        public void decryptZip(InputStream in, String extractDir) throws GeneralSecurityException, IOException {
+            decryptZip(in, extractDir, null);
+        }
+
+        private void decryptZip(InputStream in, String extractDir, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            InputStream decrypted;
+            try {
+                decrypted = decrypt(in, S100CipherInputStream.DEFAULT_BUFFER_SIZE, digest);
+            } catch (Throwable t) {
+                // for example premature end of data while reading the IV
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    t.addSuppressed(e);
+                }
+                throw t;
+            }
+
+            // the zip reader stops before the central directory. read the rest
+            // before closing, so the padding of the last block is verified
+            // instead of failing the close.
+            Zip.extractZip(new FilterInputStream(decrypted) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        ByteStreams.exhaust(this.in);
+                    } finally {
+                        super.close();
+                    }
+                }
+            }, extractDir);
+        }
+
+        /**
+         * 파일 또는 디렉토리를 ZIP으로 압축하면서 바로 암호화하여 저장합니다. 평문 ZIP은 디스크나
+         * 메모리에 만들어지지 않습니다. 암호화된 결과는 같은 디렉토리의 임시 파일에 쓴 뒤 원자적으로
+         * 이동하므로 destination은 완성된 파일로만 바뀝니다. destination이 sourcePath와 같아도
+         * 됩니다.
+         * 
+         * @param sourcePath 압축할 파일 또는 디렉토리 경로
+         * @param destination 암호화된 ZIP 파일
+         * @throws GeneralSecurityException 암호화 오류 시
+         * @throws IOException 파일 입출력 오류 시
+         */
+        public void encryptZip(String sourcePath, Path destination) throws GeneralSecurityException, IOException {
+            Path tmp = FileUtils.createTempFileFor(destination);
+            try {
+                Zip.compressZip(sourcePath, encrypt(Files.newOutputStream(tmp)));
+                FileUtils.moveIntoPlace(tmp, destination);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
         @Override
         public InputStream encrypt(InputStream in) throws GeneralSecurityException, IOException {
+            return encrypt(in, S100CipherInputStream.DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * 스트림을 읽으면서 암호화하는 스트림을 반환합니다. 반환된 스트림을 닫으면 입력 스트림도
+         * 닫힙니다.
+         * 
+         * @param in 평문 입력 스트림
+         * @param bufferSize 한 번에 암호화할 입력 크기. AES 블록 크기(16)의 배수
+         * @return 암호문을 읽을 수 있는 스트림
+         * @throws GeneralSecurityException 암호화 초기화 오류 시
+         */
+        public S100CipherInputStream encrypt(InputStream in, int bufferSize) throws GeneralSecurityException {
+            S100CipherInputStream.checkBufferSize(bufferSize);
 
             // "On encryption of data files the plain text will be prepended by
             // a single
@@ -111,19 +670,31 @@ public abstract class S100Crypt {
             // Data Client. "
 
             byte[] randomBlock = new byte[AES_BLOCK_SIZE];
-            new SecureRandom().nextBytes(randomBlock);
+            S100EntropySource.getDefault().nextBytes(randomBlock);
 
-            SequenceInputStream inWithExtraBlockFirst = new SequenceInputStream(
-                    new ByteArrayInputStream(randomBlock), in);
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, createRandomIV());
 
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.ENCRYPT_MODE, key, createRandomIV());
-
-            return new CipherInputStream(inWithExtraBlockFirst, cipher);
+            return new S100CipherInputStream(in, lease, bufferSize, randomBlock);
         }
         
         @Override
         public OutputStream encrypt(OutputStream out) throws GeneralSecurityException, IOException {
+            return encrypt(out, S100CipherOutputStream.DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * 쓰는 데이터를 암호화하여 출력 스트림에 쓰는 스트림을 반환합니다. 반환된 스트림을 닫아야
+         * 마지막 블록이 쓰이고 출력 스트림도 닫힙니다.
+         * 
+         * @param out 암호문을 쓸 출력 스트림
+         * @param bufferSize 한 번에 암호화할 입력 크기. AES 블록 크기(16)의 배수
+         * @return 평문을 쓸 수 있는 스트림
+         * @throws GeneralSecurityException 암호화 초기화 오류 시
+         */
+        public S100CipherOutputStream encrypt(OutputStream out, int bufferSize) throws GeneralSecurityException {
+            S100CipherInputStream.checkBufferSize(bufferSize);
+
             // "On encryption of data files the plain text will be prepended by
             // a single
             // random block. Then encryption is done as normal using a random
@@ -133,34 +704,75 @@ public abstract class S100Crypt {
             // Data Client. "
 
             byte[] randomBlock = new byte[AES_BLOCK_SIZE];
-            new SecureRandom().nextBytes(randomBlock);
+            S100EntropySource.getDefault().nextBytes(randomBlock);
 
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.ENCRYPT_MODE, key, createRandomIV());
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, createRandomIV());
 
-            CipherOutputStream cos = new CipherOutputStream(out, cipher);
-            cos.write(randomBlock);
-            
-            return cos;
+            return new S100CipherOutputStream(out, lease, bufferSize, randomBlock);
         }
 
-
-
+        @Override
         public InputStream decrypt(InputStream in) throws GeneralSecurityException, IOException {
+            return decrypt(in, S100CipherInputStream.DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * 스트림을 읽으면서 복호화하는 스트림을 반환합니다. 반환된 스트림을 닫으면 입력 스트림도
+         * 닫힙니다.
+         * 
+         * @param in 암호문 입력 스트림
+         * @param bufferSize 한 번에 복호화할 입력 크기. AES 블록 크기(16)의 배수
+         * @return 평문을 읽을 수 있는 스트림
+         * @throws GeneralSecurityException 복호화 초기화 오류 시
+         * @throws IOException 첫 블록을 읽을 수 없을 때
+         */
+        public S100CipherInputStream decrypt(InputStream in, int bufferSize)
+                throws GeneralSecurityException, IOException {
+            return decrypt(in, bufferSize, null);
+        }
 
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.DECRYPT_MODE, key, createRandomIV());
+        /**
+         * 스트림을 읽으면서 복호화하고 평문의 체크섬을 함께 계산하는 스트림을 반환합니다. 반환된
+         * 스트림을 끝까지 읽고 닫으면 digest의 결과가 확정됩니다.
+         * 
+         * @param in 암호문 입력 스트림
+         * @param digest 평문으로 갱신할 체크섬
+         * @return 평문을 읽을 수 있는 스트림
+         * @throws GeneralSecurityException 복호화 초기화 오류 시
+         * @throws IOException 첫 블록을 읽을 수 없을 때
+         */
+        public S100CipherInputStream decrypt(InputStream in, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            return decrypt(in, S100CipherInputStream.DEFAULT_BUFFER_SIZE, digest);
+        }
 
-            InputStream r = new CipherInputStream(in, cipher);
+        /**
+         * @param in 암호문 입력 스트림
+         * @param bufferSize 한 번에 복호화할 입력 크기. AES 블록 크기(16)의 배수
+         * @param digest 평문으로 갱신할 체크섬. 없으면 null
+         * @return 평문을 읽을 수 있는 스트림
+         * @throws GeneralSecurityException 복호화 초기화 오류 시
+         * @throws IOException 첫 블록을 읽을 수 없을 때
+         */
+        public S100CipherInputStream decrypt(InputStream in, int bufferSize, S100PlaintextDigest digest)
+                throws GeneralSecurityException, IOException {
+            S100CipherInputStream.checkBufferSize(bufferSize);
 
             // "On decryption an arbitrary initialization vector can be used and
             // after normal CBC decryption the first plain text block is
             // discarded. The rest is the original plain text data file."
-            for (int i = 0; i < AES_BLOCK_SIZE; i++) {
-                r.read();
+            // Using the first cipher text block as IV for the rest gives the
+            // same result without decrypting and discarding the first block.
+            byte[] iv = in.readNBytes(IV_LENGTH);
+            if (iv.length != IV_LENGTH) {
+                throw new IOException("Premature end of encrypted data");
             }
 
-            return r;
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+
+            return new S100CipherInputStream(in, lease, bufferSize, null, digest);
         }
 
     }
@@ -179,25 +791,53 @@ public abstract class S100Crypt {
             this.iv = new IvParameterSpec(ivbytes);
         }
 
+        @Override
+        public int getEncryptedSize(int unencryptedLength) {
+            return unencryptedLength;
+        }
+
+        @Override
+        public int getMaxDecryptedSize(int encryptedLength) {
+            return encryptedLength;
+        }
+
+        @Override
+        public int encrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            checkRemaining(dst, getEncryptedSize(src.remaining()));
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, iv)) {
+                return lease.cipher().doFinal(src, dst);
+            }
+        }
+
+        @Override
+        public int decrypt(ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+            checkRemaining(dst, getMaxDecryptedSize(src.remaining()));
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, iv)) {
+                return lease.cipher().doFinal(src, dst);
+            }
+        }
+
         @Override
         public InputStream encrypt(InputStream in) throws GeneralSecurityException, IOException {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-            return new CipherInputStream(in, cipher);
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, iv);
+            return new S100CipherInputStream(in, lease, S100CipherInputStream.DEFAULT_BUFFER_SIZE, null);
         }
 
         @Override
         public OutputStream encrypt(OutputStream out) throws GeneralSecurityException, IOException {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
-            return new CipherOutputStream(out, cipher);
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.ENCRYPT_MODE, key, iv);
+            return new S100CipherOutputStream(out, lease, S100CipherOutputStream.DEFAULT_BUFFER_SIZE, null);
         }
 
         @Override
         public InputStream decrypt(InputStream in) throws GeneralSecurityException, IOException {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION_NAME);
-            cipher.init(Cipher.DECRYPT_MODE, key, iv);
-            return new CipherInputStream(in, cipher);
+            S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME,
+                    Cipher.DECRYPT_MODE, key, iv);
+            return new S100CipherInputStream(in, lease, S100CipherInputStream.DEFAULT_BUFFER_SIZE, null);
         }
 
     }
@@ -0,0 +1,314 @@
+package no.ecc.s100.security;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import no.ecc.s100.utility.Hex;
+
+/**
+ * S-100 암호화(AES/CBC)와 서명(SHA256withDSA)에 사용할 JCA provider를 선택하는 클래스.
+ * <p>
+ * 시스템 속성 {@value #CIPHER_PROVIDER_PROPERTY}, {@value #SIGNATURE_PROVIDER_PROPERTY}에 provider
+ * 이름(예: "SunJCE", "BC")을 지정하거나 {@value #AUTO}를 지정하면 처음 사용할 때 짧은 마이크로
+ * 벤치마크로 정상 동작하는 provider 중 가장 빠른 것을 고릅니다. 지정하지 않으면 JCA 기본 provider를
+ * 사용합니다. 코드에서 {@link #setCipherProvider(Provider)} 등으로 직접 지정할 수도 있습니다. 선택한
+ * provider는 로그로 남깁니다.
+ */
+public final class S100CryptoProviders {
+
+    public static final String CIPHER_PROVIDER_PROPERTY = "no.ecc.s100.security.cipherProvider";
+    public static final String SIGNATURE_PROVIDER_PROPERTY = "no.ecc.s100.security.signatureProvider";
+    public static final String AUTO = "auto";
+
+    private static final Logger LOG = Logger.getLogger(S100CryptoProviders.class.getName());
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String SIGNATURE_ALGORITHM = "SHA256withDSA";
+
+    // provider services as used by Security.getProviders(String). modes and
+    // paddings are attributes of the AES cipher service.
+    private static final String CIPHER_SERVICE = "Cipher.AES";
+    private static final String SIGNATURE_SERVICE = "Signature." + SIGNATURE_ALGORITHM;
+
+    // known answer from S-100 part 15: data key encrypted with HW_ID
+    private static final String KAT_KEY = "AB40384B45B54596201114FE99042201";
+    private static final String KAT_PLAIN = "1C81DFAB4053D04803FFDC87EF92FDD1";
+    private static final String KAT_ENCRYPTED = "172019407CDA6B8C1F545CCDB11B7297";
+
+    // enough rounds for the JIT to pick up AES intrinsics, but short enough to
+    // run at startup
+    private static final int CIPHER_BENCHMARK_DATA_SIZE = 64 * 1024;
+    private static final int CIPHER_BENCHMARK_ROUNDS = 100;
+    private static final int SIGNATURE_BENCHMARK_DATA_SIZE = 4 * 1024;
+    private static final int SIGNATURE_BENCHMARK_ROUNDS = 20;
+
+    private static Provider bouncyCastle;
+
+    private static volatile Selection cipherSelection;
+    private static volatile Selection signatureSelection;
+
+    private S100CryptoProviders() {
+
+    }
+
+    /**
+     * 선택된 provider로 {@link Cipher}를 생성합니다.
+     */
+    static Cipher newCipher(String transformation) throws GeneralSecurityException {
+        Provider provider = getCipherProvider();
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    /**
+     * 선택된 provider로 {@link Signature}를 생성합니다.
+     */
+    static Signature newSignature(String algorithm) throws GeneralSecurityException {
+        Provider provider = getSignatureProvider();
+        return provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+    }
+
+    /**
+     * @return AES/CBC에 사용하는 provider. JCA 기본 provider를 사용하면 null
+     */
+    public static Provider getCipherProvider() {
+        Selection selection = cipherSelection;
+        if (selection == null) {
+            synchronized (S100CryptoProviders.class) {
+                if (cipherSelection == null) {
+                    cipherSelection = fromProperty(CIPHER_PROVIDER_PROPERTY, CIPHER_SERVICE);
+                }
+                selection = cipherSelection;
+            }
+        }
+        return selection.provider;
+    }
+
+    /**
+     * @return SHA256withDSA에 사용하는 provider. JCA 기본 provider를 사용하면 null
+     */
+    public static Provider getSignatureProvider() {
+        Selection selection = signatureSelection;
+        if (selection == null) {
+            synchronized (S100CryptoProviders.class) {
+                if (signatureSelection == null) {
+                    signatureSelection = fromProperty(SIGNATURE_PROVIDER_PROPERTY, SIGNATURE_SERVICE);
+                }
+                selection = signatureSelection;
+            }
+        }
+        return selection.provider;
+    }
+
+    /**
+     * AES/CBC에 사용할 provider를 지정합니다. 이미 캐시된 {@link Cipher}는 그대로 사용됩니다.
+     *
+     * @param provider 사용할 provider. null이면 JCA 기본 provider
+     */
+    public static void setCipherProvider(Provider provider) {
+        cipherSelection = new Selection(provider);
+        log("AES/CBC", provider, "configured");
+    }
+
+    /**
+     * SHA256withDSA에 사용할 provider를 지정합니다.
+     *
+     * @param provider 사용할 provider. null이면 JCA 기본 provider
+     */
+    public static void setSignatureProvider(Provider provider) {
+        signatureSelection = new Selection(provider);
+        log(SIGNATURE_ALGORITHM, provider, "configured");
+    }
+
+    /**
+     * 사용 가능한 provider들을 벤치마크하여 AES/CBC에 가장 빠른 provider를 선택합니다.
+     *
+     * @return 선택된 provider
+     */
+    public static Provider selectFastestCipherProvider() {
+        Provider fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        for (Provider candidate : candidates(CIPHER_SERVICE)) {
+            try {
+                long nanos = benchmarkCipher(candidate);
+                LOG.fine(() -> "AES/CBC provider " + candidate.getName() + ": " + nanos / 1000 + " us");
+                if (nanos < fastestNanos) {
+                    fastest = candidate;
+                    fastestNanos = nanos;
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                LOG.log(Level.FINE, "AES/CBC provider " + candidate.getName() + " not usable", e);
+            }
+        }
+        cipherSelection = new Selection(fastest);
+        log("AES/CBC", fastest, "selected by benchmark");
+        return fastest;
+    }
+
+    /**
+     * 사용 가능한 provider들을 벤치마크하여 SHA256withDSA에 가장 빠른 provider를 선택합니다.
+     *
+     * @return 선택된 provider
+     */
+    public static Provider selectFastestSignatureProvider() {
+        Provider fastest = null;
+        long fastestNanos = Long.MAX_VALUE;
+        try {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DSA");
+            keyPairGenerator.initialize(2048);
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            for (Provider candidate : candidates(SIGNATURE_SERVICE)) {
+                try {
+                    long nanos = benchmarkSignature(candidate, keyPair);
+                    LOG.fine(() -> SIGNATURE_ALGORITHM + " provider " + candidate.getName() + ": " + nanos / 1000
+                            + " us");
+                    if (nanos < fastestNanos) {
+                        fastest = candidate;
+                        fastestNanos = nanos;
+                    }
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    LOG.log(Level.FINE, SIGNATURE_ALGORITHM + " provider " + candidate.getName() + " not usable", e);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            LOG.log(Level.WARNING, "Could not benchmark " + SIGNATURE_ALGORITHM + " providers", e);
+        }
+        signatureSelection = new Selection(fastest);
+        log(SIGNATURE_ALGORITHM, fastest, "selected by benchmark");
+        return fastest;
+    }
+
+    /**
+     * Forget the selected providers so that the next use reads the system
+     * properties again.
+     */
+    static synchronized void reset() {
+        cipherSelection = null;
+        signatureSelection = null;
+    }
+
+    private static Selection fromProperty(String property, String service) {
+        String value = System.getProperty(property);
+        if (value == null || value.isEmpty()) {
+            return new Selection(null);
+        }
+        if (AUTO.equalsIgnoreCase(value)) {
+            Provider provider = CIPHER_SERVICE.equals(service) ? selectFastestCipherProvider()
+                    : selectFastestSignatureProvider();
+            return new Selection(provider);
+        }
+        Provider provider = Security.getProvider(value);
+        if (provider == null && BouncyCastleProvider.PROVIDER_NAME.equals(value)) {
+            provider = bouncyCastle();
+        }
+        if (provider == null || provider.getService(service.substring(0, service.indexOf('.')),
+                service.substring(service.indexOf('.') + 1)) == null) {
+            LOG.warning("Provider " + value + " from " + property + " does not support " + service
+                    + ". Using JCA default.");
+            return new Selection(null);
+        }
+        log(service, provider, "configured by " + property);
+        return new Selection(provider);
+    }
+
+    private static List<Provider> candidates(String service) {
+        List<Provider> candidates = new ArrayList<>();
+        Provider[] installed = Security.getProviders(service);
+        if (installed != null) {
+            candidates.addAll(Arrays.asList(installed));
+        }
+        if (candidates.stream().noneMatch(p -> BouncyCastleProvider.PROVIDER_NAME.equals(p.getName()))) {
+            candidates.add(bouncyCastle());
+        }
+        return candidates;
+    }
+
+    /**
+     * BouncyCastle is a dependency, but not necessarily registered as a
+     * provider. Creating it is expensive, so do it once.
+     */
+    private static synchronized Provider bouncyCastle() {
+        if (bouncyCastle == null) {
+            bouncyCastle = new BouncyCastleProvider();
+        }
+        return bouncyCastle;
+    }
+
+    private static long benchmarkCipher(Provider provider) throws GeneralSecurityException {
+        // verify the provider before timing it
+        Cipher kat = Cipher.getInstance("AES/CBC/NoPadding", provider);
+        kat.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(Hex.fromString(KAT_KEY), "AES"),
+                new IvParameterSpec(new byte[16]));
+        if (!KAT_ENCRYPTED.equals(Hex.toString(kat.doFinal(Hex.fromString(KAT_PLAIN))))) {
+            throw new GeneralSecurityException("Known answer test failed");
+        }
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM, provider);
+        SecretKeySpec key = new SecretKeySpec(Hex.fromString(KAT_PLAIN), "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        byte[] data = new byte[CIPHER_BENCHMARK_DATA_SIZE];
+        byte[] out = new byte[CIPHER_BENCHMARK_DATA_SIZE + 16];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < CIPHER_BENCHMARK_ROUNDS; i++) {
+            long start = System.nanoTime();
+            cipher.init(Cipher.DECRYPT_MODE, key, iv);
+            cipher.update(data, 0, data.length, out, 0);
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+            cipher.doFinal(data, 0, data.length, out, 0);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long benchmarkSignature(Provider provider, KeyPair keyPair) throws GeneralSecurityException {
+        Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM, provider);
+        Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+        byte[] data = new byte[SIGNATURE_BENCHMARK_DATA_SIZE];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < SIGNATURE_BENCHMARK_ROUNDS; i++) {
+            long start = System.nanoTime();
+            signer.initSign(keyPair.getPrivate());
+            signer.update(data);
+            byte[] signature = signer.sign();
+            best = Math.min(best, System.nanoTime() - start);
+
+            // the signature must verify with the default provider
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(data);
+            if (!verifier.verify(signature)) {
+                throw new GeneralSecurityException("Signature verification failed");
+            }
+        }
+        return best;
+    }
+
+    private static void log(String algorithm, Provider provider, String how) {
+        LOG.info(() -> "S-100 " + algorithm + " provider "
+                + (provider == null ? "JCA default" : provider.getName()) + " " + how);
+    }
+
+    private static final class Selection {
+
+        private final Provider provider;
+
+        Selection(Provider provider) {
+            this.provider = provider;
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+package no.ecc.s100.security;
+
+import java.security.GeneralSecurityException;
+import java.util.stream.IntStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 여러 데이터 키를 한 번에 HW_ID로 암호화(wrap), 복호화(unwrap), 재암호화(rewrap)하는 클래스.
+ * <p>
+ * 데이터 키는 AES 한 블록이고 {@link S100Crypt.EmptyIVNoPadding}은 0 IV를 사용하므로, 키마다 CBC를
+ * 따로 실행한 결과는 연속된 키 배열 전체를 ECB로 한 번에 처리한 결과와 같습니다. 따라서 HW_ID당
+ * 한 번의 cipher init과 한 번의 doFinal로 모든 키를 처리합니다. 키 배열은 키 16바이트씩 연속으로
+ * 저장됩니다.
+ */
+public final class S100DataKeyBatch {
+
+    public static final int KEY_LENGTH = 16;
+
+    private static final String ALG = "AES";
+    private static final String TRANSFORMATION_NAME = "AES/ECB/NoPadding";
+
+    // number of keys handled by one task when processing in parallel
+    static final int PARTITION_SIZE = 16384;
+
+    private final SecretKey hwIdKey;
+
+    /**
+     * @param hwId 16진수로 인코딩된 HW_ID
+     */
+    public S100DataKeyBatch(String hwId) {
+        if (hwId.length() != S100Crypt.KEY_SIZE_ENCODED) {
+            throw new IllegalArgumentException("Expected encoded HW_ID length " + S100Crypt.KEY_SIZE_ENCODED
+                    + " not " + hwId.length());
+        }
+        this.hwIdKey = new SecretKeySpec(Hex.fromString(hwId), ALG);
+    }
+
+    /**
+     * 연속된 데이터 키 배열을 HW_ID로 암호화합니다.
+     *
+     * @param keys 키 16바이트씩 연속된 평문 데이터 키
+     * @return 같은 순서의 암호화된 데이터 키
+     * @throws GeneralSecurityException 암호화 오류 시
+     */
+    public byte[] wrap(byte[] keys) throws GeneralSecurityException {
+        return process(Cipher.ENCRYPT_MODE, keys, false);
+    }
+
+    /**
+     * {@link #wrap(byte[])}과 같지만 키 배열을 나누어 여러 코어에서 처리합니다.
+     */
+    public byte[] wrapParallel(byte[] keys) throws GeneralSecurityException {
+        return process(Cipher.ENCRYPT_MODE, keys, true);
+    }
+
+    /**
+     * 연속된 암호화된 데이터 키 배열을 HW_ID로 복호화합니다.
+     *
+     * @param encryptedKeys 키 16바이트씩 연속된 암호화된 데이터 키
+     * @return 같은 순서의 평문 데이터 키
+     * @throws GeneralSecurityException 복호화 오류 시
+     */
+    public byte[] unwrap(byte[] encryptedKeys) throws GeneralSecurityException {
+        return process(Cipher.DECRYPT_MODE, encryptedKeys, false);
+    }
+
+    /**
+     * {@link #unwrap(byte[])}과 같지만 키 배열을 나누어 여러 코어에서 처리합니다.
+     */
+    public byte[] unwrapParallel(byte[] encryptedKeys) throws GeneralSecurityException {
+        return process(Cipher.DECRYPT_MODE, encryptedKeys, true);
+    }
+
+    /**
+     * 16진수 문자열 데이터 키들을 HW_ID로 암호화합니다.
+     *
+     * @param keys 16진수로 인코딩된 평문 데이터 키
+     * @return 16진수로 인코딩된 암호화된 데이터 키
+     * @throws GeneralSecurityException 암호화 오류 시
+     */
+    public String[] wrap(String[] keys) throws GeneralSecurityException {
+        return toHex(wrap(fromHex(keys)));
+    }
+
+    /**
+     * 16진수 문자열 암호화된 데이터 키들을 HW_ID로 복호화합니다.
+     *
+     * @param encryptedKeys 16진수로 인코딩된 암호화된 데이터 키
+     * @return 16진수로 인코딩된 평문 데이터 키
+     * @throws GeneralSecurityException 복호화 오류 시
+     */
+    public String[] unwrap(String[] encryptedKeys) throws GeneralSecurityException {
+        return toHex(unwrap(fromHex(encryptedKeys)));
+    }
+
+    /**
+     * 이 HW_ID로 암호화된 데이터 키들을 다른 HW_ID로 다시 암호화합니다. 평문 키는 결과 배열
+     * 안에서만 잠시 존재합니다.
+     *
+     * @param encryptedKeys 키 16바이트씩 연속된, 이 HW_ID로 암호화된 데이터 키
+     * @param target 새 HW_ID
+     * @param parallel 키 배열을 나누어 여러 코어에서 처리할지 여부
+     * @return 같은 순서의, target HW_ID로 암호화된 데이터 키
+     * @throws GeneralSecurityException 암호화 오류 시
+     */
+    public byte[] rewrap(byte[] encryptedKeys, S100DataKeyBatch target, boolean parallel)
+            throws GeneralSecurityException {
+        checkLength(encryptedKeys);
+        byte[] result = new byte[encryptedKeys.length];
+        run(encryptedKeys.length / KEY_LENGTH, parallel, (from, to) -> {
+            int offset = from * KEY_LENGTH;
+            int length = (to - from) * KEY_LENGTH;
+            try (S100CipherCache.Lease unwrap = S100CipherCache.acquire(TRANSFORMATION_NAME, Cipher.DECRYPT_MODE,
+                    hwIdKey, null);
+                    S100CipherCache.Lease wrap = S100CipherCache.acquire(TRANSFORMATION_NAME, Cipher.ENCRYPT_MODE,
+                            target.hwIdKey, null)) {
+                unwrap.cipher().doFinal(encryptedKeys, offset, length, result, offset);
+                wrap.cipher().doFinal(result, offset, length, result, offset);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 16진수 문자열 키들을 연속된 키 배열로 변환합니다.
+     */
+    public static byte[] fromHex(String[] keys) {
+        byte[] result = new byte[keys.length * KEY_LENGTH];
+        for (int i = 0; i < keys.length; i++) {
+            byte[] key = Hex.fromString(keys[i]);
+            if (key.length != KEY_LENGTH) {
+                throw new IllegalArgumentException("Expected key length " + KEY_LENGTH + " not " + key.length);
+            }
+            System.arraycopy(key, 0, result, i * KEY_LENGTH, KEY_LENGTH);
+        }
+        return result;
+    }
+
+    /**
+     * 연속된 키 배열을 16진수 문자열 키들로 변환합니다.
+     */
+    public static String[] toHex(byte[] keys) {
+        checkLength(keys);
+        String[] result = new String[keys.length / KEY_LENGTH];
+        byte[] key = new byte[KEY_LENGTH];
+        for (int i = 0; i < result.length; i++) {
+            System.arraycopy(keys, i * KEY_LENGTH, key, 0, KEY_LENGTH);
+            result[i] = Hex.toString(key);
+        }
+        return result;
+    }
+
+    private byte[] process(int mode, byte[] keys, boolean parallel) throws GeneralSecurityException {
+        checkLength(keys);
+        byte[] result = new byte[keys.length];
+        run(keys.length / KEY_LENGTH, parallel, (from, to) -> {
+            try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME, mode, hwIdKey,
+                    null)) {
+                lease.cipher().doFinal(keys, from * KEY_LENGTH, (to - from) * KEY_LENGTH, result,
+                        from * KEY_LENGTH);
+            }
+        });
+        return result;
+    }
+
+    private static void checkLength(byte[] keys) {
+        if (keys.length % KEY_LENGTH != 0) {
+            throw new IllegalArgumentException(
+                    "Key array length must be a multiple of " + KEY_LENGTH + ", not " + keys.length);
+        }
+    }
+
+    private static void run(int keyCount, boolean parallel, Partition partition) throws GeneralSecurityException {
+        if (!parallel || keyCount <= PARTITION_SIZE) {
+            partition.process(0, keyCount);
+            return;
+        }
+        int partitions = (keyCount + PARTITION_SIZE - 1) / PARTITION_SIZE;
+        S100Parallel.run(() -> IntStream.range(0, partitions).parallel().forEach(p -> S100Parallel.unchecked(
+                () -> partition.process(p * PARTITION_SIZE, Math.min(keyCount, (p + 1) * PARTITION_SIZE)))),
+                GeneralSecurityException.class);
+    }
+
+    private interface Partition {
+
+        void process(int fromKey, int toKey) throws GeneralSecurityException;
+
+    }
+
+}
@@ -23,16 +23,19 @@ public class S100DataPermit implements Comparable<S100DataPermit> {
     private final String encryptedDataKey;
     private final S100ProductSpecification productSpecification;
 
+    // memoized by S100PermitFile
+    private volatile DatasetCrypt datasetCrypt;
+
     static final String PERMIT_ELEMENT = "permit";
     static final String DATASET_PERMIT_ELEMENT = "datasetPermit";
-    private static final String FILENAME_ELEMENT = "filename";
-    private static final String EDITION_NUMBER_ELEMENT = "editionNumber";
-    private static final String EXPIRY_ELEMENT = "expiry";
-    private static final String ENCRYPTED_KEY_ELEMENT = "encryptedKey";
+    static final String FILENAME_ELEMENT = "filename";
+    static final String EDITION_NUMBER_ELEMENT = "editionNumber";
+    static final String EXPIRY_ELEMENT = "expiry";
+    static final String ENCRYPTED_KEY_ELEMENT = "encryptedKey";
 
     static final String EXPIRY_DATE_FORMAT = "yyyy-MM-dd";
 
-    private S100DataPermit(String fileName, int edtn, Date permitEndDate, String encryptedDataKey,
+    S100DataPermit(String fileName, int edtn, Date permitEndDate, String encryptedDataKey,
             S100ProductSpecification productSpecification) {
         this.fileName = fileName;
         this.edtn = edtn;
@@ -112,6 +115,18 @@ public class S100DataPermit implements Comparable<S100DataPermit> {
         return productSpecification;
     }
 
+    /**
+     * @return 주어진 HW_ID로 복호화해 둔 데이터 키의 crypt. 없으면 null
+     */
+    S100Crypt.RandomIV getDatasetCrypt(String hwId) {
+        DatasetCrypt c = datasetCrypt;
+        return c != null && c.hwId.equals(hwId) ? c.crypt : null;
+    }
+
+    void setDatasetCrypt(String hwId, S100Crypt.RandomIV crypt) {
+        datasetCrypt = new DatasetCrypt(hwId, crypt);
+    }
+
     @Override
     public int compareTo(S100DataPermit o) {
         return fileName.compareTo(o.fileName);
@@ -134,4 +149,16 @@ public class S100DataPermit implements Comparable<S100DataPermit> {
         return fileName.equals(o.getFileName());
     }
 
+    private static final class DatasetCrypt {
+
+        private final String hwId;
+        private final S100Crypt.RandomIV crypt;
+
+        private DatasetCrypt(String hwId, S100Crypt.RandomIV crypt) {
+            this.hwId = hwId;
+            this.crypt = crypt;
+        }
+
+    }
+
 }
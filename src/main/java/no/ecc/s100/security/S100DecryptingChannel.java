@@ -0,0 +1,186 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * 암호화된 데이터셋 파일을 평문처럼 임의 위치에서 읽을 수 있는 읽기 전용
+ * {@link SeekableByteChannel}.
+ * <p>
+ * CBC에서는 바로 앞 암호문 블록을 IV로 사용하면 어떤 블록이든 독립적으로 복호화할 수 있으므로, 요청한
+ * 위치를 포함하는 블록들만 복호화합니다. 파일 앞의 랜덤 블록은 위치 계산에서 제외되고, 마지막 블록의
+ * 패딩은 {@link #size()}에 포함되지 않습니다. {@link S100Crypt.RandomIV#openDecryptingChannel(Path)}로
+ * 생성합니다.
+ */
+public final class S100DecryptingChannel implements SeekableByteChannel {
+
+    private static final String TRANSFORMATION_NAME = "AES/CBC/PKCS5Padding";
+    private static final String NO_PADDING_TRANSFORMATION_NAME = "AES/CBC/NoPadding";
+    private static final int AES_BLOCK_SIZE = 16;
+
+    // plain text decrypted per read from the file. must be a multiple of the
+    // AES block size.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final long size;
+
+    private final ByteBuffer encrypted = ByteBuffer.allocate(AES_BLOCK_SIZE + BUFFER_SIZE);
+    private final ByteBuffer decrypted = ByteBuffer.allocate(BUFFER_SIZE);
+    private long decryptedStart = -1;
+
+    private long position;
+
+    S100DecryptingChannel(Path encryptedFile, SecretKey key) throws GeneralSecurityException, IOException {
+        this.channel = FileChannel.open(encryptedFile, StandardOpenOption.READ);
+        this.key = key;
+        try {
+            this.size = plainTextSize();
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private long plainTextSize() throws GeneralSecurityException, IOException {
+        long encryptedSize = channel.size();
+        if (encryptedSize < 2 * AES_BLOCK_SIZE || encryptedSize % AES_BLOCK_SIZE != 0) {
+            throw new IOException("Illegal encrypted file length " + encryptedSize);
+        }
+
+        // the last cipher text block decrypted with the one before it as IV
+        // tells the padding length.
+        ByteBuffer lastBlocks = ByteBuffer.allocate(2 * AES_BLOCK_SIZE);
+        readFully(lastBlocks, encryptedSize - lastBlocks.capacity());
+        try (S100CipherCache.Lease lease = S100CipherCache.acquire(TRANSFORMATION_NAME, Cipher.DECRYPT_MODE, key,
+                new IvParameterSpec(lastBlocks.array(), 0, AES_BLOCK_SIZE))) {
+            byte[] tail = lease.cipher().doFinal(lastBlocks.array(), AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+            return encryptedSize - 2 * AES_BLOCK_SIZE + tail.length;
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            if (decryptedStart < 0 || position < decryptedStart
+                    || position >= decryptedStart + decrypted.limit()) {
+                fill(position - position % BUFFER_SIZE);
+            }
+            int offset = (int) (position - decryptedStart);
+            int length = Math.min(dst.remaining(), decrypted.limit() - offset);
+            dst.put(decrypted.array(), offset, length);
+            position += length;
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Decrypt the plain text starting at the given block aligned position into
+     * the buffer. Plain text block n is cipher text block n + 1, and cipher text
+     * block n is its IV.
+     */
+    private void fill(long plainTextStart) throws IOException {
+        int length = (int) Math.min(BUFFER_SIZE, size - plainTextStart);
+        int blocks = (length + AES_BLOCK_SIZE - 1) / AES_BLOCK_SIZE;
+
+        encrypted.clear().limit(AES_BLOCK_SIZE + blocks * AES_BLOCK_SIZE);
+        readFully(encrypted, plainTextStart);
+        encrypted.flip();
+        byte[] iv = new byte[AES_BLOCK_SIZE];
+        encrypted.get(iv);
+
+        decrypted.clear();
+        decryptedStart = -1;
+        try (S100CipherCache.Lease lease = S100CipherCache.acquire(NO_PADDING_TRANSFORMATION_NAME,
+                Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv))) {
+            lease.cipher().doFinal(encrypted, decrypted);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+
+        // drop the padding of the last block
+        decrypted.flip().limit(length);
+        decryptedStart = plainTextStart;
+    }
+
+    private void readFully(ByteBuffer dst, long filePosition) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, filePosition);
+            if (read < 0) {
+                throw new IOException("Premature end of encrypted file");
+            }
+            filePosition += read;
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return 복호화된 평문의 크기
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
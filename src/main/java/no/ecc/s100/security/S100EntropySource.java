@@ -0,0 +1,122 @@
+package no.ecc.s100.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * {@link S100Crypt}와 {@link S100KeyGenerator}가 랜덤 블록, IV, 키를 만들 때 사용하는 난수 공급원.
+ * <p>
+ * 기본값은 스레드마다 하나의 DRBG {@link SecureRandom}을 두고 일정 횟수 사용 후 reseed 하는
+ * {@link #threadLocalDrbg(int)}입니다. 호출마다 {@link SecureRandom}을 새로 만들고 시스템 엔트로피로
+ * 시드하는 비용과 스레드 간 경합이 없습니다. 테스트와 벤치마크에서는 {@link #deterministic(long)}을
+ * {@link #setDefault(S100EntropySource)}로 설정해 결과를 재현할 수 있습니다.
+ */
+public abstract class S100EntropySource {
+
+    /**
+     * 기본 DRBG가 reseed 하기 전까지 허용하는 요청 횟수.
+     */
+    public static final int DEFAULT_RESEED_INTERVAL = 1 << 16;
+
+    private static volatile S100EntropySource defaultSource = threadLocalDrbg(DEFAULT_RESEED_INTERVAL);
+
+    /**
+     * @return 현재 스레드에서 사용할 {@link SecureRandom}
+     */
+    public abstract SecureRandom getSecureRandom();
+
+    public void nextBytes(byte[] bytes) {
+        getSecureRandom().nextBytes(bytes);
+    }
+
+    public static S100EntropySource getDefault() {
+        return defaultSource;
+    }
+
+    /**
+     * S-100 암호화에 사용할 기본 난수 공급원을 설정합니다.
+     *
+     * @param source 새 기본 난수 공급원
+     */
+    public static void setDefault(S100EntropySource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Entropy source must not be null");
+        }
+        defaultSource = source;
+    }
+
+    /**
+     * 스레드마다 DRBG {@link SecureRandom}을 하나씩 두는 난수 공급원을 만듭니다.
+     *
+     * @param reseedInterval reseed 전까지 허용하는 {@link #getSecureRandom()} 호출 횟수
+     * @return 스레드별 DRBG 난수 공급원
+     */
+    public static S100EntropySource threadLocalDrbg(int reseedInterval) {
+        if (reseedInterval < 1) {
+            throw new IllegalArgumentException("Reseed interval must be positive: " + reseedInterval);
+        }
+        return new ThreadLocalDrbg(reseedInterval);
+    }
+
+    /**
+     * 같은 seed에 대해 항상 같은 순서의 난수를 만드는 난수 공급원을 만듭니다. 테스트와 벤치마크
+     * 전용이며 실제 암호화에 사용하면 안 됩니다.
+     *
+     * @param seed 시드
+     * @return 결정적 난수 공급원
+     */
+    public static S100EntropySource deterministic(long seed) {
+        try {
+            // SHA1PRNG is deterministic when seeded before first use
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(ByteBuffer.allocate(Long.BYTES).putLong(seed).array());
+            return new S100EntropySource() {
+                @Override
+                public SecureRandom getSecureRandom() {
+                    return random;
+                }
+            };
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class ThreadLocalDrbg extends S100EntropySource {
+
+        private final int reseedInterval;
+        private final ThreadLocal<Drbg> drbg;
+
+        ThreadLocalDrbg(int reseedInterval) {
+            this.reseedInterval = reseedInterval;
+            this.drbg = ThreadLocal.withInitial(Drbg::new);
+        }
+
+        @Override
+        public SecureRandom getSecureRandom() {
+            Drbg d = drbg.get();
+            if (++d.requests > reseedInterval) {
+                d.random.reseed();
+                d.requests = 1;
+            }
+            return d.random;
+        }
+
+    }
+
+    private static final class Drbg {
+
+        private final SecureRandom random;
+        private int requests;
+
+        Drbg() {
+            try {
+                random = SecureRandom.getInstance("DRBG");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
@@ -17,15 +17,13 @@ public class S100KeyGenerator {
     private static final int KEY_SIZE = 128;
 
     /**
-     * 새로운 AES128 키를 랜덤으로 생성합니다.
+     * 새로운 AES128 키를 {@link S100EntropySource#getDefault()}의 난수로 생성합니다.
      * 
      * @return 생성된 SecretKey
      * @throws GeneralSecurityException 키 생성 중 오류 발생 시
      */
     public static SecretKey generateKey() throws GeneralSecurityException {
-        KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
-        keyGenerator.init(KEY_SIZE);
-        return keyGenerator.generateKey();
+        return generateKey(S100EntropySource.getDefault().getSecureRandom());
     }
 
     /**
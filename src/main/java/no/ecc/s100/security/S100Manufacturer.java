@@ -9,6 +9,10 @@ public class S100Manufacturer {
     private final String id;
     private final String key;
 
+    // created on first use, the key is not validated by the constructor. the
+    // crypt is thread safe, so one instance serves all callers.
+    private volatile S100Crypt crypt;
+
     public S100Manufacturer(String id, String key) {
         this.id = id;
         this.key = key;
@@ -19,13 +23,21 @@ public class S100Manufacturer {
     }
 
     public String encrypt(String unencrypted) throws GeneralSecurityException {
-        S100Crypt c = new S100Crypt.EmptyIVNoPadding(key);
-        return Hex.toString(c.encrypt(Hex.fromString(unencrypted)));
+        return Hex.toString(getCrypt().encrypt(Hex.fromString(unencrypted)));
     }
 
     public String decrypt(String encrypted) throws GeneralSecurityException {
-        S100Crypt c = new S100Crypt.EmptyIVNoPadding(key);
-        return Hex.toString(c.decrypt(Hex.fromString(encrypted)));
+        return Hex.toString(getCrypt().decrypt(Hex.fromString(encrypted)));
+    }
+
+    S100Crypt getCrypt() {
+        S100Crypt c = crypt;
+        if (c == null) {
+            // a race only creates an equivalent crypt
+            c = new S100Crypt.EmptyIVNoPadding(key);
+            crypt = c;
+        }
+        return c;
     }
 
 }
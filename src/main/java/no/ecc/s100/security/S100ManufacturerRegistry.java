@@ -0,0 +1,184 @@
+package no.ecc.s100.security;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * 여러 제조사의 M_KEY를 M_ID로 찾는 {@link S100ManufacturerLookup}.
+ * <p>
+ * 제조사들은 변경되지 않는 맵 스냅샷으로 보관하고 volatile 참조 하나로 공개하므로 조회는 잠금 없이
+ * 동시에 실행됩니다. 스냅샷을 만들 때 제조사마다 crypt를 미리 만들어 두어 HW_ID 복호화 시 키를 다시
+ * 준비하지 않습니다. 다시 읽기는 새 스냅샷을 완성한 뒤 참조만 바꾸므로 조회를 막지 않으며, 읽기에
+ * 실패하면 기존 스냅샷을 그대로 사용합니다. 조회 수와 찾지 못한 수를 셉니다.
+ * <p>
+ * 키 파일은 한 줄에 하나씩 "M_ID,M_KEY" 형식입니다. 빈 줄과 #으로 시작하는 줄은 무시합니다.
+ */
+public final class S100ManufacturerRegistry implements S100ManufacturerLookup {
+
+    private static final Logger LOG = Logger.getLogger(S100ManufacturerRegistry.class.getName());
+
+    private static final int M_ID_LENGTH = 6;
+
+    private final Path file;
+
+    private volatile Map<String, S100Manufacturer> manufacturers;
+
+    // last modified time of the file the current snapshot was read from
+    private FileTime loadedModifiedTime;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * 키 파일을 읽습니다.
+     *
+     * @param file 키 파일
+     * @throws IOException 읽기 오류 또는 형식이 잘못된 경우
+     */
+    public S100ManufacturerRegistry(Path file) throws IOException {
+        this.file = file;
+        reload();
+    }
+
+    /**
+     * @param manufacturers 제조사들
+     * @throws IllegalArgumentException M_ID가 중복되거나 M_ID 또는 M_KEY 형식이 잘못된 경우
+     */
+    public S100ManufacturerRegistry(Collection<S100Manufacturer> manufacturers) {
+        this.file = null;
+        replace(manufacturers);
+    }
+
+    @Override
+    public S100Manufacturer manufacturerForMId(String mId) {
+        lookups.increment();
+        S100Manufacturer m = manufacturers.get(mId);
+        if (m == null) {
+            misses.increment();
+        }
+        return m;
+    }
+
+    /**
+     * 키 파일을 다시 읽어 제조사들을 바꿉니다.
+     *
+     * @throws IOException 읽기 오류 또는 형식이 잘못된 경우. 기존 제조사들은 유지됩니다.
+     * @throws IllegalStateException 키 파일 없이 만든 경우
+     */
+    public synchronized void reload() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("Registry was not created from a file");
+        }
+        FileTime modifiedTime = Files.getLastModifiedTime(file);
+        manufacturers = read(file);
+        loadedModifiedTime = modifiedTime;
+        LOG.info(() -> "Loaded " + manufacturers.size() + " manufacturer keys from " + file);
+    }
+
+    /**
+     * 키 파일이 마지막으로 읽은 뒤 바뀐 경우에만 다시 읽습니다.
+     *
+     * @return 다시 읽었으면 true
+     * @throws IOException 읽기 오류 또는 형식이 잘못된 경우. 기존 제조사들은 유지됩니다.
+     * @throws IllegalStateException 키 파일 없이 만든 경우
+     */
+    public synchronized boolean reloadIfModified() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("Registry was not created from a file");
+        }
+        if (Files.getLastModifiedTime(file).equals(loadedModifiedTime)) {
+            return false;
+        }
+        reload();
+        return true;
+    }
+
+    /**
+     * 제조사들을 한 번에 바꿉니다.
+     *
+     * @param manufacturers 새 제조사들
+     * @throws IllegalArgumentException M_ID가 중복되거나 M_ID 또는 M_KEY 형식이 잘못된 경우
+     */
+    public synchronized void replace(Collection<S100Manufacturer> manufacturers) {
+        ImmutableMap.Builder<String, S100Manufacturer> builder = ImmutableMap.builder();
+        for (S100Manufacturer m : manufacturers) {
+            builder.put(m.getId(), prepare(m));
+        }
+        this.manufacturers = builder.build();
+    }
+
+    private static Map<String, S100Manufacturer> read(Path file) throws IOException {
+        ImmutableMap.Builder<String, S100Manufacturer> builder = ImmutableMap.builder();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                try {
+                    if (fields.length != 2) {
+                        throw new IllegalArgumentException("Expected M_ID,M_KEY");
+                    }
+                    builder.put(fields[0].trim(), prepare(new S100Manufacturer(fields[0].trim(), fields[1].trim())));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        try {
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static S100Manufacturer prepare(S100Manufacturer m) {
+        if (m.getId() == null || m.getId().length() != M_ID_LENGTH) {
+            throw new IllegalArgumentException("M_ID must be " + M_ID_LENGTH + " characters long: " + m.getId());
+        }
+        // validates the key and creates the crypt before the snapshot is published
+        m.getCrypt();
+        return m;
+    }
+
+    /**
+     * @return 등록된 M_ID들
+     */
+    public Set<String> getMIds() {
+        return manufacturers.keySet();
+    }
+
+    public int size() {
+        return manufacturers.size();
+    }
+
+    /**
+     * @return {@link #manufacturerForMId(String)} 호출 수
+     */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * @return 제조사를 찾지 못한 {@link #manufacturerForMId(String)} 호출 수
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+}
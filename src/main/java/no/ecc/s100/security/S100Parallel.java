@@ -0,0 +1,138 @@
+package no.ecc.s100.security;
+
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+/**
+ * Carries checked exceptions out of parallel streams and fork/join tasks.
+ * <p>
+ * Work running on pool threads wraps its checked exceptions with
+ * {@link #unchecked(Task)} or {@link #unchecked(Callable)}. The caller starts
+ * the parallel work with one of the run or call methods, which rethrow the
+ * original exception if it is one of the declared types.
+ */
+final class S100Parallel {
+
+    private S100Parallel() {
+    }
+
+    /**
+     * Work without a result that may throw a checked exception.
+     */
+    interface Task {
+
+        void run() throws Exception;
+
+    }
+
+    /**
+     * Run the task, wrapping a checked exception in an unchecked one that
+     * {@link #run(Runnable, Class)} and the other methods recognize.
+     */
+    static void unchecked(Task task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Checked(e);
+        }
+    }
+
+    /**
+     * Call the task, wrapping a checked exception in an unchecked one that
+     * {@link #run(Runnable, Class)} and the other methods recognize.
+     */
+    static <T> T unchecked(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new Checked(e);
+        }
+    }
+
+    static <X extends Exception> void run(Runnable work, Class<X> type) throws X {
+        run(work, type, type, type);
+    }
+
+    static <X1 extends Exception, X2 extends Exception> void run(Runnable work, Class<X1> type1,
+            Class<X2> type2) throws X1, X2 {
+        run(work, type1, type2, type2);
+    }
+
+    static <X1 extends Exception, X2 extends Exception, X3 extends Exception> void run(Runnable work,
+            Class<X1> type1, Class<X2> type2, Class<X3> type3) throws X1, X2, X3 {
+        call(() -> {
+            work.run();
+            return null;
+        }, type1, type2, type3);
+    }
+
+    static <T, X1 extends Exception, X2 extends Exception> T call(Supplier<T> work, Class<X1> type1,
+            Class<X2> type2) throws X1, X2 {
+        return call(work, type1, type2, type2);
+    }
+
+    /**
+     * Get the result of the work, typically joining a parallel stream or a
+     * fork/join task.
+     *
+     * @throws X1 if the work wrapped an exception of this type
+     * @throws X2 if the work wrapped an exception of this type
+     * @throws X3 if the work wrapped an exception of this type
+     * @throws IllegalStateException if the work wrapped an exception of
+     *             another type
+     */
+    static <T, X1 extends Exception, X2 extends Exception, X3 extends Exception> T call(Supplier<T> work,
+            Class<X1> type1, Class<X2> type2, Class<X3> type3) throws X1, X2, X3 {
+        try {
+            return work.get();
+        } catch (RuntimeException e) {
+            Exception cause = checkedCause(e);
+            if (cause == null) {
+                throw e;
+            }
+            rethrowIf(cause, type1);
+            rethrowIf(cause, type2);
+            rethrowIf(cause, type3);
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * @return the wrapped checked exception, or null if e is not from
+     *         unchecked. Fork/join may rethrow a task exception wrapped in
+     *         another exception, so the causes are searched as well.
+     */
+    private static Exception checkedCause(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof Checked) {
+                return (Exception) t.getCause();
+            }
+        }
+        return null;
+    }
+
+    private static <X extends Exception> void rethrowIf(Exception cause, Class<X> type) throws X {
+        if (type.isInstance(cause)) {
+            throw type.cast(cause);
+        }
+    }
+
+    /**
+     * Marks a checked exception thrown by parallel work. Not public so fork/join
+     * does not copy it when rethrowing on another thread.
+     */
+    private static final class Checked extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private Checked(Exception cause) {
+            super(cause);
+        }
+
+    }
+
+}
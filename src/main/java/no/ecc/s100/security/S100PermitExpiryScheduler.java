@@ -0,0 +1,160 @@
+package no.ecc.s100.security;
+
+import java.io.Closeable;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 등록된 {@link S100PermitRegistry}에서 만료된 permit을 백그라운드로 제거하고 리스너에 알리는 클래스.
+ * <p>
+ * 등록된 registry들의 가장 이른 만료일에 맞춰 한 번만 깨어나며, 제거는 각 registry의 만료일
+ * 인덱스에서 만료된 구간만 읽으므로 전체 permit을 훑지 않습니다. 만료일은 permit을 사용할 수 있는
+ * 마지막 날이므로 clock 시간대로 만료일 다음 날 0시부터 만료된 것으로 봅니다. registry에 더 이른
+ * 만료일의 permit을 추가했다면 {@link #reschedule()}를 호출합니다. 호출하지 않아도 최대 대기 시간이
+ * 지나면 다시 확인합니다.
+ */
+public class S100PermitExpiryScheduler implements Closeable {
+
+    public static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger LOG = Logger.getLogger(S100PermitExpiryScheduler.class.getName());
+
+    private final Clock clock;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService executor;
+    private final List<S100PermitRegistry> registries = new CopyOnWriteArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private ScheduledFuture<?> next;
+
+    public S100PermitExpiryScheduler() {
+        this(Clock.systemDefaultZone(), DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param clock 현재 시각
+     * @param maxDelayMillis 만료될 permit이 없어도 다시 확인할 때까지의 최대 대기 시간
+     */
+    public S100PermitExpiryScheduler(Clock clock, long maxDelayMillis) {
+        if (maxDelayMillis < 1) {
+            throw new IllegalArgumentException("Max delay must be positive: " + maxDelayMillis);
+        }
+        this.clock = clock;
+        this.maxDelayMillis = maxDelayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "S100PermitExpiryScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * registry를 등록하고 다음 만료 시각을 다시 계산합니다.
+     */
+    public void register(S100PermitRegistry registry) {
+        registries.add(registry);
+        reschedule();
+    }
+
+    public void unregister(S100PermitRegistry registry) {
+        registries.remove(registry);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 등록된 registry들의 가장 이른 만료일에 맞춰 다음 제거 시각을 다시 정합니다.
+     */
+    public void reschedule() {
+        long delay = nextRunMillis() - clock.millis();
+        synchronized (this) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (next != null) {
+                next.cancel(false);
+            }
+            // never less than 1 ms, so a failing eviction can not spin
+            next = executor.schedule(this::run, Math.max(1, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the time of the next run: the earliest expiry time of the
+     *         registered registries, at most the max delay from now.
+     */
+    long nextRunMillis() {
+        long now = clock.millis();
+        long nextRun = now + maxDelayMillis;
+        for (S100PermitRegistry registry : registries) {
+            Date nextExpiryTime = registry.getNextExpiryTime(clock.getZone());
+            if (nextExpiryTime != null) {
+                nextRun = Math.min(nextRun, nextExpiryTime.getTime());
+            }
+        }
+        return nextRun;
+    }
+
+    private void run() {
+        try {
+            evictExpired();
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Could not evict expired permits", e);
+        } finally {
+            reschedule();
+        }
+    }
+
+    /**
+     * 등록된 모든 registry에서 만료된 permit을 지금 제거하고 리스너에 알립니다.
+     *
+     * @return 제거된 permit들
+     */
+    public List<S100DataPermit> evictExpired() {
+        Date now = new Date(clock.millis());
+        List<S100DataPermit> evicted = new ArrayList<>();
+        for (S100PermitRegistry registry : registries) {
+            List<S100DataPermit> expired = registry.removeExpired(now, clock.getZone());
+            if (!expired.isEmpty()) {
+                evicted.addAll(expired);
+                for (Listener listener : listeners) {
+                    listener.expired(registry, expired);
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 백그라운드 스레드를 멈춥니다.
+     */
+    @Override
+    public synchronized void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 만료된 permit이 registry에서 제거된 뒤 호출되는 리스너. registry의 잠금 밖에서 호출됩니다.
+     */
+    public interface Listener {
+
+        void expired(S100PermitRegistry registry, List<S100DataPermit> dataPermits);
+
+    }
+
+}
@@ -1,45 +1,33 @@
 package no.ecc.s100.security;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
-
-import com.google.common.collect.Multimap;
-import com.google.common.collect.TreeMultimap;
 
 import no.ecc.s100.S100ProductSpecification;
-import no.ecc.s100.utility.XMLUtils;
+import no.ecc.s100.utility.Hex;
 
 public class S100PermitFile {
 
-    private final Date date;
-    private final String dataserver;
+    // replaced together with the permits by S100PermitFileDelta.apply
+    private volatile Date date;
+    private volatile String dataserver;
     private final String hwId;
     private final String userPermitString;
-    private final Multimap<S100ProductSpecification, S100DataPermit> permitsByProductSpecification = TreeMultimap
-            .create();
-
-    public static final String PERMIT_DOT_XML = "PERMIT.XML";
-
-    private static final String DATE_ELEMENT = "date";
-    private static final String USERPERMIT_ELEMENT = "userpermit";
-    private static final String DATASERVER_ELEMENT = "dataserver";
-    private static final String PRODUCT_ELEMENT = "product";
+    private final S100PermitRegistry permits = new S100PermitRegistry();
 
-    private static final String ID_ATTRIBUTE = "id";
+    // created on first use, the HW_ID is not validated by the constructors
+    private volatile S100DataKeyBatch dataKeys;
 
-    private static final String HEADER_DATE_FORMAT = "yyyyMMdd hh:mm:ss";
+    public static final String PERMIT_DOT_XML = "PERMIT.XML";
 
     public S100PermitFile(String dataserver, String hwId, String userPermitString) {
         this.dataserver = dataserver;
@@ -50,65 +38,95 @@ public class S100PermitFile {
 
     public S100PermitFile(S100ManufacturerLookup manufacturerLookup, InputStream in)
             throws IOException, XMLStreamException {
-        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
-
-        Date date = null;
-        S100UserPermit userPermit = null;
-        String dataServer = null;
-        S100ProductSpecification currentProductSpecification = null;
-        DateFormat expiryDateFormat = new SimpleDateFormat(S100DataPermit.EXPIRY_DATE_FORMAT);
+        this(manufacturerLookup, in, false);
+    }
 
-        XMLStreamReader streamReader = null;
-        try {
-            streamReader = inputFactory.createXMLStreamReader(in);
-
-            while (streamReader.hasNext()) {
-                int e = streamReader.next();
-                if (e == XMLStreamConstants.START_ELEMENT) {
-                    String localName = streamReader.getLocalName();
-                    if (DATE_ELEMENT.equals(localName)) {
-                        try {
-                            date = new SimpleDateFormat(HEADER_DATE_FORMAT)
-                                    .parse(XMLUtils.readCharacters(streamReader));
-                        } catch (ParseException e1) {
-                            throw new IOException(e1);
-                        }
-                    } else if (USERPERMIT_ELEMENT.equals(localName)) {
-                        userPermit = new S100UserPermit(XMLUtils.readCharacters(streamReader));
-                    } else if (DATASERVER_ELEMENT.equals(localName)) {
-                        dataServer = XMLUtils.readCharacters(streamReader);
-                    } else if (PRODUCT_ELEMENT.equals(localName)) {
-                        currentProductSpecification = new S100ProductSpecification(
-                                streamReader.getAttributeValue(null, ID_ATTRIBUTE));
-                    } else if (currentProductSpecification != null && (S100DataPermit.PERMIT_ELEMENT.equals(localName)
-                            || S100DataPermit.DATASET_PERMIT_ELEMENT.equals(localName))) {
-                        permitsByProductSpecification.put(currentProductSpecification,
-                                new S100DataPermit(currentProductSpecification, expiryDateFormat, streamReader));
-                    }
+    /**
+     * PERMIT.XML을 읽습니다.
+     * 
+     * @param manufacturerLookup 사용자 permit의 M_ID로 제조사를 찾을 lookup
+     * @param in PERMIT.XML 입력 스트림
+     * @param parallel true이면 문서 전체를 읽은 뒤 {@link S100PermitFileParallelParser}로 데이터셋
+     *            permit을 병렬 파싱합니다. 결과는 순차 파싱과 같습니다.
+     * @throws IOException 읽기 오류 또는 날짜 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public S100PermitFile(S100ManufacturerLookup manufacturerLookup, InputStream in, boolean parallel)
+            throws IOException, XMLStreamException {
+        S100PermitFileHeader header;
+        if (parallel) {
+            byte[] xml = in.readAllBytes();
+            try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(xml))) {
+                header = parser.getHeader();
+            }
+            addAll(S100PermitFileParallelParser.parsePermits(xml));
+        } else {
+            try (S100PermitFileParser parser = new S100PermitFileParser(in)) {
+                header = parser.getHeader();
+                S100DataPermit dataPermit;
+                while ((dataPermit = parser.nextPermit()) != null) {
+                    add(dataPermit);
                 }
             }
+        }
+
+        S100UserPermit userPermit = header.getUserPermit();
+        this.date = header.getDate();
+        this.dataserver = header.getDataserver();
+        this.userPermitString = userPermit.getUserPermitString();
+        this.hwId = decryptHwId(manufacturerLookup, userPermit);
+    }
+
+    /**
+     * PERMIT.XML 파일을 메모리에 매핑해 {@link S100PermitFileScanner}로 읽습니다.
+     *
+     * @param manufacturerLookup 사용자 permit의 M_ID로 제조사를 찾을 lookup
+     * @param permitXml PERMIT.XML 파일
+     * @throws IOException 읽기 오류 또는 날짜 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public S100PermitFile(S100ManufacturerLookup manufacturerLookup, Path permitXml)
+            throws IOException, XMLStreamException {
+        S100PermitFileHeader[] header = new S100PermitFileHeader[1];
+        S100PermitFileScanner.parse(permitXml, new S100PermitFileParser.Visitor() {
+
+            @Override
+            public void header(S100PermitFileHeader h) {
+                header[0] = h;
+            }
 
-        } finally {
-            if (streamReader != null) {
-                streamReader.close();
+            @Override
+            public boolean permit(S100DataPermit dataPermit) {
+                add(dataPermit);
+                return true;
             }
-        }
+        });
+
+        S100UserPermit userPermit = header[0].getUserPermit();
+        this.date = header[0].getDate();
+        this.dataserver = header[0].getDataserver();
+        this.userPermitString = userPermit.getUserPermitString();
+        this.hwId = decryptHwId(manufacturerLookup, userPermit);
+    }
+
+    S100PermitFile(Date date, String dataserver, String hwId, String userPermitString) {
+        this.date = date;
+        this.dataserver = dataserver;
+        this.hwId = hwId;
+        this.userPermitString = userPermitString;
+    }
 
+    static String decryptHwId(S100ManufacturerLookup manufacturerLookup, S100UserPermit userPermit) {
         S100Manufacturer m = manufacturerLookup.manufacturerForMId(userPermit.getMId());
         if (m == null) {
             throw new IllegalStateException("Unknown manufacturer. M_ID=" + userPermit.getMId());
         }
 
-        this.date = date;
-        this.dataserver = dataServer;
-        this.userPermitString = userPermit.getUserPermitString();
-
         try {
-            this.hwId = m.decrypt(userPermit.getHwIdEncrypted());
+            return m.decrypt(userPermit.getHwIdEncrypted());
         } catch (GeneralSecurityException e) {
             throw new IllegalStateException("Could not decrypt HW_ID from S-100 user permit");
         }
-
     }
 
     public String getUserPermitString() {
@@ -123,29 +141,121 @@ public class S100PermitFile {
         return dataserver;
     }
 
+    void setHeader(Date date, String dataserver) {
+        this.date = date;
+        this.dataserver = dataserver;
+    }
+
     public void add(String fileName, int edtn, Date permitEndDate, String cryptKey,
             S100ProductSpecification productSpecification) throws GeneralSecurityException {
         add(S100DataPermit.create(fileName, edtn, permitEndDate, cryptKey, hwId,
                 productSpecification));
     }
 
+    /**
+     * permit을 추가합니다. 파일 이름이 같은 permit이 있으면 대체합니다.
+     */
     public void add(S100DataPermit dataPermit) {
-        permitsByProductSpecification.put(dataPermit.getProductSpecification(), dataPermit);
+        permits.add(dataPermit);
     }
 
     public void addAll(Collection<S100DataPermit> dataPermits) {
-        for (S100DataPermit dataPermit : dataPermits) {
-            add(dataPermit);
-        }
+        permits.addAll(dataPermits);
     }
 
+    /**
+     * @return 파일 이름 순으로 정렬된 해당 제품 사양의 permit들
+     */
     public Collection<S100DataPermit> get(S100ProductSpecification productSpecification) {
-        return Collections
-                .unmodifiableCollection(permitsByProductSpecification.get(productSpecification));
+        return permits.sorted(productSpecification);
     }
 
+    /**
+     * @return 제품 사양, 파일 이름 순으로 정렬된 모든 permit
+     */
     public Collection<S100DataPermit> getDataPermits() {
-        return Collections.unmodifiableCollection(permitsByProductSpecification.values());
+        return permits.sorted();
+    }
+
+    /**
+     * 데이터셋을 암호화하거나 복호화할 crypt를 돌려줍니다. 데이터 키는 처음 요청할 때 HW_ID로 복호화해
+     * permit에 보관하고 이후에는 다시 복호화하지 않습니다.
+     *
+     * @param dataPermit 이 permit 파일의 HW_ID로 암호화된 permit
+     * @return 데이터 키로 만든 crypt
+     * @throws GeneralSecurityException 데이터 키를 복호화할 수 없는 경우
+     */
+    public S100Crypt.RandomIV getDatasetCrypt(S100DataPermit dataPermit) throws GeneralSecurityException {
+        S100Crypt.RandomIV crypt = dataPermit.getDatasetCrypt(hwId);
+        if (crypt == null) {
+            // racing threads decrypt the same key
+            byte[] dataKey = dataKeys().unwrap(Hex.fromString(dataPermit.getEncryptedDataKey()));
+            crypt = new S100Crypt.RandomIV(Hex.toString(dataKey));
+            dataPermit.setDatasetCrypt(hwId, crypt);
+        }
+        return crypt;
+    }
+
+    /**
+     * @param fileName 데이터셋 파일 이름
+     * @return 해당 데이터셋의 crypt. permit이 없으면 null
+     * @throws GeneralSecurityException 데이터 키를 복호화할 수 없는 경우
+     */
+    public S100Crypt.RandomIV getDatasetCrypt(String fileName) throws GeneralSecurityException {
+        S100DataPermit dataPermit = permits.getByFileName(fileName);
+        return dataPermit == null ? null : getDatasetCrypt(dataPermit);
+    }
+
+    /**
+     * @param dataPermit 이 permit 파일의 HW_ID로 암호화된 permit
+     * @return 16진수로 인코딩된 평문 데이터 키
+     * @throws GeneralSecurityException 데이터 키를 복호화할 수 없는 경우
+     */
+    public String getDataKey(S100DataPermit dataPermit) throws GeneralSecurityException {
+        return getDatasetCrypt(dataPermit).getKey();
+    }
+
+    /**
+     * 아직 복호화하지 않은 모든 데이터 키를 한 번에 병렬로 복호화해 둡니다. 파싱 직후 호출하면 이후
+     * 데이터셋을 열 때 키 복호화 비용이 없습니다.
+     *
+     * @throws GeneralSecurityException 데이터 키를 복호화할 수 없는 경우
+     */
+    public void prewarmDataKeys() throws GeneralSecurityException {
+        List<S100DataPermit> cold = new ArrayList<>();
+        for (S100DataPermit dataPermit : permits.sorted()) {
+            if (dataPermit.getDatasetCrypt(hwId) == null) {
+                cold.add(dataPermit);
+            }
+        }
+        if (cold.isEmpty()) {
+            return;
+        }
+        String[] encryptedKeys = new String[cold.size()];
+        for (int i = 0; i < encryptedKeys.length; i++) {
+            encryptedKeys[i] = cold.get(i).getEncryptedDataKey();
+        }
+        String[] dataKeys = S100DataKeyBatch
+                .toHex(dataKeys().unwrapParallel(S100DataKeyBatch.fromHex(encryptedKeys)));
+        for (int i = 0; i < dataKeys.length; i++) {
+            cold.get(i).setDatasetCrypt(hwId, new S100Crypt.RandomIV(dataKeys[i]));
+        }
+    }
+
+    private S100DataKeyBatch dataKeys() {
+        S100DataKeyBatch batch = dataKeys;
+        if (batch == null) {
+            batch = new S100DataKeyBatch(hwId);
+            dataKeys = batch;
+        }
+        return batch;
+    }
+
+    /**
+     * @return 파일 이름, 데이터셋 id 등으로 permit을 찾을 수 있는 저장소
+     */
+    public S100PermitRegistry getRegistry() {
+        return permits;
     }
 
 }
@@ -0,0 +1,284 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * 같은 사용자 permit에 대한 두 permit 파일의 차이.
+ * <p>
+ * 새로 추가된 permit, 없어진 permit, 그리고 파일 이름은 같지만 판 번호, 암호화된 키, 만료일 또는 제품
+ * 사양이 바뀐 permit을 구분합니다. 한 permit이 여러 항목에 동시에 속할 수 있습니다. 새 파일의 발행일과 데이터 서버도
+ * 보관합니다. {@link #apply(S100PermitFile)}로 기존 permit 파일을 다시 만들지 않고 바뀐 permit과 헤더만
+ * 반영하며, {@link #getChangedFileNames()}는 데이터셋을 다시 복호화해야 하는 파일 이름만 돌려줍니다.
+ */
+public final class S100PermitFileDelta {
+
+    private final List<S100DataPermit> added = new ArrayList<>();
+    private final List<S100DataPermit> removed = new ArrayList<>();
+    private final List<Change> editionChanged = new ArrayList<>();
+    private final List<Change> keyChanged = new ArrayList<>();
+    private final List<Change> expiryChanged = new ArrayList<>();
+    private final List<Change> productChanged = new ArrayList<>();
+    private final Date date;
+    private final String dataserver;
+    private final boolean headerChanged;
+
+    private S100PermitFileDelta(S100PermitFile from, S100PermitFileHeader to, Map<String, S100DataPermit> permits) {
+        this(from, to.getDate(), to.getDataserver(), permits);
+    }
+
+    private S100PermitFileDelta(S100PermitFile from, Date date, String dataserver,
+            Map<String, S100DataPermit> to) {
+        this.date = date;
+        this.dataserver = dataserver;
+        this.headerChanged = !Objects.equals(from.getDate(), date) || !Objects.equals(from.getDataserver(), dataserver);
+        S100PermitRegistry registry = from.getRegistry();
+        synchronized (registry) {
+            compare(registry, to);
+        }
+    }
+
+    private void compare(S100PermitRegistry from, Map<String, S100DataPermit> to) {
+        for (S100DataPermit dataPermit : to.values()) {
+            S100DataPermit previous = from.getByFileName(dataPermit.getFileName());
+            if (previous == null) {
+                added.add(dataPermit);
+                continue;
+            }
+            Change change = new Change(previous, dataPermit);
+            if (previous.getEdtn() != dataPermit.getEdtn()) {
+                editionChanged.add(change);
+            }
+            if (!previous.getEncryptedDataKey().equals(dataPermit.getEncryptedDataKey())) {
+                keyChanged.add(change);
+            }
+            if (!Objects.equals(previous.getPermitEndDate(), dataPermit.getPermitEndDate())) {
+                expiryChanged.add(change);
+            }
+            if (!Objects.equals(previous.getProductSpecification(), dataPermit.getProductSpecification())) {
+                productChanged.add(change);
+            }
+        }
+        for (S100DataPermit dataPermit : from.sorted()) {
+            if (!to.containsKey(dataPermit.getFileName())) {
+                removed.add(dataPermit);
+            }
+        }
+    }
+
+    /**
+     * @param from 기존 permit 파일
+     * @param to 새 permit 파일
+     * @return from을 to로 바꾸는 차이
+     * @throws IllegalArgumentException 두 파일의 사용자 permit이 다른 경우
+     */
+    public static S100PermitFileDelta diff(S100PermitFile from, S100PermitFile to) {
+        checkUserPermit(from, to.getUserPermitString());
+        Map<String, S100DataPermit> permits = new LinkedHashMap<>();
+        for (S100DataPermit dataPermit : to.getDataPermits()) {
+            permits.put(dataPermit.getFileName(), dataPermit);
+        }
+        return new S100PermitFileDelta(from, to.getDate(), to.getDataserver(), permits);
+    }
+
+    /**
+     * 새 PERMIT.XML을 {@link S100PermitFile}로 만들지 않고 읽으면서 비교합니다.
+     *
+     * @param from 기존 permit 파일
+     * @param in 새 PERMIT.XML 입력 스트림
+     * @return from을 새 PERMIT.XML로 바꾸는 차이
+     * @throws IOException 읽기 오류 또는 날짜 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     * @throws IllegalArgumentException 새 PERMIT.XML의 사용자 permit이 다른 경우
+     */
+    public static S100PermitFileDelta diff(S100PermitFile from, InputStream in)
+            throws IOException, XMLStreamException {
+        Map<String, S100DataPermit> permits = new LinkedHashMap<>();
+        S100PermitFileHeader header;
+        try (S100PermitFileParser parser = new S100PermitFileParser(in)) {
+            header = parser.getHeader();
+            checkUserPermit(from, header.getUserPermit().getUserPermitString());
+            S100DataPermit dataPermit;
+            while ((dataPermit = parser.nextPermit()) != null) {
+                // a later permit for the same file replaces the earlier one
+                permits.remove(dataPermit.getFileName());
+                permits.put(dataPermit.getFileName(), dataPermit);
+            }
+        }
+        return new S100PermitFileDelta(from, header, permits);
+    }
+
+    private static void checkUserPermit(S100PermitFile from, String userPermitString) {
+        // encrypted keys are only comparable for the same HW_ID
+        if (!from.getUserPermitString().equals(userPermitString)) {
+            throw new IllegalArgumentException(
+                    "Permit files are for different user permits: " + from.getUserPermitString() + ", "
+                            + userPermitString);
+        }
+    }
+
+    /**
+     * 차이를 permit 파일에 반영합니다. 없어진 permit은 제거하고, 추가되거나 바뀐 permit은 새 permit으로
+     * 대체하며, 발행일과 데이터 서버를 새 파일의 값으로 바꿉니다.
+     *
+     * @param permitFile 반영할 permit 파일. 보통 차이를 계산한 기존 permit 파일
+     */
+    public void apply(S100PermitFile permitFile) {
+        S100PermitRegistry registry = permitFile.getRegistry();
+        // readers see either the old or the new permits
+        synchronized (registry) {
+            for (S100DataPermit dataPermit : removed) {
+                registry.remove(dataPermit.getFileName());
+            }
+            for (S100DataPermit dataPermit : added) {
+                registry.add(dataPermit);
+            }
+            for (S100DataPermit dataPermit : getChangedPermits()) {
+                registry.add(dataPermit);
+            }
+            permitFile.setHeader(date, dataserver);
+        }
+    }
+
+    /**
+     * @return 새 파일의 발행일
+     */
+    public Date getDate() {
+        return date;
+    }
+
+    /**
+     * @return 새 파일의 데이터 서버
+     */
+    public String getDataserver() {
+        return dataserver;
+    }
+
+    /**
+     * @return 발행일 또는 데이터 서버가 바뀌었으면 true
+     */
+    public boolean isHeaderChanged() {
+        return headerChanged;
+    }
+
+    /**
+     * @return 추가된 permit들
+     */
+    public List<S100DataPermit> getAdded() {
+        return Collections.unmodifiableList(added);
+    }
+
+    /**
+     * @return 없어진 permit들
+     */
+    public List<S100DataPermit> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * @return 판 번호가 바뀐 permit들
+     */
+    public List<Change> getEditionChanged() {
+        return Collections.unmodifiableList(editionChanged);
+    }
+
+    /**
+     * @return 암호화된 데이터 키가 바뀐 permit들
+     */
+    public List<Change> getKeyChanged() {
+        return Collections.unmodifiableList(keyChanged);
+    }
+
+    /**
+     * @return 만료일이 바뀐 permit들
+     */
+    public List<Change> getExpiryChanged() {
+        return Collections.unmodifiableList(expiryChanged);
+    }
+
+    /**
+     * @return 제품 사양이 바뀐 permit들
+     */
+    public List<Change> getProductChanged() {
+        return Collections.unmodifiableList(productChanged);
+    }
+
+    /**
+     * @return 파일 이름이 같고 내용이 바뀐 새 permit들
+     */
+    public Set<S100DataPermit> getChangedPermits() {
+        Set<S100DataPermit> changed = new LinkedHashSet<>();
+        for (List<Change> changes : List.of(editionChanged, keyChanged, expiryChanged, productChanged)) {
+            for (Change change : changes) {
+                changed.add(change.getCurrent());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 만료일만 바뀐 permit은 데이터셋을 다시 처리할 필요가 없으므로 포함하지 않습니다.
+     *
+     * @return 추가되었거나 판 번호, 키 또는 제품 사양이 바뀐 데이터셋의 파일 이름
+     */
+    public Set<String> getChangedFileNames() {
+        Set<String> fileNames = new LinkedHashSet<>();
+        for (S100DataPermit dataPermit : added) {
+            fileNames.add(dataPermit.getFileName());
+        }
+        for (List<Change> changes : List.of(editionChanged, keyChanged, productChanged)) {
+            for (Change change : changes) {
+                fileNames.add(change.getCurrent().getFileName());
+            }
+        }
+        return fileNames;
+    }
+
+    public boolean isEmpty() {
+        return !headerChanged && added.isEmpty() && removed.isEmpty() && editionChanged.isEmpty()
+                && keyChanged.isEmpty() && expiryChanged.isEmpty() && productChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + added.size() + ", removed=" + removed.size() + ", editionChanged="
+                + editionChanged.size() + ", keyChanged=" + keyChanged.size() + ", expiryChanged="
+                + expiryChanged.size() + ", productChanged=" + productChanged.size() + ", headerChanged="
+                + headerChanged;
+    }
+
+    /**
+     * 파일 이름이 같은 기존 permit과 새 permit.
+     */
+    public static final class Change {
+
+        private final S100DataPermit previous;
+        private final S100DataPermit current;
+
+        private Change(S100DataPermit previous, S100DataPermit current) {
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public S100DataPermit getPrevious() {
+            return previous;
+        }
+
+        public S100DataPermit getCurrent() {
+            return current;
+        }
+
+    }
+
+}
@@ -0,0 +1,41 @@
+package no.ecc.s100.security;
+
+import java.util.Date;
+
+/**
+ * PERMIT.XML의 헤더. {@link S100PermitFileParser}가 데이터셋 permit보다 먼저 전달합니다.
+ */
+public final class S100PermitFileHeader {
+
+    private final Date date;
+    private final String dataserver;
+    private final S100UserPermit userPermit;
+
+    public S100PermitFileHeader(Date date, String dataserver, S100UserPermit userPermit) {
+        this.date = date;
+        this.dataserver = dataserver;
+        this.userPermit = userPermit;
+    }
+
+    /**
+     * @return 헤더의 날짜. 파일에 없으면 null
+     */
+    public Date getDate() {
+        return date;
+    }
+
+    /**
+     * @return 데이터 서버. 파일에 없으면 null
+     */
+    public String getDataserver() {
+        return dataserver;
+    }
+
+    /**
+     * @return 사용자 permit. 파일에 없으면 null
+     */
+    public S100UserPermit getUserPermit() {
+        return userPermit;
+    }
+
+}
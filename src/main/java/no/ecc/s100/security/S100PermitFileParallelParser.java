@@ -0,0 +1,323 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * 큰 PERMIT.XML의 데이터셋 permit을 여러 코어에서 나누어 파싱하는 클래스.
+ * <p>
+ * 문서를 바이트 단위로 훑어 product 안의 permit 요소 경계에서 조각으로 나눕니다. 각 조각은 원래의 XML
+ * 선언과 상위 요소 시작 태그(네임스페이스 선언 포함)로 감싸 독립된 문서로 만들고
+ * {@link S100PermitFileScanner}로 병렬 파싱한 뒤 문서 순서대로 합칩니다. 결과는 순차 파싱과
+ * 같습니다. DOCTYPE이 있거나 UTF-8 호환이 아닌 인코딩이거나 product 밖에 permit이 있는 등 안전하게
+ * 나눌 수 없는 문서는 순차 파싱합니다.
+ */
+public final class S100PermitFileParallelParser {
+
+    /**
+     * 이보다 작은 문서는 항상 순차 파싱합니다.
+     */
+    public static final int PARALLEL_PARSE_THRESHOLD = 1024 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    // chunks per worker thread, to even out uneven products
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    private static final byte[] PRODUCT = "product".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PERMIT = S100DataPermit.PERMIT_ELEMENT.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATASET_PERMIT = S100DataPermit.DATASET_PERMIT_ELEMENT
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private S100PermitFileParallelParser() {
+
+    }
+
+    /**
+     * 공용 {@link ForkJoinPool}에서 데이터셋 permit을 병렬로 파싱합니다.
+     *
+     * @param xml PERMIT.XML 내용
+     * @return 문서 순서대로의 데이터셋 permit
+     * @throws IOException 만료일 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static List<S100DataPermit> parsePermits(byte[] xml) throws IOException, XMLStreamException {
+        return parsePermits(xml, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 주어진 {@link ForkJoinPool}에서 데이터셋 permit을 병렬로 파싱합니다.
+     *
+     * @param xml PERMIT.XML 내용
+     * @param pool 파싱에 사용할 스레드 풀
+     * @return 문서 순서대로의 데이터셋 permit
+     * @throws IOException 만료일 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static List<S100DataPermit> parsePermits(byte[] xml, ForkJoinPool pool)
+            throws IOException, XMLStreamException {
+        if (xml.length < PARALLEL_PARSE_THRESHOLD || pool.getParallelism() < 2) {
+            return parseSequential(xml);
+        }
+        return parsePermits(xml, pool,
+                Math.max(MIN_CHUNK_SIZE, xml.length / (pool.getParallelism() * CHUNKS_PER_THREAD)));
+    }
+
+    static List<S100DataPermit> parsePermits(byte[] xml, ForkJoinPool pool, int chunkSize)
+            throws IOException, XMLStreamException {
+        List<byte[]> chunks = split(xml, chunkSize);
+        if (chunks == null || chunks.size() < 2) {
+            return parseSequential(xml);
+        }
+
+        List<List<S100DataPermit>> parsed = S100Parallel.call(() -> pool.submit(() -> chunks.parallelStream()
+                .map(chunk -> S100Parallel.unchecked(() -> parseSequential(chunk)))
+                .collect(Collectors.toList())).join(), IOException.class, XMLStreamException.class);
+
+        List<S100DataPermit> result = new ArrayList<>();
+        for (List<S100DataPermit> dataPermits : parsed) {
+            result.addAll(dataPermits);
+        }
+        return result;
+    }
+
+    private static List<S100DataPermit> parseSequential(byte[] xml) throws IOException, XMLStreamException {
+        return S100PermitFileScanner.parsePermits(ByteBuffer.wrap(xml));
+    }
+
+    /**
+     * Split the document into stand alone documents of roughly chunkSize bytes
+     * of permit elements each.
+     *
+     * @return the chunks in document order, or null if the document can not be
+     *         split safely.
+     */
+    static List<byte[]> split(byte[] xml, int chunkSize) {
+        int length = xml.length;
+        if (length >= 2 && ((xml[0] & 0xFF) == 0xFE || (xml[0] & 0xFF) == 0xFF)) {
+            // UTF-16 byte order mark
+            return null;
+        }
+
+        int pos = 0;
+        if (length >= 3 && (xml[0] & 0xFF) == 0xEF && (xml[1] & 0xFF) == 0xBB && (xml[2] & 0xFF) == 0xBF) {
+            // UTF-8 byte order mark
+            pos = 3;
+        }
+        byte[] declaration = new byte[0];
+        if (startsWith(xml, pos, "<?xml")) {
+            int end = indexOf(xml, "?>", pos);
+            if (end < 0) {
+                return null;
+            }
+            declaration = Arrays.copyOfRange(xml, pos, end + 2);
+            String encoding = encoding(new String(declaration, StandardCharsets.US_ASCII));
+            if (encoding != null && !encoding.equals("utf-8") && !encoding.equals("us-ascii")) {
+                return null;
+            }
+            pos = end + 2;
+        }
+
+        // open elements as { tag start, tag end, name start, name end }
+        List<int[]> stack = new ArrayList<>();
+        List<byte[]> chunks = new ArrayList<>();
+        int[][] groupAncestors = null;
+        int groupStart = -1;
+        int groupEnd = -1;
+        int permitDepth = -1;
+
+        while (true) {
+            int lt = indexOf(xml, (byte) '<', pos);
+            if (lt < 0) {
+                break;
+            }
+            if (startsWith(xml, lt, "<!--")) {
+                pos = indexOf(xml, "-->", lt + 4);
+                if (pos < 0) {
+                    return null;
+                }
+                pos += 3;
+            } else if (startsWith(xml, lt, "<![CDATA[")) {
+                pos = indexOf(xml, "]]>", lt + 9);
+                if (pos < 0) {
+                    return null;
+                }
+                pos += 3;
+            } else if (startsWith(xml, lt, "<!")) {
+                // a DOCTYPE may declare entities
+                return null;
+            } else if (startsWith(xml, lt, "<?")) {
+                pos = indexOf(xml, "?>", lt + 2);
+                if (pos < 0) {
+                    return null;
+                }
+                pos += 2;
+            } else if (startsWith(xml, lt, "</")) {
+                int gt = indexOf(xml, (byte) '>', lt);
+                if (gt < 0 || stack.isEmpty()) {
+                    return null;
+                }
+                stack.remove(stack.size() - 1);
+                if (stack.size() == permitDepth) {
+                    permitDepth = -1;
+                    groupEnd = gt + 1;
+                    if (groupEnd - groupStart >= chunkSize) {
+                        chunks.add(chunk(xml, declaration, groupAncestors, groupStart, groupEnd));
+                        groupStart = -1;
+                    }
+                }
+                pos = gt + 1;
+            } else {
+                int nameEnd = lt + 1;
+                while (nameEnd < length && !isNameEnd(xml[nameEnd])) {
+                    nameEnd++;
+                }
+                int gt = tagEnd(xml, nameEnd);
+                if (gt < 0) {
+                    return null;
+                }
+                boolean empty = xml[gt - 1] == '/';
+                int[] tag = new int[] { lt, gt + 1, lt + 1, nameEnd };
+
+                if (permitDepth < 0 && (isLocalName(xml, tag, PERMIT) || isLocalName(xml, tag, DATASET_PERMIT))) {
+                    if (stack.isEmpty() || !isLocalName(xml, stack.get(stack.size() - 1), PRODUCT)) {
+                        // the sequential parser would give it the product
+                        // seen last
+                        return null;
+                    }
+                    int[] product = stack.get(stack.size() - 1);
+                    if (groupStart >= 0 && groupAncestors[groupAncestors.length - 1][0] != product[0]) {
+                        chunks.add(chunk(xml, declaration, groupAncestors, groupStart, groupEnd));
+                        groupStart = -1;
+                    }
+                    if (groupStart < 0) {
+                        groupAncestors = stack.toArray(new int[0][]);
+                        groupStart = lt;
+                    }
+                    if (empty) {
+                        groupEnd = gt + 1;
+                    } else {
+                        permitDepth = stack.size();
+                    }
+                }
+                if (!empty) {
+                    stack.add(tag);
+                }
+                pos = gt + 1;
+            }
+        }
+
+        if (!stack.isEmpty() || permitDepth >= 0) {
+            return null;
+        }
+        if (groupStart >= 0) {
+            chunks.add(chunk(xml, declaration, groupAncestors, groupStart, groupEnd));
+        }
+        return chunks;
+    }
+
+    private static byte[] chunk(byte[] xml, byte[] declaration, int[][] ancestors, int start, int end) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(declaration.length + end - start + 512);
+        out.write(declaration, 0, declaration.length);
+        for (int[] tag : ancestors) {
+            out.write(xml, tag[0], tag[1] - tag[0]);
+        }
+        out.write(xml, start, end - start);
+        for (int i = ancestors.length - 1; i >= 0; i--) {
+            int[] tag = ancestors[i];
+            out.write('<');
+            out.write('/');
+            out.write(xml, tag[2], tag[3] - tag[2]);
+            out.write('>');
+        }
+        return out.toByteArray();
+    }
+
+    private static String encoding(String declaration) {
+        Matcher m = ENCODING.matcher(declaration);
+        return m.find() ? m.group(1).toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * @return the position of the '>' ending the tag, skipping quoted attribute
+     *         values.
+     */
+    private static int tagEnd(byte[] xml, int pos) {
+        byte quote = 0;
+        for (int i = pos; i < xml.length; i++) {
+            byte b = xml[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '/' || b == '>';
+    }
+
+    private static boolean isLocalName(byte[] xml, int[] tag, byte[] localName) {
+        int nameStart = tag[2];
+        int nameEnd = tag[3];
+        for (int i = nameStart; i < nameEnd; i++) {
+            if (xml[i] == ':') {
+                nameStart = i + 1;
+            }
+        }
+        return nameEnd - nameStart == localName.length
+                && Arrays.equals(xml, nameStart, nameEnd, localName, 0, localName.length);
+    }
+
+    private static boolean startsWith(byte[] xml, int pos, String prefix) {
+        if (pos + prefix.length() > xml.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (xml[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] xml, byte b, int from) {
+        for (int i = from; i < xml.length; i++) {
+            if (xml[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] xml, String s, int from) {
+        byte first = (byte) s.charAt(0);
+        for (int i = indexOf(xml, first, from); i >= 0; i = indexOf(xml, first, i + 1)) {
+            if (startsWith(xml, i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
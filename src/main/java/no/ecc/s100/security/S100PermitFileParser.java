@@ -0,0 +1,232 @@
+package no.ecc.s100.security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.XMLUtils;
+
+/**
+ * PERMIT.XML을 읽는 즉시 데이터셋 permit을 하나씩 전달하는 스트리밍 파서.
+ * <p>
+ * 생성할 때 첫 product 요소까지 읽어 {@link #getHeader()}를 만들고, 이후 permit은
+ * {@link #nextPermit()}, {@link Iterator} 또는 {@link #visit(Visitor)}로 요청할 때마다 읽습니다. 읽은
+ * permit을 보관하지 않으므로 파일 크기와 관계없이 메모리 사용량이 일정하고, 필요한 permit을 찾으면
+ * 중간에 멈출 수 있습니다. 입력 스트림은 호출자가 닫습니다.
+ */
+public final class S100PermitFileParser implements Iterator<S100DataPermit>, Closeable {
+
+    static final String DATE_ELEMENT = "date";
+    static final String USERPERMIT_ELEMENT = "userpermit";
+    static final String DATASERVER_ELEMENT = "dataserver";
+    static final String PRODUCT_ELEMENT = "product";
+
+    static final String ID_ATTRIBUTE = "id";
+
+    static final String HEADER_DATE_FORMAT = "yyyyMMdd hh:mm:ss";
+
+    // looking up the implementation is expensive. creating readers from a
+    // configured factory is thread safe.
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private final XMLStreamReader streamReader;
+    private final DateFormat expiryDateFormat = new SimpleDateFormat(S100DataPermit.EXPIRY_DATE_FORMAT);
+    private final S100PermitFileHeader header;
+
+    private S100ProductSpecification currentProductSpecification;
+
+    // read ahead by hasNext()
+    private S100DataPermit next;
+    private boolean end;
+
+    /**
+     * PERMIT.XML의 헤더까지 읽습니다.
+     *
+     * @param in PERMIT.XML 입력 스트림
+     * @throws IOException 헤더의 날짜 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public S100PermitFileParser(InputStream in) throws IOException, XMLStreamException {
+        this.streamReader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            this.header = readHeader();
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            streamReader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * PERMIT.XML을 끝까지 또는 visitor가 멈출 때까지 읽습니다.
+     *
+     * @param in PERMIT.XML 입력 스트림
+     * @param visitor 헤더와 permit을 받을 visitor
+     * @throws IOException 날짜 형식이 잘못된 경우 또는 visitor의 입출력 오류 시
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static void parse(InputStream in, Visitor visitor) throws IOException, XMLStreamException {
+        try (S100PermitFileParser parser = new S100PermitFileParser(in)) {
+            parser.visit(visitor);
+        }
+    }
+
+    /**
+     * Read up to and including the start of the first product element.
+     */
+    private S100PermitFileHeader readHeader() throws IOException, XMLStreamException {
+        Date date = null;
+        S100UserPermit userPermit = null;
+        String dataServer = null;
+
+        while (streamReader.hasNext()) {
+            int e = streamReader.next();
+            if (e == XMLStreamConstants.START_ELEMENT) {
+                String localName = streamReader.getLocalName();
+                if (DATE_ELEMENT.equals(localName)) {
+                    try {
+                        date = new SimpleDateFormat(HEADER_DATE_FORMAT).parse(XMLUtils.readCharacters(streamReader));
+                    } catch (ParseException e1) {
+                        throw new IOException(e1);
+                    }
+                } else if (USERPERMIT_ELEMENT.equals(localName)) {
+                    userPermit = new S100UserPermit(XMLUtils.readCharacters(streamReader));
+                } else if (DATASERVER_ELEMENT.equals(localName)) {
+                    dataServer = XMLUtils.readCharacters(streamReader);
+                } else if (PRODUCT_ELEMENT.equals(localName)) {
+                    startProduct();
+                    break;
+                }
+            }
+        }
+
+        return new S100PermitFileHeader(date, dataServer, userPermit);
+    }
+
+    private void startProduct() {
+        currentProductSpecification = new S100ProductSpecification(
+                streamReader.getAttributeValue(null, ID_ATTRIBUTE));
+    }
+
+    public S100PermitFileHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * 다음 데이터셋 permit을 읽습니다.
+     *
+     * @return 다음 permit. 파일 끝이면 null
+     * @throws IOException 만료일 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public S100DataPermit nextPermit() throws IOException, XMLStreamException {
+        if (next != null) {
+            S100DataPermit permit = next;
+            next = null;
+            return permit;
+        }
+        while (streamReader.hasNext()) {
+            int e = streamReader.next();
+            if (e == XMLStreamConstants.START_ELEMENT) {
+                String localName = streamReader.getLocalName();
+                if (PRODUCT_ELEMENT.equals(localName)) {
+                    startProduct();
+                } else if (currentProductSpecification != null && (S100DataPermit.PERMIT_ELEMENT.equals(localName)
+                        || S100DataPermit.DATASET_PERMIT_ELEMENT.equals(localName))) {
+                    return new S100DataPermit(currentProductSpecification, expiryDateFormat, streamReader);
+                }
+            }
+        }
+        end = true;
+        return null;
+    }
+
+    /**
+     * 헤더를 전달한 뒤 남은 permit을 끝까지 또는 visitor가 false를 반환할 때까지 전달합니다.
+     *
+     * @param visitor 헤더와 permit을 받을 visitor
+     * @throws IOException 만료일 형식이 잘못된 경우 또는 visitor의 입출력 오류 시
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public void visit(Visitor visitor) throws IOException, XMLStreamException {
+        visitor.header(header);
+        S100DataPermit permit;
+        while ((permit = nextPermit()) != null) {
+            if (!visitor.permit(permit)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException 파싱 오류 시
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !end) {
+            try {
+                next = nextPermit();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (XMLStreamException e) {
+                throw new UncheckedIOException(new IOException(e));
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @throws UncheckedIOException 파싱 오류 시
+     */
+    @Override
+    public S100DataPermit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        S100DataPermit permit = next;
+        next = null;
+        return permit;
+    }
+
+    /**
+     * XML 리더를 닫습니다. 입력 스트림은 닫지 않습니다.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            streamReader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * {@link S100PermitFileParser#visit(Visitor)}가 읽은 순서대로 호출하는 콜백.
+     */
+    public interface Visitor {
+
+        /**
+         * 첫 permit보다 먼저 한 번 호출됩니다.
+         */
+        void header(S100PermitFileHeader header) throws IOException;
+
+        /**
+         * @return 계속 읽으려면 true, 멈추려면 false
+         */
+        boolean permit(S100DataPermit permit) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,824 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLStreamException;
+
+import no.ecc.s100.S100ProductSpecification;
+
+/**
+ * PERMIT.XML 전용 바이트 단위 스캐너.
+ * <p>
+ * PERMIT.XML은 구조가 작고 고정되어 있으므로 {@link ByteBuffer}나 매핑된 파일의 바이트를 직접 훑어 헤더와
+ * 데이터셋 permit을 읽습니다. 판 번호와 만료일은 중간 문자열 없이 바이트에서 바로 변환하고, ASCII 텍스트는
+ * 디코더를 거치지 않습니다. 요소 구조와 네임스페이스 접두사를 확인하므로 잘 구성되지 않은 문서를 그대로
+ * 받아들이지 않습니다. permit은 모아 두지 않고 읽는 대로 visitor에 전달하므로 visitor가 중간에 멈출 수
+ * 있습니다.
+ * <p>
+ * 바이트 순서 표시, 인코딩 선언과 DOCTYPE은 첫 요소보다 먼저 확인하므로 UTF-8 호환이 아닌 인코딩이나
+ * 엔티티를 선언할 수 있는 문서는 아무것도 전달하기 전에 {@link S100PermitFileParser}로 읽습니다. 엔티티
+ * 참조, 읽을 텍스트 안의 주석이나 CDATA처럼 스캐너가 다루지 않는 내용이나 잘못된 값을 문서 중간에서
+ * 만나면 {@link S100PermitFileParser}로 처음부터 다시 읽되, 이미 전달한 헤더와 permit은 건너뜁니다.
+ * 스캐너는 {@link S100PermitFileParser}와 같은 값만 전달하므로 결과와 오류는 항상
+ * {@link S100PermitFileParser}와 같습니다.
+ */
+public final class S100PermitFileScanner {
+
+    private static final byte[] PRODUCT = ascii(S100PermitFileParser.PRODUCT_ELEMENT);
+    private static final byte[] DATE = ascii(S100PermitFileParser.DATE_ELEMENT);
+    private static final byte[] USERPERMIT = ascii(S100PermitFileParser.USERPERMIT_ELEMENT);
+    private static final byte[] DATASERVER = ascii(S100PermitFileParser.DATASERVER_ELEMENT);
+    private static final byte[] ID = ascii(S100PermitFileParser.ID_ATTRIBUTE);
+    private static final byte[] PERMIT = ascii(S100DataPermit.PERMIT_ELEMENT);
+    private static final byte[] DATASET_PERMIT = ascii(S100DataPermit.DATASET_PERMIT_ELEMENT);
+    private static final byte[] FILENAME = ascii(S100DataPermit.FILENAME_ELEMENT);
+    private static final byte[] EDITION_NUMBER = ascii(S100DataPermit.EDITION_NUMBER_ELEMENT);
+    private static final byte[] EXPIRY = ascii(S100DataPermit.EXPIRY_ELEMENT);
+    private static final byte[] ENCRYPTED_KEY = ascii(S100DataPermit.ENCRYPTED_KEY_ELEMENT);
+    private static final byte[] XMLNS = ascii("xmlns");
+    private static final byte[] XML = ascii("xml");
+
+    private static final int MAX_ATTRIBUTES = 64;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    private final ByteBuffer xml;
+    private final S100PermitFileParser.Visitor visitor;
+    private final int limit;
+    private final ZoneId zone = TimeZone.getDefault().toZoneId();
+    private int pos;
+
+    // open elements as name start and end
+    private int[] elements = new int[32];
+    private int depth;
+    private boolean rootSeen;
+
+    // declared namespace prefixes, and how many were in scope at each depth
+    private final List<String> prefixes = new ArrayList<>();
+    private int[] prefixCounts = new int[16];
+
+    // attributes of the current start tag as name start, name end, value
+    // start, value end
+    private final int[] attributes = new int[MAX_ATTRIBUTES * 4];
+    private int attributeCount;
+
+    private Date headerDate;
+    private String dataserver;
+    private S100UserPermit userPermit;
+    private boolean inHeader = true;
+    private S100ProductSpecification productSpecification;
+    private byte[] productId;
+
+    // current permit
+    private int permitDepth = -1;
+    private int permitNameStart;
+    private int permitNameEnd;
+    private String fileName;
+    private int edtn;
+    private boolean edtnSeen;
+    private Date permitEndDate;
+    private String encryptedDataKey;
+
+    // the last expiry date decoded as yyyyMMdd, most permits share a few
+    // dates
+    private int lastExpiry = Integer.MIN_VALUE;
+    private long lastEpochMillis;
+
+    // what the visitor has been given, skipped when falling back
+    private boolean headerDelivered;
+    private int delivered;
+    private boolean stopped;
+
+    // collected by scan(ByteBuffer)
+    private List<S100DataPermit> permits;
+
+    private S100PermitFileScanner(ByteBuffer xml, S100PermitFileParser.Visitor visitor) {
+        this.xml = xml;
+        this.visitor = visitor;
+        this.pos = xml.position();
+        this.limit = xml.limit();
+    }
+
+    /**
+     * PERMIT.XML을 끝까지 또는 visitor가 멈출 때까지 읽으면서 헤더와 permit을 visitor에 전달합니다.
+     * 스캐너가 다룰 수 없는 문서는 {@link S100PermitFileParser}로 읽습니다.
+     *
+     * @param xml PERMIT.XML 내용. 위치와 한계는 바뀌지 않습니다.
+     * @param visitor 헤더와 permit을 받을 visitor
+     * @throws IOException 날짜 형식이 잘못된 경우 또는 visitor의 입출력 오류 시
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static void parse(ByteBuffer xml, S100PermitFileParser.Visitor visitor)
+            throws IOException, XMLStreamException {
+        S100PermitFileScanner scanner = new S100PermitFileScanner(xml, visitor);
+        try {
+            scanner.scan();
+        } catch (Fallback e) {
+            scanner.fallback();
+        }
+    }
+
+    /**
+     * PERMIT.XML 파일을 메모리에 매핑해 읽습니다.
+     *
+     * @param permitXml PERMIT.XML 파일
+     * @param visitor 헤더와 permit을 받을 visitor
+     * @throws IOException 읽기 오류 또는 날짜 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static void parse(Path permitXml, S100PermitFileParser.Visitor visitor)
+            throws IOException, XMLStreamException {
+        try (FileChannel channel = FileChannel.open(permitXml, StandardOpenOption.READ)) {
+            parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), visitor);
+        }
+    }
+
+    /**
+     * @param xml PERMIT.XML 내용. 위치와 한계는 바뀌지 않습니다.
+     * @return 문서 순서대로의 데이터셋 permit
+     * @throws IOException 만료일 형식이 잘못된 경우
+     * @throws XMLStreamException XML 파싱 오류 시
+     */
+    public static List<S100DataPermit> parsePermits(ByteBuffer xml) throws IOException, XMLStreamException {
+        List<S100DataPermit> result = new ArrayList<>();
+        parse(xml, new S100PermitFileParser.Visitor() {
+
+            @Override
+            public void header(S100PermitFileHeader header) {
+            }
+
+            @Override
+            public boolean permit(S100DataPermit permit) {
+                result.add(permit);
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * {@link S100PermitFileParser}로 다시 읽지 않고 문서 전체를 스캔합니다.
+     *
+     * @param xml PERMIT.XML 내용. 위치와 한계는 바뀌지 않습니다.
+     * @return 헤더와 permit을 가진 스캐너. 스캐너가 다룰 수 없는 문서이면 null
+     */
+    static S100PermitFileScanner scan(ByteBuffer xml) {
+        List<S100DataPermit> permits = new ArrayList<>();
+        S100PermitFileScanner scanner = new S100PermitFileScanner(xml, new S100PermitFileParser.Visitor() {
+
+            @Override
+            public void header(S100PermitFileHeader header) {
+            }
+
+            @Override
+            public boolean permit(S100DataPermit permit) {
+                permits.add(permit);
+                return true;
+            }
+        });
+        try {
+            scanner.scan();
+        } catch (Fallback e) {
+            return null;
+        } catch (IOException e) {
+            // not thrown by the visitor above
+            throw new IllegalStateException(e);
+        }
+        scanner.permits = permits;
+        return scanner;
+    }
+
+    /**
+     * Read the document again with the StAX parser, skipping the header and
+     * the permits the visitor has already been given.
+     */
+    private void fallback() throws IOException, XMLStreamException {
+        byte[] bytes = new byte[xml.remaining()];
+        xml.duplicate().get(bytes);
+        S100PermitFileParser.parse(new ByteArrayInputStream(bytes), new S100PermitFileParser.Visitor() {
+
+            private int skipped;
+
+            @Override
+            public void header(S100PermitFileHeader header) throws IOException {
+                if (!headerDelivered) {
+                    visitor.header(header);
+                }
+            }
+
+            @Override
+            public boolean permit(S100DataPermit permit) throws IOException {
+                if (skipped < delivered) {
+                    skipped++;
+                    return true;
+                }
+                return visitor.permit(permit);
+            }
+        });
+    }
+
+    S100PermitFileHeader getHeader() {
+        return new S100PermitFileHeader(headerDate, dataserver, userPermit);
+    }
+
+    List<S100DataPermit> getPermits() {
+        return permits;
+    }
+
+    private void scan() throws Fallback, IOException {
+        readDeclaration();
+        while (!stopped) {
+            int lt = skipText();
+            if (lt < 0) {
+                break;
+            }
+            if (startsWith(lt, "<!--")) {
+                pos = indexOf("-->", lt + 4) + 3;
+            } else if (startsWith(lt, "<![CDATA[")) {
+                if (depth == 0) {
+                    throw Fallback.INSTANCE;
+                }
+                pos = indexOf("]]>", lt + 9) + 3;
+            } else if (startsWith(lt, "<!")) {
+                // a DOCTYPE may declare entities
+                throw Fallback.INSTANCE;
+            } else if (startsWith(lt, "<?")) {
+                if (startsWith(lt, "<?xml") && isWhitespace(byteAt(lt + 5))) {
+                    throw Fallback.INSTANCE;
+                }
+                pos = indexOf("?>", lt + 2) + 2;
+            } else if (startsWith(lt, "</")) {
+                endTag(lt);
+            } else {
+                startTag(lt);
+            }
+        }
+        if (stopped) {
+            return;
+        }
+        if (depth != 0 || !rootSeen) {
+            throw Fallback.INSTANCE;
+        }
+        if (!headerDelivered) {
+            // a document without products
+            deliverHeader();
+        }
+    }
+
+    private void deliverHeader() throws IOException {
+        visitor.header(getHeader());
+        headerDelivered = true;
+    }
+
+    private void readDeclaration() throws Fallback {
+        if (limit - pos >= 2 && ((byteAt(pos) & 0xFF) == 0xFE || (byteAt(pos) & 0xFF) == 0xFF)) {
+            // UTF-16 byte order mark
+            throw Fallback.INSTANCE;
+        }
+        if (limit - pos >= 3 && (byteAt(pos) & 0xFF) == 0xEF && (byteAt(pos + 1) & 0xFF) == 0xBB
+                && (byteAt(pos + 2) & 0xFF) == 0xBF) {
+            pos += 3;
+        }
+        if (startsWith(pos, "<?xml") && isWhitespace(byteAt(pos + 5))) {
+            int end = indexOf("?>", pos);
+            Matcher m = ENCODING.matcher(string(pos, end));
+            if (m.find()) {
+                String encoding = m.group(1).toLowerCase(Locale.ROOT);
+                if (!encoding.equals("utf-8") && !encoding.equals("us-ascii")) {
+                    throw Fallback.INSTANCE;
+                }
+            }
+            pos = end + 2;
+        }
+    }
+
+    /**
+     * Skip character data up to the next markup.
+     *
+     * @return the position of the next '<', or -1 at the end of the document
+     */
+    private int skipText() throws Fallback {
+        for (int i = pos; i < limit; i++) {
+            byte b = xml.get(i);
+            if (b == '<') {
+                return i;
+            }
+            if (b == '&' || (depth == 0 && !isWhitespace(b))) {
+                throw Fallback.INSTANCE;
+            }
+        }
+        pos = limit;
+        return -1;
+    }
+
+    private void startTag(int lt) throws Fallback, IOException {
+        int nameStart = lt + 1;
+        int nameEnd = nameEnd(nameStart);
+        int i = nameEnd;
+        attributeCount = 0;
+        boolean empty;
+        while (true) {
+            int next = skipWhitespace(i);
+            byte b = byteAt(next);
+            if (b == '>') {
+                empty = false;
+                pos = next + 1;
+                break;
+            }
+            if (b == '/') {
+                if (byteAt(next + 1) != '>') {
+                    throw Fallback.INSTANCE;
+                }
+                empty = true;
+                pos = next + 2;
+                break;
+            }
+            if (next == i || attributeCount == MAX_ATTRIBUTES) {
+                // attributes must be separated by whitespace
+                throw Fallback.INSTANCE;
+            }
+            i = attribute(next);
+        }
+
+        if (depth == 0) {
+            if (rootSeen) {
+                throw Fallback.INSTANCE;
+            }
+            rootSeen = true;
+        }
+        push(nameStart, nameEnd);
+        int elementDepth = depth;
+        startElement(nameStart, nameEnd, empty);
+        // elements read as text are already popped
+        if (empty && depth == elementDepth) {
+            pop();
+            endElement();
+        }
+    }
+
+    /**
+     * Read one attribute.
+     *
+     * @return the position after the closing quote
+     */
+    private int attribute(int nameStart) throws Fallback {
+        int nameEnd = nameEnd(nameStart);
+        int eq = skipWhitespace(nameEnd);
+        if (nameEnd == nameStart || byteAt(eq) != '=') {
+            throw Fallback.INSTANCE;
+        }
+        int quote = skipWhitespace(eq + 1);
+        byte q = byteAt(quote);
+        if (q != '"' && q != '\'') {
+            throw Fallback.INSTANCE;
+        }
+        int valueEnd = quote + 1;
+        while (true) {
+            byte b = byteAt(valueEnd);
+            if (b == q) {
+                break;
+            }
+            if (b == '<' || b == '&') {
+                throw Fallback.INSTANCE;
+            }
+            valueEnd++;
+        }
+        for (int a = 0; a < attributeCount; a++) {
+            if (regionEquals(attributes[a * 4], attributes[a * 4 + 1], nameStart, nameEnd)) {
+                // duplicate attribute
+                throw Fallback.INSTANCE;
+            }
+        }
+        int a = attributeCount++ * 4;
+        attributes[a] = nameStart;
+        attributes[a + 1] = nameEnd;
+        attributes[a + 2] = quote + 1;
+        attributes[a + 3] = valueEnd;
+        return valueEnd + 1;
+    }
+
+    private void endTag(int lt) throws Fallback, IOException {
+        int nameStart = lt + 2;
+        int nameEnd = nameEnd(nameStart);
+        int gt = skipWhitespace(nameEnd);
+        if (byteAt(gt) != '>' || depth == 0
+                || !regionEquals(elements[(depth - 1) * 2], elements[(depth - 1) * 2 + 1], nameStart, nameEnd)) {
+            throw Fallback.INSTANCE;
+        }
+        pos = gt + 1;
+        pop();
+        endElement();
+    }
+
+    private void push(int nameStart, int nameEnd) throws Fallback {
+        if (depth * 2 == elements.length) {
+            elements = Arrays.copyOf(elements, elements.length * 2);
+            prefixCounts = Arrays.copyOf(prefixCounts, prefixCounts.length * 2);
+        }
+        elements[depth * 2] = nameStart;
+        elements[depth * 2 + 1] = nameEnd;
+        prefixCounts[depth] = prefixes.size();
+        depth++;
+
+        // declare the namespace prefixes of this element before checking the
+        // prefixes it uses
+        for (int a = 0; a < attributeCount; a++) {
+            int attributeStart = attributes[a * 4];
+            int attributeEnd = attributes[a * 4 + 1];
+            int colon = colon(attributeStart, attributeEnd);
+            if (colon >= 0 && regionEquals(attributeStart, colon, XMLNS)) {
+                if (attributes[a * 4 + 2] == attributes[a * 4 + 3]) {
+                    throw Fallback.INSTANCE;
+                }
+                prefixes.add(string(colon + 1, attributeEnd));
+            }
+        }
+        checkPrefix(nameStart, nameEnd);
+        for (int a = 0; a < attributeCount; a++) {
+            int attributeStart = attributes[a * 4];
+            int attributeEnd = attributes[a * 4 + 1];
+            int colon = colon(attributeStart, attributeEnd);
+            if (colon < 0 || !regionEquals(attributeStart, colon, XMLNS)) {
+                checkPrefix(attributeStart, attributeEnd);
+            }
+        }
+    }
+
+    private void checkPrefix(int nameStart, int nameEnd) throws Fallback {
+        int colon = colon(nameStart, nameEnd);
+        if (colon < 0 || regionEquals(nameStart, colon, XML)) {
+            return;
+        }
+        if (colon == nameStart || colon == nameEnd - 1 || !prefixes.contains(string(nameStart, colon))) {
+            throw Fallback.INSTANCE;
+        }
+    }
+
+    private void pop() {
+        depth--;
+        int count = prefixCounts[depth];
+        while (prefixes.size() > count) {
+            prefixes.remove(prefixes.size() - 1);
+        }
+    }
+
+    /**
+     * Called after a start tag has been read and pushed.
+     */
+    private void startElement(int nameStart, int nameEnd, boolean empty) throws Fallback, IOException {
+        int localStart = localNameStart(nameStart, nameEnd);
+        if (permitDepth >= 0) {
+            if (regionEquals(localStart, nameEnd, permitNameStart, permitNameEnd)) {
+                // the StAX parser would end the permit at the first end tag
+                // with this local name
+                throw Fallback.INSTANCE;
+            }
+            if (regionEquals(localStart, nameEnd, FILENAME)) {
+                fileName = decode(readText(empty));
+            } else if (regionEquals(localStart, nameEnd, EDITION_NUMBER)) {
+                edtn = edition(readText(empty));
+                edtnSeen = true;
+            } else if (regionEquals(localStart, nameEnd, EXPIRY)) {
+                permitEndDate = expiry(readText(empty));
+            } else if (regionEquals(localStart, nameEnd, ENCRYPTED_KEY)) {
+                encryptedDataKey = decode(readText(empty));
+            }
+        } else if (inHeader) {
+            if (regionEquals(localStart, nameEnd, DATE)) {
+                try {
+                    headerDate = new SimpleDateFormat(S100PermitFileParser.HEADER_DATE_FORMAT)
+                            .parse(decode(readText(empty)));
+                } catch (ParseException e) {
+                    throw Fallback.INSTANCE;
+                }
+            } else if (regionEquals(localStart, nameEnd, USERPERMIT)) {
+                try {
+                    userPermit = new S100UserPermit(decode(readText(empty)));
+                } catch (IllegalArgumentException e) {
+                    throw Fallback.INSTANCE;
+                }
+            } else if (regionEquals(localStart, nameEnd, DATASERVER)) {
+                dataserver = decode(readText(empty));
+            } else if (regionEquals(localStart, nameEnd, PRODUCT)) {
+                inHeader = false;
+                startProduct();
+                // like the StAX parser, the header ends at the first product
+                deliverHeader();
+            }
+        } else if (regionEquals(localStart, nameEnd, PRODUCT)) {
+            startProduct();
+        } else if (regionEquals(localStart, nameEnd, PERMIT) || regionEquals(localStart, nameEnd, DATASET_PERMIT)) {
+            permitDepth = depth;
+            permitNameStart = localStart;
+            permitNameEnd = nameEnd;
+            fileName = null;
+            edtnSeen = false;
+            permitEndDate = null;
+            encryptedDataKey = null;
+        }
+    }
+
+    /**
+     * Called after an element has been popped.
+     */
+    private void endElement() throws Fallback, IOException {
+        if (permitDepth >= 0 && depth == permitDepth - 1) {
+            permitDepth = -1;
+            if (!edtnSeen) {
+                throw Fallback.INSTANCE;
+            }
+            S100DataPermit dataPermit = new S100DataPermit(fileName, edtn, permitEndDate, encryptedDataKey,
+                    productSpecification);
+            delivered++;
+            stopped = !visitor.permit(dataPermit);
+        }
+    }
+
+    private void startProduct() throws Fallback {
+        int valueStart = -1;
+        int valueEnd = -1;
+        for (int a = 0; a < attributeCount; a++) {
+            int attributeStart = attributes[a * 4];
+            int attributeEnd = attributes[a * 4 + 1];
+            if (regionEquals(attributeStart, attributeEnd, ID)) {
+                valueStart = attributes[a * 4 + 2];
+                valueEnd = attributes[a * 4 + 3];
+            } else if (regionEquals(localNameStart(attributeStart, attributeEnd), attributeEnd, ID)) {
+                // which one the StAX parser returns is up to the implementation
+                throw Fallback.INSTANCE;
+            }
+        }
+        if (valueStart < 0) {
+            throw Fallback.INSTANCE;
+        }
+        if (productId != null && regionEquals(valueStart, valueEnd, productId)) {
+            return;
+        }
+        for (int i = valueStart; i < valueEnd; i++) {
+            byte b = xml.get(i);
+            if (b == '\t' || b == '\n' || b == '\r') {
+                // normalized by the XML parser
+                throw Fallback.INSTANCE;
+            }
+        }
+        try {
+            productSpecification = new S100ProductSpecification(decode(new int[] { valueStart, valueEnd }));
+        } catch (RuntimeException e) {
+            throw Fallback.INSTANCE;
+        }
+        productId = new byte[valueEnd - valueStart];
+        xml.get(valueStart, productId);
+    }
+
+    /**
+     * Read the character content of the element just started and its end tag.
+     * The element is popped.
+     *
+     * @return the content as start and end position
+     */
+    private int[] readText(boolean empty) throws Fallback {
+        int nameStart = elements[(depth - 1) * 2];
+        int nameEnd = elements[(depth - 1) * 2 + 1];
+        if (empty) {
+            pop();
+            return new int[] { pos, pos };
+        }
+        int start = pos;
+        int lt = start;
+        while (true) {
+            byte b = byteAt(lt);
+            if (b == '<') {
+                break;
+            }
+            if (b == '&' || b == '\r') {
+                // entities and line end normalization
+                throw Fallback.INSTANCE;
+            }
+            lt++;
+        }
+        // only text, directly followed by the end tag
+        int endNameEnd = lt + 2 + (nameEnd - nameStart);
+        if (byteAt(lt + 1) != '/' || endNameEnd > limit || !regionEquals(lt + 2, endNameEnd, nameStart, nameEnd)) {
+            throw Fallback.INSTANCE;
+        }
+        int gt = skipWhitespace(endNameEnd);
+        if (byteAt(gt) != '>') {
+            throw Fallback.INSTANCE;
+        }
+        pos = gt + 1;
+        pop();
+        return new int[] { start, lt };
+    }
+
+    /**
+     * Decode an edition number of plain digits. Anything else is left to
+     * Integer.valueOf in the StAX parser.
+     */
+    private int edition(int[] text) throws Fallback {
+        int length = text[1] - text[0];
+        if (length < 1 || length > 9) {
+            throw Fallback.INSTANCE;
+        }
+        int value = 0;
+        for (int i = text[0]; i < text[1]; i++) {
+            value = value * 10 + digit(i);
+        }
+        return value;
+    }
+
+    /**
+     * Decode a yyyy-MM-dd expiry date to local midnight, like the lenient
+     * SimpleDateFormat of the StAX parser does for valid dates.
+     */
+    private Date expiry(int[] text) throws Fallback {
+        int i = text[0];
+        if (text[1] - i != 10 || xml.get(i + 4) != '-' || xml.get(i + 7) != '-') {
+            throw Fallback.INSTANCE;
+        }
+        int year = digit(i) * 1000 + digit(i + 1) * 100 + digit(i + 2) * 10 + digit(i + 3);
+        int month = digit(i + 5) * 10 + digit(i + 6);
+        int day = digit(i + 8) * 10 + digit(i + 9);
+        // before 1900 the Julian calendar may be involved
+        if (year < 1900 || month < 1 || month > 12 || day < 1 || day > 28 && day > lengthOfMonth(year, month)) {
+            throw Fallback.INSTANCE;
+        }
+        int key = year * 10000 + month * 100 + day;
+        if (key != lastExpiry) {
+            lastEpochMillis = LocalDate.of(year, month, day).atStartOfDay(zone).toInstant().toEpochMilli();
+            lastExpiry = key;
+        }
+        return new Date(lastEpochMillis);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        return LocalDate.of(year, month, 1).lengthOfMonth();
+    }
+
+    private int digit(int i) throws Fallback {
+        int d = xml.get(i) - '0';
+        if (d < 0 || d > 9) {
+            throw Fallback.INSTANCE;
+        }
+        return d;
+    }
+
+    private String decode(int[] text) throws Fallback {
+        return string(text[0], text[1]);
+    }
+
+    private String string(int start, int end) throws Fallback {
+        byte[] bytes = new byte[end - start];
+        xml.get(start, bytes);
+        for (byte b : bytes) {
+            if (b < 0) {
+                try {
+                    CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes));
+                    return chars.toString();
+                } catch (CharacterCodingException e) {
+                    throw Fallback.INSTANCE;
+                }
+            }
+        }
+        // ASCII maps directly to compact strings
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private int localNameStart(int nameStart, int nameEnd) {
+        int colon = colon(nameStart, nameEnd);
+        return colon < 0 ? nameStart : colon + 1;
+    }
+
+    private int colon(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (xml.get(i) == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int nameEnd(int nameStart) throws Fallback {
+        int i = nameStart;
+        while (true) {
+            byte b = byteAt(i);
+            if (isWhitespace(b) || b == '/' || b == '>' || b == '=') {
+                break;
+            }
+            if (b == '<' || b == '"' || b == '\'' || b == '&') {
+                throw Fallback.INSTANCE;
+            }
+            i++;
+        }
+        if (i == nameStart) {
+            throw Fallback.INSTANCE;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int i) throws Fallback {
+        while (isWhitespace(byteAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * @throws Fallback at the end of the document, where a complete construct
+     *             was expected
+     */
+    private byte byteAt(int i) throws Fallback {
+        if (i >= limit) {
+            throw Fallback.INSTANCE;
+        }
+        return xml.get(i);
+    }
+
+    private boolean startsWith(int i, String prefix) {
+        if (i + prefix.length() > limit) {
+            return false;
+        }
+        for (int j = 0; j < prefix.length(); j++) {
+            if (xml.get(i + j) != prefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String s, int from) throws Fallback {
+        for (int i = from; i + s.length() <= limit; i++) {
+            if (startsWith(i, s)) {
+                return i;
+            }
+        }
+        throw Fallback.INSTANCE;
+    }
+
+    private boolean regionEquals(int start, int end, int otherStart, int otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        for (int i = 0; i < end - start; i++) {
+            if (xml.get(start + i) != xml.get(otherStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (xml.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Thrown when the document has to be read by the StAX parser.
+     */
+    private static final class Fallback extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        static final Fallback INSTANCE = new Fallback();
+
+        private Fallback() {
+            super(null, null, false, false);
+        }
+
+    }
+
+}
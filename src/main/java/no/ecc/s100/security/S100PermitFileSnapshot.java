@@ -0,0 +1,548 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamException;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.FileUtils;
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 파싱한 PERMIT.XML을 메모리 맵으로 바로 읽을 수 있는 바이너리 스냅샷.
+ * <p>
+ * 스냅샷에는 헤더, 제품 사양과 파일 이름 순으로 정렬된 고정 길이 permit 레코드, 파일 이름 해시
+ * 인덱스, 제품 사양별 구간, 만료일 인덱스와 원본 PERMIT.XML의 SHA-256이 들어 있습니다. 파일을
+ * {@link FileChannel#map}으로 읽기 전용 매핑하므로 여러 프로세스가 같은 스냅샷을 열어도 물리 메모리는
+ * 한 번만 사용되고, 여는 데 XML 파싱이 필요 없습니다. {@link #load(Path, Path)}는 원본의 체크섬이
+ * 스냅샷과 다르면 스냅샷을 다시 만듭니다. 새 스냅샷은 임시 파일에 쓴 뒤 교체하므로 다른 프로세스가
+ * 이미 연 스냅샷은 영향을 받지 않습니다.
+ * <p>
+ * 복호화된 HW_ID는 저장하지 않습니다. 필요하면 {@link #toPermitFile(S100ManufacturerLookup)}로 다시
+ * 복호화합니다. 읽기 전용이며 여러 스레드에서 사용할 수 있습니다.
+ */
+public final class S100PermitFileSnapshot {
+
+    private static final Logger LOG = Logger.getLogger(S100PermitFileSnapshot.class.getName());
+
+    private static final int MAGIC = 0x53313030; // "S100"
+    private static final int VERSION = 1;
+    private static final String SHA_256 = "SHA-256";
+    private static final int CHECKSUM_LENGTH = 32;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    // header
+    private static final int CHECKSUM_POSITION = 8;
+    private static final int DATE_POSITION = 40;
+    private static final int COUNT_POSITION = 48;
+    private static final int SLOT_COUNT_POSITION = 52;
+    private static final int EXPIRY_COUNT_POSITION = 56;
+    private static final int PRODUCT_COUNT_POSITION = 60;
+    private static final int RECORDS_POSITION = 64;
+    private static final int SLOTS_POSITION = 68;
+    private static final int EXPIRY_POSITION = 72;
+    private static final int PRODUCTS_POSITION = 76;
+    private static final int STRINGS_POSITION = 80;
+    private static final int LENGTH_POSITION = 84;
+    private static final int DATASERVER_LENGTH_POSITION = 88;
+    private static final int USERPERMIT_LENGTH_POSITION = 92;
+    private static final int HEADER_SIZE = 96;
+
+    // permit record
+    private static final int END_DATE_OFFSET = 0;
+    private static final int NAME_OFFSET = 8;
+    private static final int EDTN_OFFSET = 12;
+    private static final int NAME_LENGTH_OFFSET = 16;
+    private static final int PRODUCT_OFFSET = 18;
+    private static final int KEY_OFFSET = 20;
+    private static final int KEY_LENGTH = 16;
+    private static final int RECORD_SIZE = 36;
+
+    // product range: number, first record, end record
+    private static final int PRODUCT_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int slotCount;
+    private final int expiryCount;
+    private final int productCount;
+    private final int records;
+    private final int slots;
+    private final int expiry;
+    private final int products;
+    private final int strings;
+    private final Date date;
+    private final String dataserver;
+    private final String userPermitString;
+
+    private S100PermitFileSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a permit file snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported permit file snapshot version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(LENGTH_POSITION) != buffer.capacity()) {
+            throw new IOException("Truncated permit file snapshot");
+        }
+        this.count = buffer.getInt(COUNT_POSITION);
+        this.slotCount = buffer.getInt(SLOT_COUNT_POSITION);
+        this.expiryCount = buffer.getInt(EXPIRY_COUNT_POSITION);
+        this.productCount = buffer.getInt(PRODUCT_COUNT_POSITION);
+        this.records = buffer.getInt(RECORDS_POSITION);
+        this.slots = buffer.getInt(SLOTS_POSITION);
+        this.expiry = buffer.getInt(EXPIRY_POSITION);
+        this.products = buffer.getInt(PRODUCTS_POSITION);
+        this.strings = buffer.getInt(STRINGS_POSITION);
+        long dateMillis = buffer.getLong(DATE_POSITION);
+        this.date = dateMillis == NO_DATE ? null : new Date(dateMillis);
+        int dataserverLength = buffer.getInt(DATASERVER_LENGTH_POSITION);
+        this.dataserver = dataserverLength < 0 ? null : string(strings, dataserverLength);
+        this.userPermitString = string(strings + Math.max(dataserverLength, 0),
+                buffer.getInt(USERPERMIT_LENGTH_POSITION));
+    }
+
+    /**
+     * 스냅샷 파일을 엽니다. 원본 PERMIT.XML과 같은지는 확인하지 않습니다.
+     *
+     * @param snapshot 스냅샷 파일
+     * @return 열린 스냅샷
+     * @throws IOException 읽기 오류 또는 스냅샷 형식이 아닌 경우
+     */
+    public static S100PermitFileSnapshot open(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return new S100PermitFileSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * PERMIT.XML의 스냅샷을 엽니다. 스냅샷이 없거나, 읽을 수 없거나, 원본의 체크섬과 다르면 PERMIT.XML을
+     * 파싱해 스냅샷을 새로 만든 뒤 엽니다.
+     *
+     * @param permitXml 원본 PERMIT.XML
+     * @param snapshot 스냅샷 파일
+     * @return 원본과 일치하는 스냅샷
+     * @throws IOException 읽기 또는 쓰기 오류 시
+     * @throws XMLStreamException PERMIT.XML 파싱 오류 시
+     * @throws IllegalArgumentException 암호화된 데이터 키가 16바이트가 아닌 permit이 있는 경우
+     */
+    public static S100PermitFileSnapshot load(Path permitXml, Path snapshot) throws IOException, XMLStreamException {
+        byte[] xml = Files.readAllBytes(permitXml);
+        byte[] checksum = checksum(xml);
+        try {
+            S100PermitFileSnapshot existing = open(snapshot);
+            if (existing.isSnapshotOf(checksum)) {
+                return existing;
+            }
+            LOG.fine(() -> "Permit file snapshot " + snapshot + " is out of date");
+        } catch (NoSuchFileException e) {
+            // first use
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not read permit file snapshot " + snapshot, e);
+        }
+
+        S100PermitFileHeader header;
+        S100PermitRegistry registry = new S100PermitRegistry();
+        try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(xml))) {
+            header = parser.getHeader();
+        }
+        registry.addAll(S100PermitFileParallelParser.parsePermits(xml));
+
+        ByteBuffer content = encode(header.getDate(), header.getDataserver(),
+                header.getUserPermit().getUserPermitString(), registry.sorted(), checksum);
+        try {
+            replace(content, snapshot);
+        } catch (IOException e) {
+            // another process may hold the old snapshot open where files in use can not be replaced.
+            // the new snapshot is served from memory so no temporary file has to stay mapped.
+            LOG.log(Level.WARNING, "Could not replace permit file snapshot " + snapshot, e);
+            return new S100PermitFileSnapshot(content);
+        }
+        return open(snapshot);
+    }
+
+    /**
+     * permit 파일의 스냅샷을 씁니다. 같은 디렉터리의 임시 파일에 쓴 뒤 기존 스냅샷을 원자적으로 대체하므로,
+     * 이미 열린 스냅샷은 계속 이전 내용을 읽습니다.
+     *
+     * @param permitFile 저장할 permit 파일
+     * @param checksum 원본 PERMIT.XML의 {@link #checksum(byte[])}
+     * @param snapshot 스냅샷 파일
+     * @throws IOException 쓰기 오류 또는 기존 스냅샷을 대체할 수 없는 경우. 기존 스냅샷은 그대로 남습니다.
+     * @throws IllegalArgumentException 암호화된 데이터 키가 16바이트가 아닌 permit이 있는 경우
+     */
+    public static void write(S100PermitFile permitFile, byte[] checksum, Path snapshot) throws IOException {
+        replace(encode(permitFile.getDate(), permitFile.getDataserver(), permitFile.getUserPermitString(),
+                new ArrayList<>(permitFile.getDataPermits()), checksum), snapshot);
+    }
+
+    /**
+     * Writes the content to a temporary file next to the snapshot and moves it over the snapshot, so a mapped
+     * snapshot is never truncated under its readers. The temporary file gets the permissions of the old snapshot,
+     * or world readable ones, so a shared snapshot stays readable to other users. The temporary file is removed if
+     * anything fails.
+     */
+    private static void replace(ByteBuffer content, Path snapshot) throws IOException {
+        Path tmp = FileUtils.createTempFileFor(snapshot);
+        boolean moved = false;
+        try {
+            ByteBuffer out = content.duplicate();
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(false);
+            }
+            FileUtils.moveIntoPlace(tmp, snapshot);
+            moved = true;
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Date date, String dataserver, String userPermitString,
+            List<S100DataPermit> sorted, byte[] checksum) {
+        if (checksum.length != CHECKSUM_LENGTH) {
+            throw new IllegalArgumentException("Checksum must be " + CHECKSUM_LENGTH + " bytes");
+        }
+        int count = sorted.size();
+        byte[] dataserverBytes = dataserver == null ? null : dataserver.getBytes(StandardCharsets.UTF_8);
+        byte[] userPermitBytes = userPermitString.getBytes(StandardCharsets.UTF_8);
+        byte[][] names = new byte[count][];
+        int stringsLength = (dataserverBytes == null ? 0 : dataserverBytes.length) + userPermitBytes.length;
+        Integer[] expiring = new Integer[count];
+        int expiryCount = 0;
+        int productCount = 0;
+        for (int i = 0; i < count; i++) {
+            S100DataPermit dataPermit = sorted.get(i);
+            names[i] = dataPermit.getFileName().getBytes(StandardCharsets.UTF_8);
+            stringsLength += names[i].length;
+            if (dataPermit.getPermitEndDate() != null) {
+                expiring[expiryCount++] = i;
+            }
+            if (i == 0 || !dataPermit.getProductSpecification().equals(sorted.get(i - 1).getProductSpecification())) {
+                productCount++;
+            }
+        }
+        Arrays.sort(expiring, 0, expiryCount,
+                (a, b) -> sorted.get(a).getPermitEndDate().compareTo(sorted.get(b).getPermitEndDate()));
+
+        // hash table at most half full
+        int slotCount = Integer.highestOneBit(Math.max(count * 2 - 1, 1)) * 2;
+        int records = HEADER_SIZE;
+        int slots = records + count * RECORD_SIZE;
+        int expiry = slots + slotCount * 4;
+        int products = expiry + expiryCount * 4;
+        int strings = products + productCount * PRODUCT_SIZE;
+        long length = (long) strings + stringsLength;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many permits for a snapshot: " + count);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        out.putInt(0, MAGIC);
+        out.putInt(4, VERSION);
+        out.put(CHECKSUM_POSITION, checksum);
+        out.putLong(DATE_POSITION, date == null ? NO_DATE : date.getTime());
+        out.putInt(COUNT_POSITION, count);
+        out.putInt(SLOT_COUNT_POSITION, slotCount);
+        out.putInt(EXPIRY_COUNT_POSITION, expiryCount);
+        out.putInt(PRODUCT_COUNT_POSITION, productCount);
+        out.putInt(RECORDS_POSITION, records);
+        out.putInt(SLOTS_POSITION, slots);
+        out.putInt(EXPIRY_POSITION, expiry);
+        out.putInt(PRODUCTS_POSITION, products);
+        out.putInt(STRINGS_POSITION, strings);
+        out.putInt(LENGTH_POSITION, (int) length);
+        out.putInt(DATASERVER_LENGTH_POSITION, dataserverBytes == null ? -1 : dataserverBytes.length);
+        out.putInt(USERPERMIT_LENGTH_POSITION, userPermitBytes.length);
+
+        int stringPosition = strings;
+        if (dataserverBytes != null) {
+            out.put(stringPosition, dataserverBytes);
+            stringPosition += dataserverBytes.length;
+        }
+        out.put(stringPosition, userPermitBytes);
+        stringPosition += userPermitBytes.length;
+
+        int product = products;
+        for (int i = 0; i < count; i++) {
+            S100DataPermit dataPermit = sorted.get(i);
+            int record = records + i * RECORD_SIZE;
+            out.putLong(record + END_DATE_OFFSET,
+                    dataPermit.getPermitEndDate() == null ? NO_DATE : dataPermit.getPermitEndDate().getTime());
+            out.putInt(record + NAME_OFFSET, stringPosition);
+            out.putInt(record + EDTN_OFFSET, dataPermit.getEdtn());
+            out.putShort(record + NAME_LENGTH_OFFSET, (short) names[i].length);
+            out.putShort(record + PRODUCT_OFFSET,
+                    S100CompactPermitStore.toShort(dataPermit.getProductSpecification()));
+            byte[] key = Hex.fromString(dataPermit.getEncryptedDataKey());
+            if (key.length != KEY_LENGTH) {
+                throw new IllegalArgumentException("Encrypted data key of " + dataPermit.getFileName()
+                        + " must be " + KEY_LENGTH + " bytes, not " + key.length);
+            }
+            out.put(record + KEY_OFFSET, key);
+            out.put(stringPosition, names[i]);
+            stringPosition += names[i].length;
+
+            int slot = spread(dataPermit.getFileName().hashCode()) & (slotCount - 1);
+            while (out.getInt(slots + slot * 4) != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            out.putInt(slots + slot * 4, i + 1);
+
+            if (i == count - 1
+                    || !dataPermit.getProductSpecification().equals(sorted.get(i + 1).getProductSpecification())) {
+                out.putInt(product, dataPermit.getProductSpecification().getNumber());
+                out.putInt(product + 4, product == products ? 0 : out.getInt(product - PRODUCT_SIZE + 8));
+                out.putInt(product + 8, i + 1);
+                product += PRODUCT_SIZE;
+            }
+        }
+        for (int i = 0; i < expiryCount; i++) {
+            out.putInt(expiry + i * 4, expiring[i]);
+        }
+
+        return out;
+    }
+
+    /**
+     * @param xml PERMIT.XML의 내용
+     * @return 스냅샷이 원본을 확인하는 데 사용하는 SHA-256
+     */
+    public static byte[] checksum(byte[] xml) {
+        try {
+            return MessageDigest.getInstance(SHA_256).digest(xml);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param checksum 원본 PERMIT.XML의 {@link #checksum(byte[])}
+     * @return 스냅샷이 해당 원본으로 만들어졌으면 true
+     */
+    public boolean isSnapshotOf(byte[] checksum) {
+        return Arrays.equals(getChecksum(), checksum);
+    }
+
+    /**
+     * @return 원본 PERMIT.XML의 SHA-256
+     */
+    public byte[] getChecksum() {
+        byte[] checksum = new byte[CHECKSUM_LENGTH];
+        buffer.get(CHECKSUM_POSITION, checksum);
+        return checksum;
+    }
+
+    public Date getDate() {
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    public String getDataserver() {
+        return dataserver;
+    }
+
+    public String getUserPermitString() {
+        return userPermitString;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index 제품 사양, 파일 이름 순으로 정렬된 permit의 위치
+     * @return 해당 permit
+     */
+    public S100DataPermit get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + count);
+        }
+        int record = records + index * RECORD_SIZE;
+        long endDate = buffer.getLong(record + END_DATE_OFFSET);
+        byte[] key = new byte[KEY_LENGTH];
+        buffer.get(record + KEY_OFFSET, key);
+        return new S100DataPermit(fileName(record), buffer.getInt(record + EDTN_OFFSET),
+                endDate == NO_DATE ? null : new Date(endDate), Hex.toString(key),
+                S100CompactPermitStore.productSpecification(buffer.getShort(record + PRODUCT_OFFSET)));
+    }
+
+    private String fileName(int record) {
+        return string(buffer.getInt(record + NAME_OFFSET), buffer.getShort(record + NAME_LENGTH_OFFSET));
+    }
+
+    private String string(int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param fileName 데이터셋 파일 이름
+     * @return 해당 permit. 없으면 null
+     */
+    public S100DataPermit getByFileName(String fileName) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        int mask = slotCount - 1;
+        for (int slot = spread(fileName.hashCode()) & mask;; slot = (slot + 1) & mask) {
+            int index = buffer.getInt(slots + slot * 4) - 1;
+            if (index < 0) {
+                return null;
+            }
+            int record = records + index * RECORD_SIZE;
+            if (nameEquals(record, name)) {
+                return get(index);
+            }
+        }
+    }
+
+    private boolean nameEquals(int record, byte[] name) {
+        if (buffer.getShort(record + NAME_LENGTH_OFFSET) != name.length) {
+            return false;
+        }
+        int position = buffer.getInt(record + NAME_OFFSET);
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(position + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 제품 사양, 파일 이름 순으로 정렬된 모든 permit. 요소를 읽을 때마다 새 permit을 만듭니다.
+     */
+    public List<S100DataPermit> getDataPermits() {
+        return range(0, count);
+    }
+
+    /**
+     * @param productSpecification 제품 사양
+     * @return 해당 제품 사양의 permit들을 파일 이름 순으로 정렬한 목록
+     */
+    public List<S100DataPermit> get(S100ProductSpecification productSpecification) {
+        for (int i = 0; i < productCount; i++) {
+            int product = products + i * PRODUCT_SIZE;
+            if (buffer.getInt(product) == productSpecification.getNumber()) {
+                return range(buffer.getInt(product + 4), buffer.getInt(product + 8));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private List<S100DataPermit> range(int from, int to) {
+        return new AbstractList<S100DataPermit>() {
+
+            @Override
+            public S100DataPermit get(int index) {
+                if (index < 0 || index >= to - from) {
+                    throw new IndexOutOfBoundsException("Index " + index + ", size " + (to - from));
+                }
+                return S100PermitFileSnapshot.this.get(from + index);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * @param from 시작 시각 (포함)
+     * @param to 끝 시각 (제외)
+     * @return 만료일이 주어진 구간에 있는 permit들. 만료일 순으로 정렬됩니다.
+     */
+    public List<S100DataPermit> getExpiringBetween(Date from, Date to) {
+        List<S100DataPermit> result = new ArrayList<>();
+        for (int i = firstExpiringAt(from.getTime()); i < expiryCount; i++) {
+            int index = buffer.getInt(expiry + i * 4);
+            if (endDate(index) >= to.getTime()) {
+                break;
+            }
+            result.add(get(index));
+        }
+        return result;
+    }
+
+    /**
+     * @param time 기준 시각
+     * @return 만료일이 주어진 시각보다 이전인 permit들. 만료일 순으로 정렬됩니다.
+     */
+    public List<S100DataPermit> getExpiredBefore(Date time) {
+        int end = firstExpiringAt(time.getTime());
+        List<S100DataPermit> result = new ArrayList<>(end);
+        for (int i = 0; i < end; i++) {
+            result.add(get(buffer.getInt(expiry + i * 4)));
+        }
+        return result;
+    }
+
+    /**
+     * @return 가장 이른 permit 만료일. 만료일이 있는 permit이 없으면 null
+     */
+    public Date getNextExpiry() {
+        return expiryCount == 0 ? null : new Date(endDate(buffer.getInt(expiry)));
+    }
+
+    // index in the expiry index of the first permit with end date at or after time
+    private int firstExpiringAt(long time) {
+        int low = 0;
+        int high = expiryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (endDate(buffer.getInt(expiry + mid * 4)) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long endDate(int index) {
+        return buffer.getLong(records + index * RECORD_SIZE + END_DATE_OFFSET);
+    }
+
+    /**
+     * 사용자 permit의 HW_ID를 복호화해 스냅샷의 모든 permit을 담은 permit 파일을 만듭니다.
+     *
+     * @param manufacturerLookup 사용자 permit의 M_ID로 제조사를 찾을 lookup
+     * @return 새 permit 파일
+     */
+    public S100PermitFile toPermitFile(S100ManufacturerLookup manufacturerLookup) {
+        S100UserPermit userPermit = new S100UserPermit(userPermitString);
+        S100PermitFile permitFile = new S100PermitFile(getDate(), dataserver,
+                S100PermitFile.decryptHwId(manufacturerLookup, userPermit), userPermitString);
+        permitFile.addAll(getDataPermits());
+        return permitFile;
+    }
+
+}
@@ -0,0 +1,365 @@
+package no.ecc.s100.security;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.FileUtils;
+
+/**
+ * PRIMAR_PERMIT.XML (S100 네임스페이스 형식)을 permit 하나씩 받아 바로 쓰는 클래스.
+ * <p>
+ * permit은 제품 사양 순으로 정렬되어 있어야 하며, 제품 사양이 바뀔 때 product 요소를 닫고 새로 엽니다.
+ * 받은 permit을 보관하지 않고 날짜 형식도 재사용하므로 permit 수와 관계없이 메모리 사용량이 일정합니다.
+ * {@link #close()}가 문서를 끝냅니다. 출력 스트림은 파일 경로로 연 경우에만 닫습니다.
+ * <p>
+ * 쓰는 중에 예외가 발생하거나 {@link #abort()}를 호출하면 {@link #close()}는 문서를 끝내지 않으므로, 잘린
+ * 문서가 완전한 PERMIT.XML로 읽히지 않습니다. 파일 경로로 연 경우에는 같은 디렉터리의 임시 파일에 쓰고
+ * 성공적으로 닫을 때 원자적으로 대상 파일을 대체하며, 실패하면 임시 파일을 지우고 기존 파일을 그대로 둡니다.
+ */
+public final class S100PermitFileStreamWriter implements AutoCloseable {
+
+    private static final String S100_NAMESPACE = "http://www.iho.int/s100/se/5.2";
+    private static final String S100_PREFIX = "s100";
+    private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final String PERMIT_ELEMENT = "Permit";
+    private static final String HEADER_ELEMENT = "header";
+    private static final String ISSUE_DATE_ELEMENT = "issueDate";
+    private static final String DATA_SERVER_NAME_ELEMENT = "dataServerName";
+    private static final String DATA_SERVER_IDENTIFIER_ELEMENT = "dataServerIdentifier";
+    private static final String VERSION_ELEMENT = "version";
+    private static final String USERPERMIT_ELEMENT = "userpermit";
+    private static final String PRODUCTS_ELEMENT = "products";
+    private static final String PRODUCT_ELEMENT = "product";
+    private static final String ID_ATTRIBUTE = "id";
+    private static final String DATASET_PERMIT_ELEMENT = "datasetPermit";
+    private static final String FILENAME_ELEMENT = "filename";
+    private static final String EDITION_NUMBER_ELEMENT = "editionNumber";
+    private static final String EXPIRY_ELEMENT = "expiry";
+    private static final String ENCRYPTED_KEY_ELEMENT = "encryptedKey";
+
+    private static final String ISSUE_DATE_FORMAT = "yyyy-MM-dd";
+    private static final String EXPIRY_DATE_FORMAT = "yyyy-MM-dd";
+    private static final String DEFAULT_VERSION = "5.2.0";
+    private static final String DEFAULT_DATA_SERVER_IDENTIFIER = "urn:mrn:iho:KR00:00280";
+
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
+    // looking up the implementation is expensive. creating writers from a
+    // configured factory is thread safe.
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private final XMLStreamWriter writer;
+    private final OutputStream ownedOut;
+    // the target and the temporary file written instead, when opened with a path
+    private final Path path;
+    private final Path tmp;
+    private final DateFormat expiryDateFormat = new SimpleDateFormat(EXPIRY_DATE_FORMAT);
+
+    private S100ProductSpecification currentProductSpecification;
+    private boolean closed;
+    private boolean failed;
+
+    /**
+     * 문서 시작과 헤더를 씁니다.
+     *
+     * @param out 출력 스트림. 닫지 않습니다.
+     * @param issueDate 발행일
+     * @param dataserver 데이터 서버 이름
+     * @param userPermitString 사용자 permit
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public S100PermitFileStreamWriter(OutputStream out, Date issueDate, String dataserver, String userPermitString)
+            throws XMLStreamException {
+        this(out, null, null, null, issueDate, dataserver, userPermitString);
+    }
+
+    /**
+     * @param out 출력 스트림. 닫지 않습니다.
+     * @param header 발행일, 데이터 서버 이름과 사용자 permit
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public S100PermitFileStreamWriter(OutputStream out, S100PermitFileHeader header) throws XMLStreamException {
+        this(out, header.getDate(), header.getDataserver(), header.getUserPermit().getUserPermitString());
+    }
+
+    /**
+     * 같은 디렉터리에 임시 파일을 만들고 문서 시작과 헤더를 씁니다. {@link #close()}가 임시 파일을 닫고
+     * 출력 파일을 대체합니다. 임시 파일은 기존 출력 파일의 권한을, 출력 파일이 없으면 rw-r--r-- 권한을
+     * 받습니다.
+     *
+     * @param path 출력 파일
+     * @param issueDate 발행일
+     * @param dataserver 데이터 서버 이름
+     * @param userPermitString 사용자 permit
+     * @throws IOException 파일을 만들 수 없는 경우
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public S100PermitFileStreamWriter(Path path, Date issueDate, String dataserver, String userPermitString)
+            throws IOException, XMLStreamException {
+        this(path, FileUtils.createTempFileFor(path), issueDate, dataserver, userPermitString);
+    }
+
+    private S100PermitFileStreamWriter(Path path, Path tmp, Date issueDate, String dataserver,
+            String userPermitString) throws IOException, XMLStreamException {
+        this(null, open(tmp), path, tmp, issueDate, dataserver, userPermitString);
+    }
+
+    private S100PermitFileStreamWriter(OutputStream out, OutputStream ownedOut, Path path, Path tmp, Date issueDate,
+            String dataserver, String userPermitString) throws XMLStreamException {
+        this.ownedOut = ownedOut;
+        this.path = path;
+        this.tmp = tmp;
+        try {
+            this.writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(ownedOut != null ? ownedOut : out, "UTF-8");
+            writeHeader(issueDate, dataserver, userPermitString);
+        } catch (XMLStreamException | RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private static OutputStream open(Path tmp) throws IOException {
+        try {
+            FileChannel channel = FileChannel.open(tmp, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            return new BufferedOutputStream(Channels.newOutputStream(channel), FILE_BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * 제품 사양 순으로 정렬된 permit들로 PRIMAR_PERMIT.XML을 씁니다. 실패하면 문서를 끝내지 않습니다.
+     *
+     * @param out 출력 스트림. 닫지 않습니다.
+     * @param issueDate 발행일
+     * @param dataserver 데이터 서버 이름
+     * @param userPermitString 사용자 permit
+     * @param dataPermits 제품 사양 순으로 정렬된 permit
+     * @throws IOException 쓰기 오류 시
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public static void write(OutputStream out, Date issueDate, String dataserver, String userPermitString,
+            Iterator<S100DataPermit> dataPermits) throws IOException, XMLStreamException {
+        try (S100PermitFileStreamWriter writer = new S100PermitFileStreamWriter(out, issueDate, dataserver,
+                userPermitString)) {
+            writer.writeAll(dataPermits);
+        }
+    }
+
+    /**
+     * 제품 사양 순으로 정렬된 permit들로 PRIMAR_PERMIT.XML 파일을 씁니다. 실패하면 기존 파일을 그대로
+     * 둡니다.
+     *
+     * @param path 출력 파일
+     * @param issueDate 발행일
+     * @param dataserver 데이터 서버 이름
+     * @param userPermitString 사용자 permit
+     * @param dataPermits 제품 사양 순으로 정렬된 permit
+     * @throws IOException 파일 쓰기 오류 시
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public static void write(Path path, Date issueDate, String dataserver, String userPermitString,
+            Iterator<S100DataPermit> dataPermits) throws IOException, XMLStreamException {
+        try (S100PermitFileStreamWriter writer = new S100PermitFileStreamWriter(path, issueDate, dataserver,
+                userPermitString)) {
+            writer.writeAll(dataPermits);
+        }
+    }
+
+    private void writeHeader(Date issueDate, String dataserver, String userPermitString)
+            throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+
+        // s100:Permit 루트 요소 (네임스페이스 선언)
+        writer.setPrefix(S100_PREFIX, S100_NAMESPACE);
+        writer.writeStartElement(S100_PREFIX, PERMIT_ELEMENT, S100_NAMESPACE);
+        writer.writeNamespace(S100_PREFIX, S100_NAMESPACE);
+        writer.writeNamespace("xsi", XSI_NAMESPACE);
+        writer.writeAttribute(XSI_NAMESPACE, "standalone", "yes");
+
+        writer.writeStartElement(S100_PREFIX, HEADER_ELEMENT, S100_NAMESPACE);
+        writeElement(ISSUE_DATE_ELEMENT, new SimpleDateFormat(ISSUE_DATE_FORMAT).format(issueDate));
+        writeElement(DATA_SERVER_NAME_ELEMENT, dataserver);
+        writeElement(DATA_SERVER_IDENTIFIER_ELEMENT, DEFAULT_DATA_SERVER_IDENTIFIER);
+        writeElement(VERSION_ELEMENT, DEFAULT_VERSION);
+        writeElement(USERPERMIT_ELEMENT, userPermitString);
+        writer.writeEndElement(); // s100:header
+
+        writer.writeStartElement(S100_PREFIX, PRODUCTS_ELEMENT, S100_NAMESPACE);
+    }
+
+    private void writeElement(String localName, String text) throws XMLStreamException {
+        writer.writeStartElement(S100_PREFIX, localName, S100_NAMESPACE);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+    /**
+     * permit 하나를 씁니다. 만료일이 없으면 expiry 요소를 쓰지 않습니다.
+     *
+     * @param dataPermit 쓸 permit
+     * @throws IllegalArgumentException 앞의 permit보다 제품 사양이 앞서는 경우
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public void write(S100DataPermit dataPermit) throws XMLStreamException {
+        checkOpen();
+        boolean written = false;
+        try {
+            writePermit(dataPermit);
+            written = true;
+        } finally {
+            if (!written) {
+                failed = true;
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        if (failed) {
+            throw new IllegalStateException("Writer failed or was aborted");
+        }
+    }
+
+    private void writePermit(S100DataPermit dataPermit) throws XMLStreamException {
+        S100ProductSpecification productSpecification = dataPermit.getProductSpecification();
+        if (!productSpecification.equals(currentProductSpecification)) {
+            if (currentProductSpecification != null) {
+                if (productSpecification.compareTo(currentProductSpecification) < 0) {
+                    throw new IllegalArgumentException("Permits must be sorted by product specification: "
+                            + productSpecification + " after " + currentProductSpecification);
+                }
+                writer.writeEndElement(); // s100:product
+            }
+            writer.writeStartElement(S100_PREFIX, PRODUCT_ELEMENT, S100_NAMESPACE);
+            writer.writeAttribute(ID_ATTRIBUTE, productSpecification.toString());
+            currentProductSpecification = productSpecification;
+        }
+
+        writer.writeStartElement(S100_PREFIX, DATASET_PERMIT_ELEMENT, S100_NAMESPACE);
+        writeElement(FILENAME_ELEMENT, dataPermit.getFileName());
+        writeElement(EDITION_NUMBER_ELEMENT, Integer.toString(dataPermit.getEdtn()));
+        if (dataPermit.getPermitEndDate() != null) {
+            writeElement(EXPIRY_ELEMENT, expiryDateFormat.format(dataPermit.getPermitEndDate()));
+        }
+        writeElement(ENCRYPTED_KEY_ELEMENT, dataPermit.getEncryptedDataKey());
+        writer.writeEndElement(); // s100:datasetPermit
+    }
+
+    /**
+     * @param dataPermits 제품 사양 순으로 정렬된 permit. iterator가 던진 예외도 쓰기 실패로 처리합니다.
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public void writeAll(Iterator<S100DataPermit> dataPermits) throws XMLStreamException {
+        checkOpen();
+        boolean written = false;
+        try {
+            while (dataPermits.hasNext()) {
+                writePermit(dataPermits.next());
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * 문서를 끝내지 않고 닫습니다. 파일 경로로 연 경우 임시 파일을 지우고 출력 파일은 그대로 둡니다.
+     */
+    public void abort() {
+        failed = true;
+        if (!closed) {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 열린 요소를 모두 닫고 문서를 끝냅니다. 파일 경로로 연 경우 임시 파일로 출력 파일을 대체합니다. 쓰기가
+     * 실패했거나 {@link #abort()}를 호출한 경우에는 문서를 끝내지 않고 {@link #abort()}처럼 닫습니다.
+     *
+     * @throws IOException 파일을 닫거나 대체할 수 없는 경우
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    @Override
+    public void close() throws IOException, XMLStreamException {
+        if (closed) {
+            return;
+        }
+        if (failed) {
+            closeQuietly();
+            return;
+        }
+        closed = true;
+        boolean complete = false;
+        try {
+            if (currentProductSpecification != null) {
+                writer.writeEndElement(); // s100:product
+            }
+            writer.writeEndElement(); // s100:products
+            writer.writeEndElement(); // s100:Permit
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+            if (ownedOut != null) {
+                ownedOut.close();
+            }
+            if (tmp != null) {
+                FileUtils.moveIntoPlace(tmp, path);
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                failed = true;
+                closeQuietly();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        closed = true;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (XMLStreamException e) {
+                // already failing
+            }
+        }
+        if (ownedOut != null) {
+            try {
+                ownedOut.close();
+            } catch (IOException e) {
+                // already failing
+            }
+        }
+        if (tmp != null) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                // already failing
+            }
+        }
+    }
+
+}
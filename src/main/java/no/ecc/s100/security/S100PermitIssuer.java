@@ -0,0 +1,251 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLStreamException;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 여러 사용자 permit에 대해 같은 데이터셋 목록의 PERMIT.XML을 한꺼번에 발행하는 클래스.
+ * <p>
+ * 데이터셋 목록은 제품 사양과 파일 이름 순으로 한 번 정렬하고 평문 데이터 키를 연속된 배열로 보관합니다.
+ * 사용자 permit마다 HW_ID를 한 번만 복호화하고, {@link S100DataKeyBatch}로 모든 데이터 키를 한 번에
+ * 암호화한 뒤 {@link S100PermitFileStreamWriter}로 바로 씁니다. {@link S100PermitFile}을 만들지 않으므로
+ * permit 객체가 쌓이지 않습니다. 사용자 permit들은 {@link ForkJoinPool}에서 병렬로 처리합니다. 생성 후에는
+ * 변경되지 않으므로 여러 스레드에서 사용할 수 있습니다.
+ */
+public final class S100PermitIssuer {
+
+    private final S100ManufacturerLookup manufacturerLookup;
+    private final String dataserver;
+    private final Date date;
+
+    // the catalogue sorted by product specification and file name
+    private final String[] fileNames;
+    private final int[] editions;
+    private final Date[] permitEndDates;
+    private final S100ProductSpecification[] productSpecifications;
+    private final byte[] dataKeys;
+
+    /**
+     * @param manufacturerLookup 사용자 permit의 M_ID로 제조사를 찾을 lookup
+     * @param dataserver 데이터 서버 이름
+     * @param catalogue 발행할 데이터셋 목록. 이후의 변경은 반영되지 않습니다.
+     */
+    public S100PermitIssuer(S100ManufacturerLookup manufacturerLookup, String dataserver, Catalogue catalogue) {
+        this.manufacturerLookup = manufacturerLookup;
+        this.dataserver = dataserver;
+        this.date = new Date();
+
+        List<Catalogue.Entry> entries = new ArrayList<>(catalogue.entries.values());
+        entries.sort(Comparator.comparing((Catalogue.Entry e) -> e.productSpecification)
+                .thenComparing(e -> e.fileName));
+        int size = entries.size();
+        fileNames = new String[size];
+        editions = new int[size];
+        permitEndDates = new Date[size];
+        productSpecifications = new S100ProductSpecification[size];
+        dataKeys = new byte[size * S100DataKeyBatch.KEY_LENGTH];
+        for (int i = 0; i < size; i++) {
+            Catalogue.Entry entry = entries.get(i);
+            fileNames[i] = entry.fileName;
+            editions[i] = entry.edtn;
+            permitEndDates[i] = entry.permitEndDate;
+            productSpecifications[i] = entry.productSpecification;
+            System.arraycopy(entry.dataKey, 0, dataKeys, i * S100DataKeyBatch.KEY_LENGTH,
+                    S100DataKeyBatch.KEY_LENGTH);
+        }
+    }
+
+    /**
+     * @return 발행할 데이터셋 수
+     */
+    public int size() {
+        return fileNames.length;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getDataserver() {
+        return dataserver;
+    }
+
+    /**
+     * 사용자 permit 하나에 대한 PERMIT.XML을 씁니다.
+     *
+     * @param userPermit 사용자 permit
+     * @param out 출력 스트림. 닫지 않습니다.
+     * @throws IllegalStateException 제조사를 찾을 수 없거나 HW_ID를 복호화할 수 없는 경우
+     * @throws GeneralSecurityException 데이터 키 암호화 오류 시
+     * @throws IOException 쓰기 오류 시
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public void issue(S100UserPermit userPermit, OutputStream out)
+            throws GeneralSecurityException, IOException, XMLStreamException {
+        byte[] encryptedKeys = wrap(userPermit);
+        S100PermitFileStreamWriter.write(out, date, dataserver, userPermit.getUserPermitString(),
+                permits(encryptedKeys));
+    }
+
+    /**
+     * 사용자 permit 하나에 대한 PERMIT.XML 파일을 씁니다. 실패하면 기존 파일을 그대로 둡니다.
+     *
+     * @param userPermit 사용자 permit
+     * @param path 출력 파일
+     * @throws IllegalStateException 제조사를 찾을 수 없거나 HW_ID를 복호화할 수 없는 경우
+     * @throws GeneralSecurityException 데이터 키 암호화 오류 시
+     * @throws IOException 파일 쓰기 오류 시
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public void issue(S100UserPermit userPermit, Path path)
+            throws GeneralSecurityException, IOException, XMLStreamException {
+        byte[] encryptedKeys = wrap(userPermit);
+        S100PermitFileStreamWriter.write(path, date, dataserver, userPermit.getUserPermitString(),
+                permits(encryptedKeys));
+    }
+
+    /**
+     * {@link #issueAll(Collection, Function, ForkJoinPool)}를 {@link ForkJoinPool#commonPool()}로
+     * 실행합니다.
+     */
+    public int issueAll(Collection<S100UserPermit> userPermits, Function<S100UserPermit, Path> output)
+            throws GeneralSecurityException, IOException, XMLStreamException {
+        return issueAll(userPermits, output, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 사용자 permit마다 PERMIT.XML 파일을 병렬로 씁니다. 같은 사용자 permit 문자열은 한 번만 발행합니다.
+     * 하나라도 실패하면 첫 오류를 던지며, 다른 파일은 이미 쓰였을 수 있습니다.
+     *
+     * @param userPermits 사용자 permit들
+     * @param output 사용자 permit의 출력 파일. 사용자 permit마다 다른 파일이어야 합니다.
+     * @param pool 발행에 사용할 스레드 풀
+     * @return 쓴 파일 수
+     * @throws IllegalStateException 제조사를 찾을 수 없거나 HW_ID를 복호화할 수 없는 경우
+     * @throws GeneralSecurityException 데이터 키 암호화 오류 시
+     * @throws IOException 파일 쓰기 오류 시
+     * @throws XMLStreamException XML 생성 오류 시
+     */
+    public int issueAll(Collection<S100UserPermit> userPermits, Function<S100UserPermit, Path> output,
+            ForkJoinPool pool) throws GeneralSecurityException, IOException, XMLStreamException {
+        Map<String, S100UserPermit> distinct = new LinkedHashMap<>();
+        for (S100UserPermit userPermit : userPermits) {
+            distinct.putIfAbsent(userPermit.getUserPermitString(), userPermit);
+        }
+        List<S100UserPermit> work = new ArrayList<>(distinct.values());
+        if (work.size() < 2 || pool.getParallelism() < 2) {
+            for (S100UserPermit userPermit : work) {
+                issue(userPermit, output.apply(userPermit));
+            }
+            return work.size();
+        }
+
+        S100Parallel.run(() -> pool.submit(() -> work.parallelStream().forEach(userPermit -> S100Parallel
+                .unchecked(() -> issue(userPermit, output.apply(userPermit))))).join(),
+                GeneralSecurityException.class, IOException.class, XMLStreamException.class);
+        return work.size();
+    }
+
+    private byte[] wrap(S100UserPermit userPermit) throws GeneralSecurityException {
+        String hwId = S100PermitFile.decryptHwId(manufacturerLookup, userPermit);
+        // one cipher init and doFinal for the whole catalogue. users are
+        // already issued in parallel, so the keys are not split further.
+        return new S100DataKeyBatch(hwId).wrap(dataKeys);
+    }
+
+    private Iterator<S100DataPermit> permits(byte[] encryptedKeys) {
+        return new Iterator<S100DataPermit>() {
+
+            private int row;
+
+            @Override
+            public boolean hasNext() {
+                return row < fileNames.length;
+            }
+
+            @Override
+            public S100DataPermit next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int i = row++;
+                String encryptedKey = Hex.toString(Arrays.copyOfRange(encryptedKeys,
+                        i * S100DataKeyBatch.KEY_LENGTH, (i + 1) * S100DataKeyBatch.KEY_LENGTH));
+                return new S100DataPermit(fileNames[i], editions[i], permitEndDates[i], encryptedKey,
+                        productSpecifications[i]);
+            }
+        };
+    }
+
+    /**
+     * 발행할 데이터셋과 평문 데이터 키의 목록. 같은 파일 이름을 다시 추가하면 대체합니다. 동기화되지
+     * 않습니다.
+     */
+    public static final class Catalogue {
+
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        /**
+         * @param fileName 데이터셋 파일 이름
+         * @param edtn 판 번호
+         * @param permitEndDate 만료일. 없으면 null
+         * @param dataKey 16진수로 인코딩된 평문 데이터 키
+         * @param productSpecification 제품 사양
+         * @return 이 목록
+         */
+        public Catalogue add(String fileName, int edtn, Date permitEndDate, String dataKey,
+                S100ProductSpecification productSpecification) {
+            byte[] key = Hex.fromString(dataKey);
+            if (key.length != S100DataKeyBatch.KEY_LENGTH) {
+                throw new IllegalArgumentException(
+                        "Expected key length " + S100DataKeyBatch.KEY_LENGTH + " not " + key.length);
+            }
+            entries.put(fileName, new Entry(fileName, edtn, permitEndDate, key, productSpecification));
+            return this;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        private static final class Entry {
+
+            private final String fileName;
+            private final int edtn;
+            private final Date permitEndDate;
+            private final byte[] dataKey;
+            private final S100ProductSpecification productSpecification;
+
+            private Entry(String fileName, int edtn, Date permitEndDate, byte[] dataKey,
+                    S100ProductSpecification productSpecification) {
+                this.fileName = fileName;
+                this.edtn = edtn;
+                this.permitEndDate = permitEndDate;
+                this.dataKey = dataKey;
+                this.productSpecification = productSpecification;
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,277 @@
+package no.ecc.s100.security;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+
+import no.ecc.s100.S100FileName;
+import no.ecc.s100.S100ProductSpecification;
+
+/**
+ * 데이터셋 permit을 여러 키로 찾을 수 있는 메모리 내 저장소.
+ * <p>
+ * 파일 이름과 데이터셋 id는 해시 인덱스로, 생산자 코드와 제품 사양은 보조 인덱스로 상수 시간에
+ * 조회합니다. 만료일 인덱스는 만료일 순으로 정렬되어 있어 구간 조회와 만료된 permit 제거가 전체를
+ * 훑지 않고 해당 구간만 읽습니다. 파일 이름이 같은 permit은 하나만 보관하며 새로 추가한 permit이
+ * 기존 것을 대체합니다. 제품 사양과 파일 이름 순으로 정렬된 목록은 요청할 때 만들어 다음 변경까지
+ * 재사용합니다.
+ * <p>
+ * 모든 메서드는 이 객체로 동기화되므로 {@link S100PermitExpiryScheduler}가 백그라운드에서 permit을
+ * 제거하는 동안에도 안전하게 사용할 수 있습니다. 돌려주는 집합과 목록은 호출 시점의 복사본이며 이후
+ * 변경이 반영되지 않습니다. 여러 호출을 하나의 변경으로 묶으려면 이 객체로 동기화합니다.
+ */
+public class S100PermitRegistry {
+
+    private static final Comparator<S100DataPermit> PRODUCT_AND_FILE_NAME_ORDER = Comparator
+            .comparing(S100DataPermit::getProductSpecification).thenComparing(Comparator.naturalOrder());
+
+    private final Map<String, S100DataPermit> byFileName = new HashMap<>();
+    private final SetMultimap<String, S100DataPermit> byDataSetId = HashMultimap.create();
+    private final SetMultimap<String, S100DataPermit> byProducerCode = HashMultimap.create();
+    private final SetMultimap<S100ProductSpecification, S100DataPermit> byProductSpecification = HashMultimap
+            .create();
+    // permit end date in milliseconds. permits without an end date are not
+    // indexed.
+    private final NavigableMap<Long, Set<S100DataPermit>> byExpiry = new TreeMap<>();
+
+    // built on demand, cleared on every change
+    private List<S100DataPermit> sorted;
+    private Map<S100ProductSpecification, List<S100DataPermit>> sortedByProductSpecification;
+
+    /**
+     * permit을 추가합니다. 파일 이름이 같은 permit이 있으면 대체합니다.
+     *
+     * @param dataPermit 추가할 permit
+     * @return 대체된 permit. 없으면 null
+     */
+    public synchronized S100DataPermit add(S100DataPermit dataPermit) {
+        S100DataPermit previous = remove(dataPermit.getFileName());
+        byFileName.put(dataPermit.getFileName(), dataPermit);
+        byDataSetId.put(dataPermit.getDataSetId(), dataPermit);
+        String producerCode = S100FileName.producerCode(dataPermit.getFileName());
+        if (producerCode != null) {
+            byProducerCode.put(producerCode, dataPermit);
+        }
+        byProductSpecification.put(dataPermit.getProductSpecification(), dataPermit);
+        if (dataPermit.getPermitEndDate() != null) {
+            byExpiry.computeIfAbsent(dataPermit.getPermitEndDate().getTime(), k -> new HashSet<>()).add(dataPermit);
+        }
+        changed();
+        return previous;
+    }
+
+    public synchronized void addAll(Collection<S100DataPermit> dataPermits) {
+        for (S100DataPermit dataPermit : dataPermits) {
+            add(dataPermit);
+        }
+    }
+
+    /**
+     * @param fileName 제거할 permit의 파일 이름
+     * @return 제거된 permit. 없으면 null
+     */
+    public synchronized S100DataPermit remove(String fileName) {
+        S100DataPermit dataPermit = byFileName.remove(fileName);
+        if (dataPermit == null) {
+            return null;
+        }
+        byDataSetId.remove(dataPermit.getDataSetId(), dataPermit);
+        String producerCode = S100FileName.producerCode(fileName);
+        if (producerCode != null) {
+            byProducerCode.remove(producerCode, dataPermit);
+        }
+        byProductSpecification.remove(dataPermit.getProductSpecification(), dataPermit);
+        if (dataPermit.getPermitEndDate() != null) {
+            Long expiry = dataPermit.getPermitEndDate().getTime();
+            Set<S100DataPermit> expiring = byExpiry.get(expiry);
+            expiring.remove(dataPermit);
+            if (expiring.isEmpty()) {
+                byExpiry.remove(expiry);
+            }
+        }
+        changed();
+        return dataPermit;
+    }
+
+    private void changed() {
+        sorted = null;
+        sortedByProductSpecification = null;
+    }
+
+    public synchronized int size() {
+        return byFileName.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return byFileName.isEmpty();
+    }
+
+    /**
+     * @param fileName 데이터셋 파일 이름
+     * @return 해당 permit. 없으면 null
+     */
+    public synchronized S100DataPermit getByFileName(String fileName) {
+        return byFileName.get(fileName);
+    }
+
+    /**
+     * @param dataSetId 확장자를 제외한 데이터셋 파일 이름
+     * @return 해당 데이터셋의 permit들
+     */
+    public synchronized Set<S100DataPermit> getByDataSetId(String dataSetId) {
+        return ImmutableSet.copyOf(byDataSetId.get(dataSetId));
+    }
+
+    /**
+     * @param producerCode {@link S100FileName#producerCode(String)}가 반환하는 생산자 코드
+     * @return 해당 생산자의 permit들
+     */
+    public synchronized Set<S100DataPermit> getByProducerCode(String producerCode) {
+        return ImmutableSet.copyOf(byProducerCode.get(producerCode));
+    }
+
+    /**
+     * @param productSpecification 제품 사양
+     * @return 해당 제품 사양의 permit들. 순서는 정해져 있지 않습니다.
+     */
+    public synchronized Set<S100DataPermit> getByProductSpecification(
+            S100ProductSpecification productSpecification) {
+        return ImmutableSet.copyOf(byProductSpecification.get(productSpecification));
+    }
+
+    /**
+     * @return permit이 있는 제품 사양들
+     */
+    public synchronized Set<S100ProductSpecification> getProductSpecifications() {
+        return ImmutableSet.copyOf(byProductSpecification.keySet());
+    }
+
+    /**
+     * @param from 시작 시각 (포함)
+     * @param to 끝 시각 (제외)
+     * @return 만료일이 주어진 구간에 있는 permit들. 만료일 순으로 정렬됩니다.
+     */
+    public synchronized List<S100DataPermit> getExpiringBetween(Date from, Date to) {
+        if (!from.before(to)) {
+            return Collections.emptyList();
+        }
+        return flatten(byExpiry.subMap(from.getTime(), true, to.getTime(), false));
+    }
+
+    /**
+     * @param time 기준 시각
+     * @return 만료일이 주어진 시각보다 이전인 permit들. 만료일 순으로 정렬됩니다.
+     */
+    public synchronized List<S100DataPermit> getExpiredBefore(Date time) {
+        return flatten(byExpiry.headMap(time.getTime(), false));
+    }
+
+    /**
+     * @return 가장 이른 permit 만료일. 만료일이 있는 permit이 없으면 null
+     */
+    public synchronized Date getNextExpiry() {
+        return byExpiry.isEmpty() ? null : new Date(byExpiry.firstKey());
+    }
+
+    /**
+     * {@link #removeExpired(Date, ZoneId)}를 시스템 기본 시간대로 실행합니다.
+     */
+    public synchronized List<S100DataPermit> removeExpired(Date time) {
+        return removeExpired(time, ZoneId.systemDefault());
+    }
+
+    /**
+     * 주어진 시각에 만료된 permit들을 제거합니다. 만료일은 permit을 사용할 수 있는 마지막 날이므로
+     * 만료일 다음 날 0시부터 만료된 것으로 봅니다.
+     *
+     * @param time 기준 시각
+     * @param zone 날짜를 구분할 시간대
+     * @return 제거된 permit들. 만료일 순으로 정렬됩니다.
+     */
+    public synchronized List<S100DataPermit> removeExpired(Date time, ZoneId zone) {
+        // expired when the end date is on a day before the day of time
+        List<S100DataPermit> expired = getExpiredBefore(startOfDay(time, zone));
+        for (S100DataPermit dataPermit : expired) {
+            remove(dataPermit.getFileName());
+        }
+        return expired;
+    }
+
+    /**
+     * @param zone 날짜를 구분할 시간대
+     * @return 가장 이른 만료일의 permit이 만료되는 시각, 즉 만료일 다음 날 0시. 만료일이 있는 permit이
+     *         없으면 null
+     */
+    public synchronized Date getNextExpiryTime(ZoneId zone) {
+        Date nextExpiry = getNextExpiry();
+        if (nextExpiry == null) {
+            return null;
+        }
+        LocalDate day = nextExpiry.toInstant().atZone(zone).toLocalDate();
+        return Date.from(day.plusDays(1).atStartOfDay(zone).toInstant());
+    }
+
+    private static Date startOfDay(Date time, ZoneId zone) {
+        return Date.from(time.toInstant().atZone(zone).toLocalDate().atStartOfDay(zone).toInstant());
+    }
+
+    private static List<S100DataPermit> flatten(Map<Long, Set<S100DataPermit>> byExpiry) {
+        List<S100DataPermit> result = new ArrayList<>();
+        for (Set<S100DataPermit> dataPermits : byExpiry.values()) {
+            result.addAll(dataPermits);
+        }
+        return result;
+    }
+
+    /**
+     * @return 제품 사양, 파일 이름 순으로 정렬된 모든 permit
+     */
+    public synchronized List<S100DataPermit> sorted() {
+        if (sorted == null) {
+            List<S100DataPermit> list = new ArrayList<>(byFileName.values());
+            list.sort(PRODUCT_AND_FILE_NAME_ORDER);
+            sorted = Collections.unmodifiableList(list);
+        }
+        return sorted;
+    }
+
+    /**
+     * @param productSpecification 제품 사양
+     * @return 해당 제품 사양의 permit들을 파일 이름 순으로 정렬한 목록
+     */
+    public synchronized List<S100DataPermit> sorted(S100ProductSpecification productSpecification) {
+        if (sortedByProductSpecification == null) {
+            // the permits of each product specification are a range of the
+            // sorted list
+            Map<S100ProductSpecification, List<S100DataPermit>> ranges = new LinkedHashMap<>();
+            List<S100DataPermit> all = sorted();
+            int start = 0;
+            for (int i = 1; i <= all.size(); i++) {
+                if (i == all.size() || !all.get(i).getProductSpecification()
+                        .equals(all.get(start).getProductSpecification())) {
+                    ranges.put(all.get(start).getProductSpecification(), all.subList(start, i));
+                    start = i;
+                }
+            }
+            sortedByProductSpecification = ranges;
+        }
+        return sortedByProductSpecification.getOrDefault(productSpecification, Collections.emptyList());
+    }
+
+}
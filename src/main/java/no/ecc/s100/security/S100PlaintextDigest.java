@@ -0,0 +1,176 @@
+package no.ecc.s100.security;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import no.ecc.s100.utility.CRC32Helper;
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 복호화하는 동안 평문의 CRC32 및/또는 SHA-256을 함께 계산하는 클래스.
+ * <p>
+ * {@link S100Crypt.RandomIV#decrypt(java.io.InputStream, S100PlaintextDigest)} 등에 전달하면 복호화된
+ * 데이터가 캐시에 있는 동안 체크섬을 갱신하므로 평문을 다시 읽을 필요가 없습니다. 스트림을 끝까지
+ * 읽고 닫거나 파일 복호화가 끝나면 결과가 확정되고 {@link #onComplete(Consumer)}로 등록한 리스너가
+ * 호출됩니다. 한 인스턴스는 한 번의 복호화에만 사용합니다.
+ */
+public final class S100PlaintextDigest {
+
+    private static final String SHA_256 = "SHA-256";
+
+    private final CRC32 crc32;
+    private final MessageDigest sha256;
+    private Consumer<S100PlaintextDigest> listener;
+
+    private long length;
+    private boolean complete;
+    private long crc32Value;
+    private byte[] sha256Value;
+
+    private S100PlaintextDigest(boolean crc32, boolean sha256) {
+        this.crc32 = crc32 ? new CRC32() : null;
+        try {
+            this.sha256 = sha256 ? MessageDigest.getInstance(SHA_256) : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return 평문의 CRC32만 계산하는 인스턴스
+     */
+    public static S100PlaintextDigest crc32() {
+        return new S100PlaintextDigest(true, false);
+    }
+
+    /**
+     * @return 평문의 SHA-256만 계산하는 인스턴스
+     */
+    public static S100PlaintextDigest sha256() {
+        return new S100PlaintextDigest(false, true);
+    }
+
+    /**
+     * @return 평문의 CRC32와 SHA-256을 모두 계산하는 인스턴스
+     */
+    public static S100PlaintextDigest crc32AndSha256() {
+        return new S100PlaintextDigest(true, true);
+    }
+
+    /**
+     * 결과가 확정되면 호출될 리스너를 등록합니다.
+     *
+     * @param listener 확정된 결과를 받을 리스너
+     * @return 이 인스턴스
+     */
+    public S100PlaintextDigest onComplete(Consumer<S100PlaintextDigest> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    void update(byte[] data, int offset, int len) {
+        checkNotComplete();
+        if (crc32 != null) {
+            crc32.update(data, offset, len);
+        }
+        if (sha256 != null) {
+            sha256.update(data, offset, len);
+        }
+        length += len;
+    }
+
+    /**
+     * Update with the remaining bytes of the buffer, leaving its position
+     * unchanged.
+     */
+    void update(ByteBuffer data) {
+        checkNotComplete();
+        if (crc32 != null) {
+            crc32.update(data.duplicate());
+        }
+        if (sha256 != null) {
+            sha256.update(data.duplicate());
+        }
+        length += data.remaining();
+    }
+
+    void complete() {
+        checkNotComplete();
+        complete = true;
+        if (crc32 != null) {
+            crc32Value = crc32.getValue();
+        }
+        if (sha256 != null) {
+            sha256Value = sha256.digest();
+        }
+        if (listener != null) {
+            listener.accept(this);
+        }
+    }
+
+    private void checkNotComplete() {
+        if (complete) {
+            throw new IllegalStateException("Digest already complete");
+        }
+    }
+
+    private void checkComplete() {
+        if (!complete) {
+            throw new IllegalStateException("Plain text not completely decrypted");
+        }
+    }
+
+    /**
+     * @return 평문 전체를 읽고 결과가 확정되었으면 true
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return 평문의 길이
+     */
+    public long getLength() {
+        checkComplete();
+        return length;
+    }
+
+    /**
+     * @return 평문의 CRC32
+     * @throws IllegalStateException 결과가 확정되지 않았거나 CRC32를 계산하지 않는 경우
+     */
+    public long getCrc32() {
+        checkComplete();
+        if (crc32 == null) {
+            throw new IllegalStateException("CRC32 not requested");
+        }
+        return crc32Value;
+    }
+
+    /**
+     * @return {@link CRC32Helper#crc32String(byte[])}과 같은 형식의 평문 CRC32
+     */
+    public String getCrc32String() {
+        return CRC32Helper.crc32String(getCrc32());
+    }
+
+    /**
+     * @return 평문의 SHA-256
+     * @throws IllegalStateException 결과가 확정되지 않았거나 SHA-256을 계산하지 않는 경우
+     */
+    public byte[] getSha256() {
+        checkComplete();
+        if (sha256 == null) {
+            throw new IllegalStateException("SHA-256 not requested");
+        }
+        return sha256Value.clone();
+    }
+
+    public String getSha256String() {
+        return Hex.toString(getSha256());
+    }
+
+}
@@ -12,7 +12,7 @@ public class S100Signature {
     private byte[] signatureBytes;
 
     public S100Signature() throws GeneralSecurityException {
-        signature = Signature.getInstance("SHA256withDSA");
+        signature = S100CryptoProviders.newSignature("SHA256withDSA");
     }
 
     public S100Signature(byte[] signatureBase64Bytes) throws GeneralSecurityException {
@@ -0,0 +1,185 @@
+package no.ecc.s100.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import no.ecc.s100.utility.FileUtils;
+
+/**
+ * 교환 세트의 여러 파일을 데이터 서버 키로 병렬 서명하는 클래스.
+ * <p>
+ * {@link java.security.Signature}는 상태를 가지므로 스레드 간에 공유할 수 없습니다. 이 클래스는 스레드마다
+ * 데이터 서버 키로 한 번 초기화한 {@link S100Signature}와 읽기 버퍼를 두고, 서명 후에도 다시 초기화하지
+ * 않고 재사용합니다. 파일은 메모리에 모두 올리지 않고 버퍼 크기만큼 읽으면서 서명합니다. 서명 결과는
+ * {@link #writeSignatures(Map, Path, Path)}로 한 번에 씁니다.
+ */
+public final class S100SigningPipeline {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final PrivateKey privateKey;
+    private final ThreadLocal<Signer> signers;
+
+    /**
+     * @param privateKey 데이터 서버 서명 키
+     */
+    public S100SigningPipeline(PrivateKey privateKey) {
+        this.privateKey = privateKey;
+        this.signers = new ThreadLocal<>();
+    }
+
+    private Signer signer() throws GeneralSecurityException {
+        Signer signer = signers.get();
+        if (signer == null) {
+            S100Signature signature = new S100Signature();
+            signature.initSign(privateKey);
+            signer = new Signer(signature);
+            signers.set(signer);
+        }
+        return signer;
+    }
+
+    /**
+     * @param in 서명할 데이터. 닫지 않습니다.
+     * @return base64로 인코딩된 서명
+     * @throws GeneralSecurityException 서명 오류 시
+     * @throws IOException 읽기 오류 시
+     */
+    public String sign(InputStream in) throws GeneralSecurityException, IOException {
+        Signer signer = signer();
+        S100Signature signature = signer.signature;
+        byte[] buffer = signer.buffer;
+        boolean complete = false;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                signature.update(buffer, 0, n);
+            }
+            // sign() resets the signature for the next file with the same key
+            signature.sign();
+            complete = true;
+            return signature.toString();
+        } finally {
+            if (!complete) {
+                // discard the partial update
+                signers.remove();
+            }
+        }
+    }
+
+    /**
+     * @param file 서명할 파일
+     * @return base64로 인코딩된 서명
+     * @throws GeneralSecurityException 서명 오류 시
+     * @throws IOException 읽기 오류 시
+     */
+    public String sign(Path file) throws GeneralSecurityException, IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return sign(in);
+        }
+    }
+
+    /**
+     * {@link #signAll(Collection, ForkJoinPool)}를 {@link ForkJoinPool#commonPool()}로 실행합니다.
+     */
+    public Map<Path, String> signAll(Collection<Path> files) throws GeneralSecurityException, IOException {
+        return signAll(files, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 파일들을 병렬로 서명합니다. 하나라도 실패하면 첫 오류를 던집니다.
+     *
+     * @param files 서명할 파일들
+     * @param pool 서명에 사용할 스레드 풀
+     * @return 주어진 순서대로 파일과 base64로 인코딩된 서명
+     * @throws GeneralSecurityException 서명 오류 시
+     * @throws IOException 읽기 오류 시
+     */
+    public Map<Path, String> signAll(Collection<Path> files, ForkJoinPool pool)
+            throws GeneralSecurityException, IOException {
+        List<Path> work = new ArrayList<>(files);
+        String[] signatures = new String[work.size()];
+        if (work.size() < 2 || pool.getParallelism() < 2) {
+            for (int i = 0; i < signatures.length; i++) {
+                signatures[i] = sign(work.get(i));
+            }
+        } else {
+            signParallel(work, signatures, pool);
+        }
+
+        Map<Path, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < signatures.length; i++) {
+            result.put(work.get(i), signatures[i]);
+        }
+        return result;
+    }
+
+    private void signParallel(List<Path> work, String[] signatures, ForkJoinPool pool)
+            throws GeneralSecurityException, IOException {
+        S100Parallel.run(() -> pool.submit(() -> IntStream.range(0, signatures.length).parallel()
+                .forEach(i -> S100Parallel.unchecked(() -> signatures[i] = sign(work.get(i))))).join(),
+                GeneralSecurityException.class, IOException.class);
+    }
+
+    /**
+     * 서명들을 한 줄에 하나씩 "경로,서명" 형식으로 한 번에 씁니다. 경로는 root에 대한 상대 경로이며 구분자는
+     * '/'이므로, 제품별 폴더에 같은 이름의 파일이 있어도 구분됩니다. 같은 디렉터리의 임시 파일에 쓴 뒤 출력
+     * 파일을 대체하므로 읽는 쪽은 완성된 파일만 봅니다.
+     *
+     * @param signatures 파일과 base64로 인코딩된 서명
+     * @param root 경로의 기준 디렉터리. 보통 교환 세트의 최상위 디렉터리
+     * @param output 출력 파일
+     * @throws IllegalArgumentException 파일이 root 아래에 있지 않은 경우
+     * @throws IOException 쓰기 오류 시. 기존 출력 파일은 그대로 남습니다.
+     */
+    public static void writeSignatures(Map<Path, String> signatures, Path root, Path output) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        StringBuilder sb = new StringBuilder(signatures.size() * 96);
+        for (Map.Entry<Path, String> entry : signatures.entrySet()) {
+            Path file = entry.getKey().toAbsolutePath().normalize();
+            if (!file.startsWith(base) || file.equals(base)) {
+                throw new IllegalArgumentException(entry.getKey() + " is not under " + root);
+            }
+            Path relative = base.relativize(file);
+            for (int i = 0; i < relative.getNameCount(); i++) {
+                if (i > 0) {
+                    sb.append('/');
+                }
+                sb.append(relative.getName(i));
+            }
+            sb.append(',').append(entry.getValue()).append('\n');
+        }
+
+        Path tmp = FileUtils.createTempFileFor(output);
+        try {
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            FileUtils.moveIntoPlace(tmp, output);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static final class Signer {
+
+        private final S100Signature signature;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private Signer(S100Signature signature) {
+            this.signature = signature;
+        }
+
+    }
+
+}
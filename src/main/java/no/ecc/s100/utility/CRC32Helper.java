@@ -15,7 +15,18 @@ public class CRC32Helper {
      * @return
      */
     public static String crc32String(byte[] data) {
-        return Integer.toHexString((int) crc32(data)).toUpperCase();
+        return crc32String(crc32(data));
+    }
+
+    /**
+     * Format a CRC checksum as a hex string.
+     * 
+     * @param crc32
+     *            the checksum, as returned by {@link #crc32(byte[])}
+     * @return
+     */
+    public static String crc32String(long crc32) {
+        return Integer.toHexString((int) crc32).toUpperCase();
     }
 
     public static long crc32(byte[] data) {
@@ -1,14 +1,56 @@
 package no.ecc.s100.utility;
 
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Stream;
 
 public class FileUtils {
 
+    // what a file created without a temporary file usually gets
+    private static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+    /**
+     * Create a temporary file next to the target, to be moved over it with
+     * {@link #moveIntoPlace(Path, Path)} once complete. Temporary files are
+     * only readable by the owner on POSIX file systems, so the permissions are
+     * copied from an existing target, or set to rw-r--r-- for a new one.
+     */
+    public static Path createTempFileFor(Path target) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        if (absolute.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            try {
+                Files.setPosixFilePermissions(tmp, Files.exists(absolute)
+                        ? Files.getPosixFilePermissions(absolute) : DEFAULT_PERMISSIONS);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+        }
+        return tmp;
+    }
+
+    /**
+     * Replace the target with the complete temporary file. The move is atomic
+     * where the file system supports it, so readers see either the old or the
+     * new file.
+     */
+    public static void moveIntoPlace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Return the basename of the given filename.
      */
@@ -9,54 +9,26 @@ public class Zip {
      * ZIP 파일을 안전하게 압축 해제하는 메소드
      */
     public static void extractZip(String zipFilePath, String extractDir) throws IOException {
-        // 압축 해제할 디렉토리 생성
-        Path extractPath = Paths.get(extractDir);
-        Files.createDirectories(extractPath);
-
-        try (ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zipFilePath))) {
-            ZipEntry entry;
-
-            while ((entry = zipIn.getNextEntry()) != null) {
-                String fileName = entry.getName();
-                System.out.println("압축 해제 중: " + fileName);
-
-                // 보안: 경로 조작 공격 방지 (Zip Slip 방지)
-                Path extractPathAbs = extractPath.toAbsolutePath().normalize();
-                Path entryPath = extractPathAbs.resolve(fileName).normalize();
-                if (!entryPath.startsWith(extractPathAbs)) {
-                    throw new IOException("잘못된 ZIP 엔트리: " + fileName);
-                }
-
-                if (entry.isDirectory()) {
-                    // 디렉토리 생성
-                    Files.createDirectories(entryPath);
-                } else {
-                    // 파일 압축 해제
-                    Files.createDirectories(entryPath.getParent());
-
-                    try (BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(entryPath))) {
-
-                        byte[] buffer = new byte[4096];
-                        int read;
-
-                        while ((read = zipIn.read(buffer)) != -1) {
-                            bos.write(buffer, 0, read);
-                        }
-                    }
-
-                    System.out.println("완료: " + fileName + " (" + Files.size(entryPath) + " bytes)");
-                }
-                zipIn.closeEntry();
-            }
-        }
+        extractZip(new FileInputStream(zipFilePath), extractDir);
     }
 
     public static void extractZip(byte[] zipBytes, String extractDir) throws IOException {
-        // 압축 해제할 디렉토리 생성
-        Path extractPath = Paths.get(extractDir);
-        Files.createDirectories(extractPath);
+        extractZip(new ByteArrayInputStream(zipBytes), extractDir);
+    }
+
+    /**
+     * ZIP 스트림을 읽으면서 엔트리를 바로 디스크에 압축 해제하는 메소드. 전체 ZIP을 메모리에
+     * 올리지 않으므로 복호화 스트림 등에 직접 연결할 수 있습니다.
+     * @param in ZIP 입력 스트림. 압축 해제 후 닫힙니다.
+     * @param extractDir 압축 해제할 디렉토리 경로
+     * @throws IOException 파일 입출력 오류 또는 잘못된 ZIP 엔트리 발견 시
+     */
+    public static void extractZip(InputStream in, String extractDir) throws IOException {
+        try (ZipInputStream zipIn = new ZipInputStream(in)) {
+            // 압축 해제할 디렉토리 생성. 실패해도 입력 스트림이 닫히도록 try 안에서 만듭니다.
+            Path extractPath = Paths.get(extractDir);
+            Files.createDirectories(extractPath);
 
-        try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
             ZipEntry entry;
 
             while ((entry = zipIn.getNextEntry()) != null) {
@@ -77,12 +49,8 @@ public class Zip {
                     // 파일 압축 해제
                     Files.createDirectories(entryPath.getParent());
 
-                    try (BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(entryPath))) {
-                        byte[] buffer = new byte[4096];
-                        int read;
-                        while ((read = zipIn.read(buffer)) != -1) {
-                            bos.write(buffer, 0, read);
-                        }
+                    try (OutputStream out = Files.newOutputStream(entryPath)) {
+                        zipIn.transferTo(out);
                     }
 
                     System.out.println("완료: " + fileName + " (" + Files.size(entryPath) + " bytes)");
@@ -161,13 +129,26 @@ public class Zip {
      * @throws IOException 파일 입출력 오류 발생 시
      */
     public static byte[] compressZip(String sourcePath) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        compressZip(sourcePath, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * 파일 또는 디렉토리를 ZIP으로 압축하여 출력 스트림에 바로 쓰는 메소드. 임시 파일이나 메모리
+     * 버퍼를 거치지 않으므로 암호화 스트림 등에 직접 연결할 수 있습니다.
+     * @param sourcePath 압축할 파일 또는 디렉토리 경로
+     * @param out ZIP을 쓸 출력 스트림. 압축 완료 후 닫힙니다.
+     * @throws IOException 파일 입출력 오류 발생 시
+     */
+    public static void compressZip(String sourcePath, OutputStream out) throws IOException {
         Path source = Paths.get(sourcePath);
         if (!Files.exists(source)) {
+            out.close();
             throw new IOException("압축할 경로가 존재하지 않습니다: " + sourcePath);
         }
 
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(baos))) {
+        try (ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(out))) {
             
             if (Files.isDirectory(source)) {
                 // 디렉토리인 경우 재귀적으로 압축
@@ -178,7 +159,6 @@ public class Zip {
             }
             
             zos.finish();
-            return baos.toByteArray();
         }
     }
 
@@ -219,15 +199,7 @@ public class Zip {
         zipEntry.setSize(fileSize);
         zos.putNextEntry(zipEntry);
         
-        long totalWritten = 0;
-        try (BufferedInputStream bis = new BufferedInputStream(Files.newInputStream(file))) {
-            byte[] buffer = new byte[4096];
-            int read;
-            while ((read = bis.read(buffer)) != -1) {
-                zos.write(buffer, 0, read);
-                totalWritten += read;
-            }
-        }
+        long totalWritten = Files.copy(file, zos);
         
         zos.closeEntry();
         System.out.println("압축 완료: " + entryName + " (쓰기: " + totalWritten + " bytes)");
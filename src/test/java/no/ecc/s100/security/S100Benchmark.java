@@ -0,0 +1,392 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.stream.XMLStreamException;
+
+import no.ecc.s100.S100ProductSpecification;
+import no.ecc.s100.utility.Hex;
+
+/**
+ * 간단한 처리량 측정. 단위 테스트로 실행되지 않으며 main으로 직접 실행합니다.
+ * 
+ * <pre>
+ * java ... no.ecc.s100.security.S100Benchmark [벤치마크 이름...]
+ * </pre>
+ */
+public class S100Benchmark {
+
+    private static final String HW_ID = "40384B45B54596201114FE9904220101";
+    private static final String DATA_KEY = "1C81DFAB4053D04803FFDC87EF92FDD1";
+    // read and write size used by the zip streams
+    private static final int STREAM_CHUNK_SIZE = 512;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String[] names = args.length > 0 ? args : new String[] { "keys" };
+        for (String name : names) {
+            switch (name) {
+            case "keys":
+                dataKeys();
+                break;
+            case "streams":
+                streams();
+                break;
+            case "parse":
+                parse();
+                break;
+            case "write":
+                write();
+                break;
+            case "issue":
+                issue();
+                break;
+            case "sign":
+                sign();
+                break;
+            case "footprint":
+                footprint();
+                break;
+            case "providers":
+                S100CryptoProviders.selectFastestCipherProvider();
+                S100CryptoProviders.selectFastestSignatureProvider();
+                break;
+            default:
+                System.out.println("Unknown benchmark: " + name);
+            }
+        }
+    }
+
+    private static void dataKeys() throws Exception {
+        int count = 1_000_000;
+        byte[] keys = new byte[count * S100DataKeyBatch.KEY_LENGTH];
+        new Random(1).nextBytes(keys);
+        String[] keysHex = S100DataKeyBatch.toHex(keys);
+        S100DataKeyBatch batch = new S100DataKeyBatch(HW_ID);
+        S100DataKeyBatch other = new S100DataKeyBatch("AB40384B45B54596201114FE99042201");
+        byte[] wrapped = batch.wrap(keys);
+
+        measure("unwrap one by one", count, () -> {
+            for (String key : keysHex) {
+                Hex.toString(new S100Crypt.EmptyIVNoPadding(HW_ID).decrypt(Hex.fromString(key)));
+            }
+        });
+        measure("unwrap batch", count, () -> batch.unwrap(wrapped));
+        measure("unwrap batch parallel", count, () -> batch.unwrapParallel(wrapped));
+        measure("rewrap batch parallel", count, () -> batch.rewrap(wrapped, other, true));
+
+        // opening datasets repeatedly, like a chart viewer does
+        S100PermitFile permitFile = S100PermitFileTest.createPermitFile(10_000);
+        List<S100DataPermit> permits = new ArrayList<>(permitFile.getDataPermits());
+        measure("dataset crypt per open", permits.size(), () -> {
+            for (S100DataPermit permit : permits) {
+                String dataKey = Hex.toString(
+                        new S100Crypt.EmptyIVNoPadding(HW_ID).decrypt(Hex.fromString(permit.getEncryptedDataKey())));
+                new S100Crypt.RandomIV(dataKey);
+            }
+        });
+        permitFile.prewarmDataKeys();
+        measure("dataset crypt memoized", permits.size(), () -> {
+            for (S100DataPermit permit : permits) {
+                permitFile.getDatasetCrypt(permit);
+            }
+        });
+    }
+
+    /**
+     * Encrypt and decrypt through the JDK cipher streams and the S-100 cipher
+     * streams with the small reads and writes typical for zip streams. Reported
+     * as MB/s.
+     */
+    private static void streams() throws GeneralSecurityException, IOException {
+        int megabytes = 32;
+        byte[] data = new byte[megabytes * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        byte[] encrypted = crypt.encrypt(data);
+        SecretKeySpec key = new SecretKeySpec(Hex.fromString(DATA_KEY), "AES");
+
+        // encryption is written to an unbuffered file, as in encryptZip
+        Path file = Files.createTempFile("s100benchmark", ".enc");
+        try {
+            measure("encrypt CipherOutputStream (MB)", megabytes, () -> {
+                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[16]));
+                OutputStream out = new CipherOutputStream(Files.newOutputStream(file), cipher);
+                out.write(new byte[16]);
+                writeChunks(data, out);
+            });
+            measure("encrypt S100CipherOutputStream (MB)", megabytes,
+                    () -> writeChunks(data, crypt.encrypt(Files.newOutputStream(file))));
+        } finally {
+            Files.delete(file);
+        }
+
+        measure("decrypt CipherInputStream (MB)", megabytes, () -> {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(encrypted, 0, 16));
+            readChunks(new CipherInputStream(
+                    new ByteArrayInputStream(encrypted, 16, encrypted.length - 16), cipher));
+        });
+        measure("decrypt S100CipherInputStream (MB)", megabytes,
+                () -> readChunks(crypt.decrypt(new ByteArrayInputStream(encrypted))));
+        measure("transferTo S100CipherInputStream (MB)", megabytes,
+                () -> crypt.decrypt(new ByteArrayInputStream(encrypted)).transferTo(OutputStream.nullOutputStream()));
+    }
+
+    private static void writeChunks(byte[] data, OutputStream out) throws IOException {
+        try (out) {
+            for (int i = 0; i < data.length; i += STREAM_CHUNK_SIZE) {
+                out.write(data, i, Math.min(STREAM_CHUNK_SIZE, data.length - i));
+            }
+        }
+    }
+
+    private static void readChunks(InputStream in) throws IOException {
+        try (in) {
+            byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    private static void parse() throws Exception {
+        int count = 100_000;
+        byte[] xml = S100PermitFileTest.write(S100PermitFileTest.createPermitFile(count));
+        S100ManufacturerLookup lookup = mId -> new S100Manufacturer(S100PermitFileTest.M_ID,
+                S100PermitFileTest.M_KEY);
+        System.out.printf("%d permits, %d bytes, %d threads%n", count, xml.length,
+                ForkJoinPool.commonPool().getParallelism());
+
+        measure("parse sequential", count, () -> parsePermitFile(lookup, xml, false));
+        measure("parse parallel", count, () -> parsePermitFile(lookup, xml, true));
+        measure("scan permits", count, () -> scanPermits(xml));
+
+        Path permitXml = Files.createTempFile("s100benchmark", ".xml");
+        Path snapshot = Files.createTempFile("s100benchmark", ".snapshot");
+        try {
+            Files.write(permitXml, xml);
+            Files.delete(snapshot);
+            measure("load snapshot", count, () -> loadSnapshot(permitXml, snapshot));
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.delete(permitXml);
+        }
+    }
+
+    private static void parsePermitFile(S100ManufacturerLookup lookup, byte[] xml, boolean parallel)
+            throws IOException {
+        try {
+            new S100PermitFile(lookup, new ByteArrayInputStream(xml), parallel);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void write() throws Exception {
+        int count = 100_000;
+        S100PermitFile permitFile = S100PermitFileTest.createPermitFile(count);
+        Path permitXml = Files.createTempFile("s100benchmark", ".xml");
+        try {
+            measure("write stream", count, () -> writePermitFile(permitFile, permitXml));
+        } finally {
+            Files.delete(permitXml);
+        }
+    }
+
+    private static void writePermitFile(S100PermitFile permitFile, Path permitXml) throws IOException {
+        try {
+            S100PermitFileStreamWriter.write(permitXml, permitFile.getDate(), permitFile.getDataserver(),
+                    permitFile.getUserPermitString(), permitFile.getDataPermits().iterator());
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void issue() throws Exception {
+        int users = 20;
+        int datasets = 10_000;
+        S100Manufacturer manufacturer = new S100Manufacturer(S100PermitFileTest.M_ID, S100PermitFileTest.M_KEY);
+        S100ManufacturerLookup lookup = mId -> manufacturer;
+        List<S100UserPermit> userPermits = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            userPermits.add(new S100UserPermit(manufacturer.encrypt(S100UserPermit.createRandomHwId()),
+                    S100PermitFileTest.M_ID));
+        }
+        S100PermitIssuer.Catalogue catalogue = new S100PermitIssuer.Catalogue();
+        Date expiry = new Date();
+        for (int i = 0; i < datasets; i++) {
+            int product = i % 2 == 0 ? 101 : 102;
+            catalogue.add(String.format("%dKR%08d.000", product, i), 1, expiry, DATA_KEY,
+                    new S100ProductSpecification(product));
+        }
+        S100PermitIssuer issuer = new S100PermitIssuer(lookup, "KHRA", catalogue);
+
+        Path dir = Files.createTempDirectory("s100benchmark");
+        try {
+            measure("issue per permit (sequential)", (long) users * datasets, () -> {
+                for (S100UserPermit userPermit : userPermits) {
+                    S100PermitFile permitFile = new S100PermitFile("KHRA",
+                            S100PermitFile.decryptHwId(lookup, userPermit), userPermit.getUserPermitString());
+                    for (int i = 0; i < datasets; i++) {
+                        int product = i % 2 == 0 ? 101 : 102;
+                        permitFile.add(String.format("%dKR%08d.000", product, i), 1, expiry, DATA_KEY,
+                                new S100ProductSpecification(product));
+                    }
+                    writePermitFile(permitFile, dir.resolve(userPermit.getUserPermitString() + ".XML"));
+                }
+            });
+            measure("issue S100PermitIssuer", (long) users * datasets, () -> {
+                try {
+                    issuer.issueAll(userPermits, userPermit -> dir.resolve(userPermit.getUserPermitString() + ".XML"));
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+            });
+        } finally {
+            for (S100UserPermit userPermit : userPermits) {
+                Files.deleteIfExists(dir.resolve(userPermit.getUserPermitString() + ".XML"));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void sign() throws Exception {
+        int count = 200;
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DSA");
+        keyPairGenerator.initialize(2048);
+        PrivateKey privateKey = keyPairGenerator.generateKeyPair().getPrivate();
+        S100SigningPipeline pipeline = new S100SigningPipeline(privateKey);
+
+        Path dir = Files.createTempDirectory("s100benchmark");
+        List<Path> files = new ArrayList<>();
+        Random random = new Random(1);
+        try {
+            byte[] data = new byte[256 * 1024];
+            for (int i = 0; i < count; i++) {
+                random.nextBytes(data);
+                Path file = dir.resolve("101KR" + i + ".000");
+                Files.write(file, data);
+                files.add(file);
+            }
+            measure("sign loaded, new signature", count, () -> {
+                for (Path file : files) {
+                    S100Signature signature = new S100Signature();
+                    signature.initSign(privateKey);
+                    signature.update(Files.readAllBytes(file));
+                    signature.sign();
+                }
+            });
+            measure("sign S100SigningPipeline", count, () -> pipeline.signAll(files));
+        } finally {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void footprint() {
+        int count = 1_000_000;
+
+        // fresh strings and dates per permit, like the parser produces
+        long before = usedMemory();
+        List<S100DataPermit> permits = new ArrayList<>(count);
+        generatePermits(count, permits::add);
+        long list = usedMemory() - before;
+        permits = null;
+
+        // the store owns its names: nothing else holds the generated strings
+        before = usedMemory();
+        S100CompactPermitStore store = new S100CompactPermitStore(count);
+        generatePermits(count, store::add);
+        long compact = usedMemory() - before;
+
+        System.out.printf("%-40s %12.1f bytes/permit%n", "List<S100DataPermit>", (double) list / count);
+        System.out.printf("%-40s %12.1f bytes/permit%n", "S100CompactPermitStore", (double) compact / count);
+        if (store.size() != count) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private static void generatePermits(int count, Consumer<S100DataPermit> consumer) {
+        Random random = new Random(1);
+        Calendar expiry = Calendar.getInstance();
+        expiry.set(2030, Calendar.JANUARY, 1, 0, 0, 0);
+        expiry.set(Calendar.MILLISECOND, 0);
+        for (int i = 0; i < count; i++) {
+            int product = i % 2 == 0 ? 101 : 102;
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+            consumer.accept(new S100DataPermit(String.format("%dKR%08d.000", product, i), 1 + i % 5,
+                    new Date(expiry.getTimeInMillis() + (i % 1000) * 86_400_000L), Hex.toString(key),
+                    new S100ProductSpecification(product)));
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void scanPermits(byte[] xml) throws IOException {
+        try {
+            S100PermitFileScanner.parsePermits(ByteBuffer.wrap(xml));
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void loadSnapshot(Path permitXml, Path snapshot) throws IOException {
+        try {
+            S100PermitFileSnapshot.load(permitXml, snapshot).getDataPermits().size();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static void measure(String name, long operations, Task task) throws GeneralSecurityException, IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            task.run();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / ROUNDS;
+        System.out.printf("%-40s %12.0f ops/s%n", name, operations / seconds);
+    }
+
+    interface Task {
+
+        void run() throws GeneralSecurityException, IOException;
+
+    }
+
+}
@@ -0,0 +1,433 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import javax.crypto.Cipher;
+
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+import no.ecc.s100.utility.CRC32Helper;
+import no.ecc.s100.utility.Hex;
+import no.ecc.s100.utility.Zip;
+
+public class S100CryptTest extends TestCase {
+
+    private static final String HW_ID = "40384B45B54596201114FE9904220101";
+    private static final String DATA_KEY = "1C81DFAB4053D04803FFDC87EF92FDD1";
+
+    public void testRandomIVRoundTrip() throws Exception {
+        byte[] data = randomData(100_000);
+        S100Crypt crypt = new S100Crypt.RandomIV(DATA_KEY);
+        byte[] encrypted = crypt.encrypt(data);
+        assertEquals(data.length + 16 + (16 - data.length % 16), encrypted.length);
+        assertTrue(Arrays.equals(data, crypt.decrypt(encrypted)));
+    }
+
+    public void testByteBufferRoundTrip() throws Exception {
+        S100Crypt crypt = new S100Crypt.RandomIV(DATA_KEY);
+        for (int length : new int[] { 0, 1, 15, 16, 17, 4096 }) {
+            byte[] data = randomData(length);
+            ByteBuffer encrypted = ByteBuffer.allocateDirect(crypt.getEncryptedSize(length));
+            assertEquals(encrypted.capacity(), crypt.encrypt(ByteBuffer.wrap(data), encrypted));
+            encrypted.flip();
+
+            // buffer and stream api must be interchangeable
+            byte[] encryptedBytes = new byte[encrypted.remaining()];
+            encrypted.duplicate().get(encryptedBytes);
+            assertTrue(Arrays.equals(data,
+                    ByteStreams.toByteArray(crypt.decrypt(new ByteArrayInputStream(encryptedBytes)))));
+
+            ByteBuffer decrypted = ByteBuffer.allocate(crypt.getMaxDecryptedSize(encrypted.remaining()));
+            assertEquals(length, crypt.decrypt(encrypted, decrypted));
+            assertTrue(Arrays.equals(data, Arrays.copyOf(decrypted.array(), length)));
+        }
+    }
+
+    public void testDeterministicEntropySource() throws Exception {
+        S100EntropySource defaultSource = S100EntropySource.getDefault();
+        try {
+            byte[] data = randomData(1000);
+            S100EntropySource.setDefault(S100EntropySource.deterministic(42));
+            byte[] encrypted = new S100Crypt.RandomIV(DATA_KEY).encrypt(data);
+            String key = S100KeyGenerator.generateKeyHex();
+
+            S100EntropySource.setDefault(S100EntropySource.deterministic(42));
+            assertTrue(Arrays.equals(encrypted, new S100Crypt.RandomIV(DATA_KEY).encrypt(data)));
+            assertEquals(key, S100KeyGenerator.generateKeyHex());
+        } finally {
+            S100EntropySource.setDefault(defaultSource);
+        }
+    }
+
+    public void testParallelDecrypt() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        for (int length : new int[] { 1000, S100Crypt.RandomIV.PARALLEL_DECRYPT_THRESHOLD,
+                3 * S100Crypt.RandomIV.PARALLEL_DECRYPT_THRESHOLD + 7 }) {
+            byte[] data = randomData(length);
+            byte[] encrypted = crypt.encrypt(data);
+            assertTrue(Arrays.equals(crypt.decrypt(encrypted), crypt.decryptParallel(encrypted)));
+        }
+    }
+
+    public void testFileRoundTrip() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        Path plain = Files.createTempFile("s100", ".000");
+        Path encrypted = Files.createTempFile("s100", ".enc");
+        Path decrypted = Files.createTempFile("s100", ".dec");
+        try {
+            for (int length : new int[] { 0, 15, 16, 1_000_003 }) {
+                byte[] data = randomData(length);
+                Files.write(plain, data);
+
+                crypt.encryptFile(plain, encrypted);
+                assertEquals(crypt.getEncryptedSize(length), Files.size(encrypted));
+                assertTrue(Arrays.equals(data, crypt.decrypt(Files.readAllBytes(encrypted))));
+
+                Files.write(encrypted, crypt.encrypt(data));
+                crypt.decryptFile(encrypted, decrypted);
+                assertTrue(Arrays.equals(data, Files.readAllBytes(decrypted)));
+            }
+        } finally {
+            Files.deleteIfExists(plain);
+            Files.deleteIfExists(encrypted);
+            Files.deleteIfExists(decrypted);
+        }
+    }
+
+    public void testLargeFileRoundTrip() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        Path plain = Files.createTempFile("s100", ".000");
+        Path encrypted = Files.createTempFile("s100", ".enc");
+        Path decrypted = Files.createTempFile("s100", ".dec");
+        try {
+            // several buffers and a partial last one
+            byte[] data = randomData(2 * S100Crypt.FILE_BUFFER_SIZE + 1_234);
+            Files.write(plain, data);
+
+            crypt.encryptFile(plain, encrypted);
+            assertEquals(crypt.getEncryptedSize(data.length), Files.size(encrypted));
+            assertTrue(Arrays.equals(data, crypt.decrypt(Files.readAllBytes(encrypted))));
+
+            S100PlaintextDigest digest = S100PlaintextDigest.crc32();
+            crypt.decryptFile(encrypted, decrypted, digest);
+            assertTrue(Arrays.equals(data, Files.readAllBytes(decrypted)));
+            assertEquals(CRC32Helper.crc32String(data), digest.getCrc32String());
+
+            // the same file as input and output is rejected, and left intact
+            try {
+                crypt.encryptFile(plain, plain);
+                fail("Encrypted a file onto itself");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertTrue(Arrays.equals(data, Files.readAllBytes(plain)));
+
+            // a failed decryption leaves the old output in place
+            Files.write(encrypted, Arrays.copyOf(Files.readAllBytes(encrypted), 100));
+            try {
+                crypt.decryptFile(encrypted, decrypted);
+                fail("Decrypted a truncated file");
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+            assertTrue(Arrays.equals(data, Files.readAllBytes(decrypted)));
+            try (Stream<Path> files = Files.list(decrypted.getParent())) {
+                assertFalse(files.anyMatch(f -> f.getFileName().toString()
+                        .startsWith(decrypted.getFileName().toString()) && !f.equals(decrypted)));
+            }
+        } finally {
+            Files.deleteIfExists(plain);
+            Files.deleteIfExists(encrypted);
+            Files.deleteIfExists(decrypted);
+        }
+    }
+
+    public void testPlaintextDigest() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        byte[] data = randomData(1_000_003);
+        byte[] encrypted = crypt.encrypt(data);
+        String crc32 = CRC32Helper.crc32String(data);
+        String sha256 = Hex.toString(MessageDigest.getInstance("SHA-256").digest(data));
+
+        S100PlaintextDigest[] reported = new S100PlaintextDigest[1];
+        S100PlaintextDigest digest = S100PlaintextDigest.crc32AndSha256().onComplete(d -> reported[0] = d);
+        try (InputStream in = crypt.decrypt(new ByteArrayInputStream(encrypted), digest)) {
+            assertTrue(Arrays.equals(data, ByteStreams.toByteArray(in)));
+            assertNull(reported[0]);
+        }
+        assertSame(digest, reported[0]);
+        assertEquals(data.length, digest.getLength());
+        assertEquals(crc32, digest.getCrc32String());
+        assertEquals(sha256, digest.getSha256String());
+
+        // closed before the end
+        digest = S100PlaintextDigest.crc32();
+        try (InputStream in = crypt.decrypt(new ByteArrayInputStream(encrypted), digest)) {
+            in.read(new byte[100]);
+        }
+        assertFalse(digest.isComplete());
+        try {
+            digest.getCrc32();
+            fail("Digest of partly read stream");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        Path encryptedFile = Files.createTempFile("s100", ".enc");
+        Path decryptedFile = Files.createTempFile("s100", ".dec");
+        try {
+            Files.write(encryptedFile, encrypted);
+            digest = S100PlaintextDigest.sha256();
+            crypt.decryptFile(encryptedFile, decryptedFile, digest);
+            assertEquals(sha256, digest.getSha256String());
+            assertTrue(Arrays.equals(data, Files.readAllBytes(decryptedFile)));
+        } finally {
+            Files.deleteIfExists(encryptedFile);
+            Files.deleteIfExists(decryptedFile);
+        }
+    }
+
+    public void testDecryptingChannel() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        Path encrypted = Files.createTempFile("s100", ".enc");
+        try {
+            byte[] data = randomData(300_007);
+            Files.write(encrypted, crypt.encrypt(data));
+            try (S100DecryptingChannel channel = crypt.openDecryptingChannel(encrypted)) {
+                assertEquals(data.length, channel.size());
+                Random random = new Random(1);
+                for (int i = 0; i < 100; i++) {
+                    int position = random.nextInt(data.length);
+                    ByteBuffer buffer = ByteBuffer.allocate(random.nextInt(100_000));
+                    channel.position(position);
+                    while (channel.read(buffer) > 0) {
+                    }
+                    int expectedLength = Math.min(buffer.capacity(), data.length - position);
+                    assertEquals(expectedLength, buffer.position());
+                    assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + expectedLength),
+                            Arrays.copyOf(buffer.array(), expectedLength)));
+                }
+                channel.position(data.length);
+                assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+            }
+        } finally {
+            Files.deleteIfExists(encrypted);
+        }
+    }
+
+    public void testZipRoundTrip() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        Path dir = Files.createTempDirectory("s100");
+        Path dataset = dir.resolve("101NO12345678.000");
+        Path encrypted = dir.resolve("encrypted.zip");
+        Path extractDir = dir.resolve("extract");
+        try {
+            byte[] data = randomData(200_000);
+            Files.write(dataset, data);
+            Files.write(encrypted, crypt.encrypt(Zip.compressZip(dataset.toString())));
+
+            crypt.decryptZip(encrypted, extractDir.toString());
+            assertTrue(Arrays.equals(data, Files.readAllBytes(extractDir.resolve("101NO12345678.000"))));
+
+            // zip and encrypt in place, like when publishing a dataset
+            crypt.encryptZip(dataset.toString(), dataset);
+            crypt.decryptZip(dataset, extractDir.toString());
+            assertTrue(Arrays.equals(data, Files.readAllBytes(extractDir.resolve("101NO12345678.000"))));
+
+            // the input is closed when decryption or extraction fails early
+            boolean[] closed = new boolean[1];
+            try {
+                crypt.decryptZip(closeTracking(new byte[5], closed), extractDir.toString());
+                fail("Decrypted premature end of data");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(closed[0]);
+            closed[0] = false;
+            try {
+                crypt.decryptZip(closeTracking(Files.readAllBytes(dataset), closed), dataset.toString());
+                fail("Extracted into a file");
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue(closed[0]);
+        } finally {
+            Files.deleteIfExists(extractDir.resolve("101NO12345678.000"));
+            Files.deleteIfExists(extractDir);
+            Files.deleteIfExists(encrypted);
+            Files.deleteIfExists(dataset);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static InputStream closeTracking(byte[] data, boolean[] closed) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+    }
+
+    public void testDataKeyBatch() throws Exception {
+        String otherHwId = "AB40384B45B54596201114FE99042201";
+        // more than two partitions and a partial one, so the parallel paths split the keys
+        String[] keys = new String[2 * S100DataKeyBatch.PARTITION_SIZE + 123];
+        Random random = new Random(1);
+        byte[] key = new byte[S100DataKeyBatch.KEY_LENGTH];
+        for (int i = 0; i < keys.length; i++) {
+            random.nextBytes(key);
+            keys[i] = Hex.toString(key);
+        }
+        assertEquals(keys.length, new HashSet<>(Arrays.asList(keys)).size());
+
+        S100DataKeyBatch batch = new S100DataKeyBatch(HW_ID);
+        String[] wrapped = batch.wrap(keys);
+        S100Crypt crypt = new S100Crypt.EmptyIVNoPadding(HW_ID);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(Hex.toString(crypt.encrypt(Hex.fromString(keys[i]))), wrapped[i]);
+        }
+        byte[] keyBytes = S100DataKeyBatch.fromHex(keys);
+        byte[] wrappedBytes = S100DataKeyBatch.fromHex(wrapped);
+        assertTrue(Arrays.equals(wrappedBytes, batch.wrapParallel(keyBytes)));
+        assertTrue(Arrays.equals(keys, batch.unwrap(wrapped)));
+        assertTrue(Arrays.equals(keyBytes, batch.unwrapParallel(wrappedBytes)));
+
+        S100DataKeyBatch other = new S100DataKeyBatch(otherHwId);
+        byte[] otherWrapped = other.wrap(keyBytes);
+        assertTrue(Arrays.equals(otherWrapped, batch.rewrap(wrappedBytes, other, true)));
+        assertTrue(Arrays.equals(otherWrapped, batch.rewrap(wrappedBytes, other, false)));
+    }
+
+    public void testCryptoProviders() throws Exception {
+        try {
+            // named provider
+            System.setProperty(S100CryptoProviders.CIPHER_PROVIDER_PROPERTY, "SunJCE");
+            S100CryptoProviders.reset();
+            assertEquals("SunJCE", S100CryptoProviders.getCipherProvider().getName());
+            assertEquals("SunJCE", S100CryptoProviders.newCipher("AES/CBC/NoPadding").getProvider().getName());
+
+            // BouncyCastle is found by name even when not registered
+            System.setProperty(S100CryptoProviders.CIPHER_PROVIDER_PROPERTY, "BC");
+            S100CryptoProviders.reset();
+            assertEquals("BC", S100CryptoProviders.getCipherProvider().getName());
+            S100CipherCache.clear();
+            S100Crypt crypt = new S100Crypt.EmptyIVNoPadding(HW_ID);
+            assertEquals(DATA_KEY, Hex.toString(crypt.decrypt(crypt.encrypt(Hex.fromString(DATA_KEY)))));
+
+            // unknown name and a provider without AES fall back to the JCA default
+            for (String name : new String[] { "NoSuchProvider", "SUN" }) {
+                System.setProperty(S100CryptoProviders.CIPHER_PROVIDER_PROPERTY, name);
+                S100CryptoProviders.reset();
+                assertNull(name, S100CryptoProviders.getCipherProvider());
+            }
+
+            System.setProperty(S100CryptoProviders.CIPHER_PROVIDER_PROPERTY, S100CryptoProviders.AUTO);
+            S100CryptoProviders.reset();
+            assertNotNull(S100CryptoProviders.getCipherProvider());
+
+            S100CryptoProviders.setCipherProvider(null);
+            assertNull(S100CryptoProviders.getCipherProvider());
+            assertEquals(Cipher.getInstance("AES/CBC/NoPadding").getProvider(),
+                    S100CryptoProviders.newCipher("AES/CBC/NoPadding").getProvider());
+        } finally {
+            System.clearProperty(S100CryptoProviders.CIPHER_PROVIDER_PROPERTY);
+            S100CryptoProviders.reset();
+            S100CipherCache.clear();
+        }
+    }
+
+    public void testCipherCache() throws Exception {
+        S100Crypt crypt = new S100Crypt.EmptyIVNoPadding(HW_ID);
+        String encrypted = Hex.toString(crypt.encrypt(Hex.fromString(DATA_KEY)));
+
+        S100CipherCache.clear();
+        S100CipherCache.resetCounters();
+        for (int i = 0; i < 10; i++) {
+            S100Crypt c = new S100Crypt.EmptyIVNoPadding(HW_ID);
+            assertEquals(DATA_KEY, Hex.toString(c.decrypt(Hex.fromString(encrypted))));
+        }
+        assertEquals(1, S100CipherCache.getMissCount());
+        assertEquals(9, S100CipherCache.getHitCount());
+
+        // clearAll also drops the ciphers cached by other threads
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Callable<String> decrypt = () -> Hex
+                    .toString(new S100Crypt.EmptyIVNoPadding(HW_ID).decrypt(Hex.fromString(encrypted)));
+            assertEquals(DATA_KEY, executor.submit(decrypt).get());
+            S100CipherCache.resetCounters();
+            executor.submit(decrypt).get();
+            assertEquals(1, S100CipherCache.getHitCount());
+            S100CipherCache.clearAll();
+            executor.submit(decrypt).get();
+            assertEquals(1, S100CipherCache.getMissCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testCipherStreams() throws Exception {
+        S100Crypt.RandomIV crypt = new S100Crypt.RandomIV(DATA_KEY);
+        byte[] data = randomData(100_003);
+
+        for (int bufferSize : new int[] { 16, 1024, 64 * 1024 }) {
+            // small writes, then a single large one
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (OutputStream out = crypt.encrypt(encrypted, bufferSize)) {
+                out.write(data, 0, 7);
+                out.write(data[7]);
+                out.write(data, 8, data.length - 8);
+            }
+            assertEquals(crypt.getEncryptedSize(data.length), encrypted.size());
+            assertTrue(Arrays.equals(data, crypt.decrypt(encrypted.toByteArray())));
+
+            // single byte and bulk reads
+            try (InputStream in = crypt.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), bufferSize)) {
+                assertEquals(data[0] & 0xFF, in.read());
+                byte[] rest = ByteStreams.toByteArray(in);
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1, data.length), rest));
+                assertEquals(-1, in.read());
+            }
+
+            try (InputStream in = crypt.encrypt(new ByteArrayInputStream(data), bufferSize)) {
+                ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+                assertEquals(crypt.getEncryptedSize(data.length), in.transferTo(transferred));
+                assertTrue(Arrays.equals(data, crypt.decrypt(transferred.toByteArray())));
+            }
+        }
+
+        try {
+            crypt.decrypt(new ByteArrayInputStream(new byte[32]), 100);
+            fail("Buffer size must be block aligned");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+}
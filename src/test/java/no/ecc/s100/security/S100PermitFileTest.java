@@ -0,0 +1,752 @@
+package no.ecc.s100.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.time.Clock;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+import no.ecc.s100.S100ProductSpecification;
+
+public class S100PermitFileTest extends TestCase {
+
+    static final String M_ID = "859868";
+    static final String M_KEY = "4D5A79677065774A7343705272664F72";
+    static final String HW_ID = "40384B45B54596201114FE9904220101";
+    static final String UPN = "AD1DAD797C966EC9F6A55B66ED98281599B3C7B1859868";
+    static final String DATA_KEY = "1C81DFAB4053D04803FFDC87EF92FDD1";
+
+    public void testStreamingParser() throws Exception {
+        S100PermitFile permitFile = createPermitFile(1000);
+        byte[] xml = write(permitFile);
+
+        List<S100DataPermit> parsed = new ArrayList<>();
+        try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(xml))) {
+            assertEquals(UPN, parser.getHeader().getUserPermit().getUserPermitString());
+            parser.forEachRemaining(parsed::add);
+        }
+        assertPermitsEqual(new ArrayList<>(permitFile.getDataPermits()), parsed);
+
+        // stop early
+        List<S100DataPermit> visited = new ArrayList<>();
+        S100PermitFileHeader[] header = new S100PermitFileHeader[1];
+        S100PermitFileParser.parse(new ByteArrayInputStream(xml), new S100PermitFileParser.Visitor() {
+            @Override
+            public void header(S100PermitFileHeader h) {
+                assertTrue(visited.isEmpty());
+                header[0] = h;
+            }
+
+            @Override
+            public boolean permit(S100DataPermit permit) {
+                visited.add(permit);
+                return visited.size() < 3;
+            }
+        });
+        assertNotNull(header[0]);
+        assertPermitsEqual(parsed.subList(0, 3), visited);
+
+        // the permit file is built on the parser
+        S100PermitFile read = new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY),
+                new ByteArrayInputStream(xml));
+        assertEquals(UPN, read.getUserPermitString());
+        assertPermitsEqual(parsed, new ArrayList<>(read.getDataPermits()));
+    }
+
+    public void testParallelParser() throws Exception {
+        byte[] xml = write(createPermitFile(1000));
+        List<S100DataPermit> sequential = new ArrayList<>();
+        try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(xml))) {
+            parser.forEachRemaining(sequential::add);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] { 1, 1000, 10_000, Integer.MAX_VALUE }) {
+                assertPermitsEqual(sequential, S100PermitFileParallelParser.parsePermits(xml, pool, chunkSize));
+            }
+            assertEquals(1000, S100PermitFileParallelParser.split(xml, 1).size());
+
+            // documents that can not be split safely are parsed sequentially
+            String doctype = new String(xml, StandardCharsets.UTF_8).replaceFirst("\\?>", "?><!DOCTYPE Permit>");
+            assertNull(S100PermitFileParallelParser.split(doctype.getBytes(StandardCharsets.UTF_8), 1));
+            assertPermitsEqual(sequential, S100PermitFileParallelParser
+                    .parsePermits(doctype.getBytes(StandardCharsets.UTF_8), pool, 1));
+        } finally {
+            pool.shutdown();
+        }
+
+        S100PermitFile parallel = new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY),
+                new ByteArrayInputStream(xml), true);
+        assertEquals(UPN, parallel.getUserPermitString());
+        assertPermitsEqual(new ArrayList<>(new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY),
+                new ByteArrayInputStream(xml)).getDataPermits()), new ArrayList<>(parallel.getDataPermits()));
+    }
+
+    public void testRegistry() throws Exception {
+        S100PermitFile permitFile = createPermitFile(100);
+        S100PermitRegistry registry = permitFile.getRegistry();
+        assertEquals(100, registry.size());
+
+        S100DataPermit permit = registry.getByFileName("102KR00000007.000");
+        assertEquals(new S100ProductSpecification(102), permit.getProductSpecification());
+        assertEquals(Collections.singleton(permit), registry.getByDataSetId("102KR00000007"));
+        assertEquals(100, registry.getByProducerCode("KR").size());
+        assertEquals(50, registry.getByProductSpecification(new S100ProductSpecification(101)).size());
+
+        // a permit with the same file name replaces the old one
+        S100DataPermit newEdition = S100DataPermit.create(permit.getFileName(), 9, permit.getPermitEndDate(),
+                DATA_KEY, HW_ID, permit.getProductSpecification());
+        assertSame(permit, registry.add(newEdition));
+        assertEquals(100, registry.size());
+        assertSame(newEdition, registry.getByFileName(permit.getFileName()));
+        assertEquals(Collections.singleton(newEdition), registry.getByDataSetId("102KR00000007"));
+
+        List<S100DataPermit> sorted = registry.sorted();
+        for (int i = 1; i < sorted.size(); i++) {
+            S100DataPermit a = sorted.get(i - 1);
+            S100DataPermit b = sorted.get(i);
+            int c = a.getProductSpecification().compareTo(b.getProductSpecification());
+            assertTrue(c < 0 || (c == 0 && a.getFileName().compareTo(b.getFileName()) < 0));
+        }
+        assertEquals(sorted.subList(50, 100), permitFile.get(new S100ProductSpecification(102)));
+
+        assertSame(newEdition, registry.remove(permit.getFileName()));
+        assertNull(registry.getByFileName(permit.getFileName()));
+        assertTrue(registry.getByDataSetId("102KR00000007").isEmpty());
+        assertEquals(99, registry.sorted().size());
+        assertEquals(49, permitFile.get(new S100ProductSpecification(102)).size());
+    }
+
+    public void testRegistryConcurrentEviction() throws Exception {
+        S100PermitFile permitFile = new S100PermitFile("KHRA", HW_ID, UPN);
+        S100PermitRegistry registry = permitFile.getRegistry();
+        Date expired = new Date(0);
+        Date now = new Date();
+        Thread evicter = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                registry.removeExpired(now);
+            }
+        });
+        evicter.start();
+        // expired and valid permits added while another thread evicts
+        for (int i = 0; i < 2000; i++) {
+            permitFile.add(new S100DataPermit(String.format("101KR%08d.000", i), 1, i % 2 == 0 ? expired : null,
+                    DATA_KEY, new S100ProductSpecification(101)));
+            permitFile.getDataPermits().size();
+        }
+        evicter.join();
+        registry.removeExpired(now);
+        assertEquals(1000, registry.size());
+        assertEquals(1000, permitFile.getDataPermits().size());
+        assertNull(registry.getNextExpiry());
+    }
+
+    public void testExpiry() throws Exception {
+        S100PermitRegistry registry = createPermitFile(100).getRegistry();
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(2030, Calendar.JANUARY, 10);
+        Date now = c.getTime();
+        c.add(Calendar.DAY_OF_YEAR, 7);
+        Date nextWeek = c.getTime();
+        c.setTime(now);
+        c.add(Calendar.DAY_OF_YEAR, 1);
+        Date nextDay = c.getTime();
+
+        // permit i expires on January 2 + i
+        List<S100DataPermit> expiring = registry.getExpiringBetween(now, nextWeek);
+        assertEquals(7, expiring.size());
+        assertEquals(now, expiring.get(0).getPermitEndDate());
+        assertEquals(8, registry.getExpiredBefore(now).size());
+
+        CountDownLatch evicted = new CountDownLatch(1);
+        List<S100DataPermit> reported = new ArrayList<>();
+        Clock clock = Clock.fixed(now.toInstant(), ZoneId.systemDefault());
+        try (S100PermitExpiryScheduler scheduler = new S100PermitExpiryScheduler(clock,
+                S100PermitExpiryScheduler.DEFAULT_MAX_DELAY_MILLIS)) {
+            scheduler.addListener((r, dataPermits) -> {
+                assertSame(registry, r);
+                reported.addAll(dataPermits);
+                evicted.countDown();
+            });
+            scheduler.register(registry);
+            assertTrue(evicted.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(8, reported.size());
+        synchronized (registry) {
+            assertEquals(92, registry.size());
+            // the permit expiring today is valid until tomorrow
+            assertEquals(now, registry.getNextExpiry());
+            assertEquals(nextDay, registry.getNextExpiryTime(ZoneId.systemDefault()));
+            assertTrue(registry.removeExpired(new Date(nextDay.getTime() - 1)).isEmpty());
+            assertEquals(92, registry.size());
+        }
+
+        // with a fixed clock and nothing expired, the next run is strictly later
+        try (S100PermitExpiryScheduler scheduler = new S100PermitExpiryScheduler(clock,
+                S100PermitExpiryScheduler.DEFAULT_MAX_DELAY_MILLIS)) {
+            scheduler.register(registry);
+            assertEquals(now.getTime() + S100PermitExpiryScheduler.DEFAULT_MAX_DELAY_MILLIS,
+                    scheduler.nextRunMillis());
+        }
+        Clock lateEvening = Clock.fixed(new Date(nextDay.getTime() - 1).toInstant(), ZoneId.systemDefault());
+        try (S100PermitExpiryScheduler scheduler = new S100PermitExpiryScheduler(lateEvening,
+                S100PermitExpiryScheduler.DEFAULT_MAX_DELAY_MILLIS)) {
+            scheduler.register(registry);
+            assertEquals(nextDay.getTime(), scheduler.nextRunMillis());
+            assertTrue(scheduler.evictExpired().isEmpty());
+        }
+        assertEquals(1, registry.removeExpired(nextDay).size());
+    }
+
+    public void testCompactStore() throws Exception {
+        List<S100DataPermit> permits = new ArrayList<>(createPermitFile(100).getDataPermits());
+        S100CompactPermitStore store = new S100CompactPermitStore(1);
+        for (S100DataPermit permit : permits) {
+            store.add(permit);
+        }
+        store.add(new S100DataPermit("101KR99999999.000", 1, null, DATA_KEY, new S100ProductSpecification(101)));
+        assertEquals(101, store.size());
+
+        List<S100DataPermit> copies = new ArrayList<>();
+        store.forEach(view -> {
+            if (view.getPermitEndDate() != null) {
+                copies.add(view.toDataPermit());
+            }
+        });
+        assertPermitsEqual(permits, copies);
+
+        S100CompactPermitStore.View view = store.get("102KR00000007.000");
+        assertEquals("102KR00000007", view.getDataSetId());
+        assertSame(view.getProductSpecification(), store.get("102KR00000009.000").getProductSpecification());
+        assertSame(permits.get(0).getFileName(), store.get(0).getFileName());
+        assertNull(store.get("101KR99999999.000").getPermitEndDate());
+        assertNull(store.get("101KR00000001.000"));
+
+        // a permit with the same file name replaces the old one
+        int index = store.indexOf(view.getFileName());
+        assertEquals(index, store.add(S100DataPermit.create(view.getFileName(), 9, null, DATA_KEY, HW_ID,
+                view.getProductSpecification())));
+        assertEquals(101, store.size());
+        assertEquals(9, store.get(index).getEdtn());
+
+        store.trimToSize();
+        assertEquals(index, store.indexOf(view.getFileName()));
+        assertEquals("101KR99999999.000", store.get(100).getFileName());
+
+        // product numbers outside the cached range
+        store.add(new S100DataPermit("1000KR1.000", 1, null, DATA_KEY, new S100ProductSpecification("1000")));
+        assertEquals(1000, store.get("1000KR1.000").getProductSpecification().getNumber());
+        try {
+            store.add(new S100DataPermit("101KR1.000", 1, null, DATA_KEY, new S100ProductSpecification(40000)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(102, store.size());
+        assertEquals(-1, store.indexOf("101KR1.000"));
+    }
+
+    public void testSnapshot() throws Exception {
+        S100PermitFile permitFile = createPermitFile(100);
+        List<S100DataPermit> permits = new ArrayList<>(permitFile.getDataPermits());
+        Path dir = Files.createTempDirectory("s100");
+        Path permitXml = dir.resolve(S100PermitFile.PERMIT_DOT_XML);
+        Path snapshotFile = dir.resolve("PERMIT.snapshot");
+        try {
+            Files.write(permitXml, write(permitFile));
+            S100PermitFileSnapshot snapshot = S100PermitFileSnapshot.load(permitXml, snapshotFile);
+            assertTrue(Files.exists(snapshotFile));
+            assertEquals(UPN, snapshot.getUserPermitString());
+            assertEquals(100, snapshot.size());
+            assertPermitsEqual(permits, snapshot.getDataPermits());
+            assertPermitsEqual(new ArrayList<>(permitFile.get(new S100ProductSpecification(102))),
+                    snapshot.get(new S100ProductSpecification(102)));
+            assertTrue(snapshot.get(new S100ProductSpecification(104)).isEmpty());
+            assertPermitsEqual(Collections.singletonList(permitFile.getRegistry().getByFileName("102KR00000007.000")),
+                    Collections.singletonList(snapshot.getByFileName("102KR00000007.000")));
+            assertNull(snapshot.getByFileName("102KR00000008.000"));
+
+            S100PermitRegistry registry = permitFile.getRegistry();
+            Date from = permits.get(10).getPermitEndDate();
+            Date to = permits.get(20).getPermitEndDate();
+            assertPermitsEqual(registry.getExpiringBetween(from, to), snapshot.getExpiringBetween(from, to));
+            assertPermitsEqual(registry.getExpiredBefore(to), snapshot.getExpiredBefore(to));
+            assertEquals(registry.getNextExpiry(), snapshot.getNextExpiry());
+
+            // the decrypted HW_ID is not stored, but can be recovered
+            S100PermitFile restored = snapshot.toPermitFile(mId -> new S100Manufacturer(M_ID, M_KEY));
+            assertPermitsEqual(permits, new ArrayList<>(restored.getDataPermits()));
+            restored.add("101KR99999999.000", 1, null, DATA_KEY, new S100ProductSpecification(101));
+            assertEquals(permits.get(0).getEncryptedDataKey(),
+                    restored.getRegistry().getByFileName("101KR99999999.000").getEncryptedDataKey());
+
+            // unchanged source reuses the snapshot, changed source rebuilds it
+            assertTrue(S100PermitFileSnapshot.open(snapshotFile)
+                    .isSnapshotOf(S100PermitFileSnapshot.checksum(Files.readAllBytes(permitXml))));
+            assertEquals(100, S100PermitFileSnapshot.load(permitXml, snapshotFile).size());
+            Files.write(permitXml, write(createPermitFile(50)));
+            S100PermitFileSnapshot fifty = S100PermitFileSnapshot.load(permitXml, snapshotFile);
+            assertEquals(50, fifty.size());
+            assertEquals(100, snapshot.size());
+
+            // writing replaces the file, so mapped snapshots keep their contents
+            S100PermitFileSnapshot.write(permitFile, fifty.getChecksum(), snapshotFile);
+            assertEquals(100, S100PermitFileSnapshot.open(snapshotFile).size());
+            assertEquals(50, fifty.size());
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(2, files.count());
+            }
+            // a shared snapshot stays readable to other users
+            if (Files.getFileAttributeView(snapshotFile, PosixFileAttributeView.class) != null) {
+                assertTrue(Files.getPosixFilePermissions(snapshotFile).contains(PosixFilePermission.OTHERS_READ));
+            }
+
+            // a key of the wrong length is rejected instead of corrupting the record
+            permitFile.add(new S100DataPermit("101KR99999999.000", 1, null, "0011", new S100ProductSpecification(101)));
+            try {
+                S100PermitFileSnapshot.write(permitFile, fifty.getChecksum(), snapshotFile);
+                fail("Wrote a short key");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(100, S100PermitFileSnapshot.open(snapshotFile).size());
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(permitXml);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    public void testDelta() throws Exception {
+        S100PermitFile current = createPermitFile(100);
+        S100PermitFile next = createPermitFile(100);
+        S100PermitRegistry nextPermits = next.getRegistry();
+        S100DataPermit edition = nextPermits.getByFileName("101KR00000000.000");
+        S100DataPermit key = nextPermits.getByFileName("102KR00000001.000");
+        S100DataPermit expiry = nextPermits.getByFileName("101KR00000002.000");
+        S100DataPermit product = nextPermits.getByFileName("101KR00000004.000");
+        next.add(edition.getFileName(), 7, edition.getPermitEndDate(), DATA_KEY, edition.getProductSpecification());
+        next.add(key.getFileName(), key.getEdtn(), key.getPermitEndDate(), "00112233445566778899AABBCCDDEEFF",
+                key.getProductSpecification());
+        Date later = new Date(expiry.getPermitEndDate().getTime() + TimeUnit.DAYS.toMillis(365));
+        next.add(expiry.getFileName(), expiry.getEdtn(), later, DATA_KEY, expiry.getProductSpecification());
+        next.add(product.getFileName(), product.getEdtn(), product.getPermitEndDate(), DATA_KEY,
+                new S100ProductSpecification(104));
+        nextPermits.remove("102KR00000003.000");
+        next.add("101KR99999999.000", 1, later, DATA_KEY, new S100ProductSpecification(101));
+        next.setHeader(new Date(current.getDate().getTime() + 1000), "KHRB");
+
+        S100PermitFileDelta delta = S100PermitFileDelta.diff(current, next);
+        assertEquals(1, delta.getAdded().size());
+        assertEquals("101KR99999999.000", delta.getAdded().get(0).getFileName());
+        assertEquals("102KR00000003.000", delta.getRemoved().get(0).getFileName());
+        assertEquals(1, delta.getRemoved().size());
+        assertEquals(7, delta.getEditionChanged().get(0).getCurrent().getEdtn());
+        assertEquals(1, delta.getEditionChanged().size());
+        assertEquals(key.getFileName(), delta.getKeyChanged().get(0).getPrevious().getFileName());
+        assertEquals(1, delta.getKeyChanged().size());
+        assertEquals(later, delta.getExpiryChanged().get(0).getCurrent().getPermitEndDate());
+        assertEquals(1, delta.getExpiryChanged().size());
+        assertEquals(new S100ProductSpecification(104),
+                delta.getProductChanged().get(0).getCurrent().getProductSpecification());
+        assertEquals(1, delta.getProductChanged().size());
+        assertEquals(new HashSet<>(Arrays.asList("101KR99999999.000", edition.getFileName(), key.getFileName(),
+                product.getFileName())), delta.getChangedFileNames());
+        assertTrue(delta.isHeaderChanged());
+        assertEquals("KHRB", delta.getDataserver());
+
+        // the same delta from a stream
+        S100PermitFileDelta streamed = S100PermitFileDelta.diff(current, new ByteArrayInputStream(write(next)));
+        assertEquals(delta.toString(), streamed.toString());
+        assertEquals(delta.getChangedFileNames(), streamed.getChangedFileNames());
+
+        streamed.apply(current);
+        assertPermitsEqual(new ArrayList<>(next.getDataPermits()), new ArrayList<>(current.getDataPermits()));
+        assertEquals(streamed.getDataserver(), current.getDataserver());
+        assertPermitsEqual(Collections.singletonList(nextPermits.getByFileName(product.getFileName())),
+                new ArrayList<>(current.get(new S100ProductSpecification(104))));
+        assertFalse(current.get(new S100ProductSpecification(101)).stream()
+                .anyMatch(p -> p.getFileName().equals(product.getFileName())));
+        delta.apply(current);
+        assertEquals("KHRB", current.getDataserver());
+        assertEquals(next.getDate(), current.getDate());
+        assertTrue(S100PermitFileDelta.diff(current, next).isEmpty());
+
+        try {
+            S100PermitFileDelta.diff(current, new S100PermitFile("KHRA", HW_ID, "x"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testDatasetCrypt() throws Exception {
+        S100PermitFile permitFile = createPermitFile(10);
+        S100DataPermit permit = permitFile.getRegistry().getByFileName("101KR00000000.000");
+        S100Crypt.RandomIV crypt = permitFile.getDatasetCrypt(permit);
+        assertEquals(DATA_KEY, crypt.getKey());
+        assertSame(crypt, permitFile.getDatasetCrypt(permit.getFileName()));
+        assertEquals(DATA_KEY, permitFile.getDataKey(permit));
+        assertNull(permitFile.getDatasetCrypt("101KR99999999.000"));
+
+        byte[] data = "dataset".getBytes(StandardCharsets.UTF_8);
+        assertEquals("dataset", new String(new S100Crypt.RandomIV(DATA_KEY).decrypt(crypt.encrypt(data)),
+                StandardCharsets.UTF_8));
+
+        // a permit from another HW_ID is not served from the memo
+        S100PermitFile other = new S100PermitFile("KHRA", "AB40384B45B54596201114FE99042201", UPN);
+        other.add(permit.getFileName(), 1, permit.getPermitEndDate(), DATA_KEY, permit.getProductSpecification());
+        assertEquals(DATA_KEY, other.getDataKey(other.getRegistry().getByFileName(permit.getFileName())));
+        assertFalse(DATA_KEY.equals(other.getDataKey(permit)));
+
+        S100PermitFile parsed = new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY),
+                new ByteArrayInputStream(write(createPermitFile(100))));
+        parsed.getDatasetCrypt(parsed.getRegistry().getByFileName("101KR00000000.000"));
+        parsed.prewarmDataKeys();
+        for (S100DataPermit dataPermit : parsed.getDataPermits()) {
+            assertEquals(DATA_KEY, dataPermit.getDatasetCrypt(HW_ID).getKey());
+        }
+    }
+
+    public void testScanner() throws Exception {
+        byte[] xml = write(createPermitFile(1000));
+        List<S100DataPermit> expected = parseWithStax(xml);
+        S100PermitFileScanner scanner = S100PermitFileScanner.scan(ByteBuffer.wrap(xml));
+        assertNotNull(scanner);
+        assertEquals(UPN, scanner.getHeader().getUserPermit().getUserPermitString());
+        assertPermitsEqual(expected, scanner.getPermits());
+
+        // a direct buffer with the document in the middle
+        ByteBuffer direct = ByteBuffer.allocateDirect(xml.length + 20);
+        direct.position(10);
+        direct.put(xml).flip().position(10);
+        assertPermitsEqual(expected, S100PermitFileScanner.parsePermits(direct));
+        assertEquals(10, direct.position());
+
+        // the older PERMIT.XML layout, with a header date and a UTF-8 file name
+        String old = "<?xml version='1.0' encoding='UTF-8'?>\n<!-- issued -->\n<Permit xmlns='urn:test'>"
+                + "<header><date>20240102 10:30:00</date><dataserver>KHRA</dataserver>"
+                + "<userpermit>" + UPN + "</userpermit></header><products>"
+                + "<product id=\"S-101\"><permit><filename>101KR\u00C6\u00D8.000</filename>"
+                + "<editionNumber>12</editionNumber><expiry>2030-02-28</expiry>"
+                + "<encryptedKey>" + DATA_KEY + "</encryptedKey><extra a=\"1\"/></permit></product>"
+                + "<product id='102'><permit><filename>102KR1.000</filename><editionNumber>1</editionNumber>"
+                + "<encryptedKey/></permit></product></products></Permit>";
+        byte[] oldXml = old.getBytes(StandardCharsets.UTF_8);
+        scanner = S100PermitFileScanner.scan(ByteBuffer.wrap(oldXml));
+        assertNotNull(scanner);
+        S100PermitFileHeader header;
+        try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(oldXml))) {
+            header = parser.getHeader();
+        }
+        assertEquals(header.getDate(), scanner.getHeader().getDate());
+        assertEquals("KHRA", scanner.getHeader().getDataserver());
+        assertPermitsEqual(parseWithStax(oldXml), scanner.getPermits());
+        assertEquals("101KR\u00C6\u00D8.000", scanner.getPermits().get(0).getFileName());
+
+        // documents the scanner does not handle are read by the StAX parser
+        for (String fallback : new String[] { old.replace("101KR", "101&amp;KR"),
+                old.replace("<Permit", "<!DOCTYPE Permit><Permit"),
+                old.replace("<editionNumber>12", "<editionNumber>+12"),
+                old.replace("2030-02-28", "2030-02-30"),
+                old.replace("</filename>", "<!-- x --></filename>"),
+                old.replace("<filename>", "<filename>\r\n") }) {
+            byte[] bytes = fallback.getBytes(StandardCharsets.UTF_8);
+            assertNull(fallback, S100PermitFileScanner.scan(ByteBuffer.wrap(bytes)));
+            assertPermitsEqual(parseWithStax(bytes), S100PermitFileScanner.parsePermits(ByteBuffer.wrap(bytes)));
+        }
+        for (String malformed : new String[] { old.replace("</products>", ""), old.replace("<product ", "<x:product "),
+                old.substring(0, old.length() - 3) }) {
+            byte[] bytes = malformed.getBytes(StandardCharsets.UTF_8);
+            assertNull(malformed, S100PermitFileScanner.scan(ByteBuffer.wrap(bytes)));
+            try {
+                S100PermitFileScanner.parsePermits(ByteBuffer.wrap(bytes));
+                fail(malformed);
+            } catch (XMLStreamException e) {
+                // expected
+            }
+        }
+
+        // permits are streamed, the visitor can stop early and a fallback
+        // after the first permit does not deliver anything twice
+        assertEquals(1, visit(xml, 1).size());
+        assertEquals(1, visit(old.substring(0, old.length() - 3).getBytes(StandardCharsets.UTF_8), 1).size());
+        byte[] late = old.replace("<filename>102KR1", "<filename>102&amp;KR1").getBytes(StandardCharsets.UTF_8);
+        assertNull(S100PermitFileScanner.scan(ByteBuffer.wrap(late)));
+        assertPermitsEqual(parseWithStax(late), visit(late, Integer.MAX_VALUE));
+        assertEquals("102&KR1.000", visit(late, Integer.MAX_VALUE).get(1).getFileName());
+
+        Path permitXml = Files.createTempFile("s100", ".xml");
+        try {
+            Files.write(permitXml, xml);
+            S100PermitFile permitFile = new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY), permitXml);
+            assertEquals(UPN, permitFile.getUserPermitString());
+            assertPermitsEqual(new ArrayList<>(new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY),
+                    new ByteArrayInputStream(xml)).getDataPermits()), new ArrayList<>(permitFile.getDataPermits()));
+        } finally {
+            Files.delete(permitXml);
+        }
+    }
+
+    public void testStreamWriter() throws Exception {
+        S100PermitFile permitFile = createPermitFile(500);
+        Path permitXml = Files.createTempFile("s100", ".xml");
+        boolean posix = Files.getFileAttributeView(permitXml, PosixFileAttributeView.class) != null;
+        try {
+            if (posix) {
+                Files.setPosixFilePermissions(permitXml, PosixFilePermissions.fromString("rw-r-----"));
+            }
+            // permits are generated while writing and not kept
+            S100PermitFileStreamWriter.write(permitXml, permitFile.getDate(), permitFile.getDataserver(), UPN,
+                    generatePermits(500));
+            assertTrue(Arrays.equals(write(permitFile), Files.readAllBytes(permitXml)));
+            // the replaced file keeps its permissions instead of those of a temporary file
+            if (posix) {
+                assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(permitXml)));
+            }
+            assertPermitsEqual(new ArrayList<>(permitFile.getDataPermits()),
+                    new ArrayList<>(new S100PermitFile(mId -> new S100Manufacturer(M_ID, M_KEY), permitXml)
+                            .getDataPermits()));
+        } finally {
+            Files.delete(permitXml);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (S100PermitFileStreamWriter writer = new S100PermitFileStreamWriter(out, new Date(), "KHRA", UPN)) {
+            writer.write(new S100DataPermit("102KR1.000", 1, null, DATA_KEY, new S100ProductSpecification(102)));
+            try {
+                writer.write(new S100DataPermit("101KR1.000", 1, null, DATA_KEY, new S100ProductSpecification(101)));
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // the document is not finished after a failed write
+        try {
+            parseWithStax(out.toByteArray());
+            fail();
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+
+        out = new ByteArrayOutputStream();
+        try (S100PermitFileStreamWriter writer = new S100PermitFileStreamWriter(out, new Date(), "KHRA", UPN)) {
+            writer.write(new S100DataPermit("102KR1.000", 1, null, DATA_KEY, new S100ProductSpecification(102)));
+        }
+        List<S100DataPermit> read = parseWithStax(out.toByteArray());
+        assertEquals(1, read.size());
+        assertNull(read.get(0).getPermitEndDate());
+
+        // a failing file write leaves the existing file and no temporary file
+        Path dir = Files.createTempDirectory("s100");
+        Path existing = dir.resolve(S100PermitFile.PERMIT_DOT_XML);
+        try {
+            Files.write(existing, write(permitFile));
+            Iterator<S100DataPermit> permits = generatePermits(500);
+            Iterator<S100DataPermit> failing = new Iterator<S100DataPermit>() {
+
+                private int count;
+
+                @Override
+                public boolean hasNext() {
+                    return permits.hasNext();
+                }
+
+                @Override
+                public S100DataPermit next() {
+                    if (++count == 300) {
+                        throw new IllegalStateException("source failed");
+                    }
+                    return permits.next();
+                }
+            };
+            try {
+                S100PermitFileStreamWriter.write(existing, new Date(), "KHRA", UPN, failing);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("source failed", e.getMessage());
+            }
+            assertTrue(Arrays.equals(write(permitFile), Files.readAllBytes(existing)));
+
+            S100PermitFileStreamWriter writer = new S100PermitFileStreamWriter(existing, new Date(), "KHRA", UPN);
+            writer.writeAll(generatePermits(10));
+            writer.abort();
+            writer.close();
+            assertTrue(Arrays.equals(write(permitFile), Files.readAllBytes(existing)));
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(1, files.count());
+            }
+        } finally {
+            Files.deleteIfExists(existing);
+            Files.delete(dir);
+        }
+    }
+
+    public void testIssuer() throws Exception {
+        S100PermitFile permitFile = createPermitFile(300);
+        S100PermitIssuer.Catalogue catalogue = new S100PermitIssuer.Catalogue();
+        for (S100DataPermit dataPermit : permitFile.getDataPermits()) {
+            catalogue.add(dataPermit.getFileName(), dataPermit.getEdtn(), dataPermit.getPermitEndDate(), DATA_KEY,
+                    dataPermit.getProductSpecification());
+        }
+        S100ManufacturerLookup lookup = mId -> new S100Manufacturer(M_ID, M_KEY);
+        S100PermitIssuer issuer = new S100PermitIssuer(lookup, "KHRA", catalogue);
+        assertEquals(300, issuer.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        issuer.issue(new S100UserPermit(UPN), out);
+        assertPermitsEqual(new ArrayList<>(permitFile.getDataPermits()), parseWithStax(out.toByteArray()));
+
+        String otherHwId = "AB40384B45B54596201114FE99042201";
+        S100UserPermit other = new S100UserPermit(new S100Manufacturer(M_ID, M_KEY).encrypt(otherHwId), M_ID);
+        List<S100UserPermit> userPermits = Arrays.asList(new S100UserPermit(UPN), other, new S100UserPermit(UPN));
+        Path dir = Files.createTempDirectory("s100");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(2, issuer.issueAll(userPermits,
+                    userPermit -> dir.resolve(userPermit.getUserPermitString() + ".XML"), pool));
+            for (S100UserPermit userPermit : Arrays.asList(new S100UserPermit(UPN), other)) {
+                S100PermitFile issued = new S100PermitFile(lookup,
+                        dir.resolve(userPermit.getUserPermitString() + ".XML"));
+                assertEquals(userPermit.getUserPermitString(), issued.getUserPermitString());
+                assertEquals(300, issued.getDataPermits().size());
+                for (S100DataPermit dataPermit : issued.getDataPermits()) {
+                    assertEquals(DATA_KEY, issued.getDataKey(dataPermit));
+                }
+            }
+        } finally {
+            pool.shutdown();
+            for (Path p : Files.newDirectoryStream(dir)) {
+                Files.delete(p);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static Iterator<S100DataPermit> generatePermits(int count) {
+        // the same permits as createPermitFile, sorted by product and file name
+        Calendar expiry = Calendar.getInstance();
+        expiry.set(2030, Calendar.JANUARY, 1, 0, 0, 0);
+        expiry.set(Calendar.MILLISECOND, 0);
+        long start = expiry.getTimeInMillis();
+        return new Iterator<S100DataPermit>() {
+
+            private int n;
+
+            @Override
+            public boolean hasNext() {
+                return n < count;
+            }
+
+            @Override
+            public S100DataPermit next() {
+                // even indexes are S-101, odd ones S-102
+                int i = n < (count + 1) / 2 ? n * 2 : (n - (count + 1) / 2) * 2 + 1;
+                n++;
+                int product = i % 2 == 0 ? 101 : 102;
+                Calendar c = Calendar.getInstance();
+                c.setTimeInMillis(start);
+                c.add(Calendar.DAY_OF_YEAR, i + 1);
+                try {
+                    return S100DataPermit.create(String.format("%dKR%08d.000", product, i), 1 + i % 5, c.getTime(),
+                            DATA_KEY, HW_ID, new S100ProductSpecification(product));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Scan up to max permits, checking that the header is delivered once
+     * before them.
+     */
+    private static List<S100DataPermit> visit(byte[] xml, int max) throws Exception {
+        List<S100DataPermit> result = new ArrayList<>();
+        int[] headers = new int[1];
+        S100PermitFileScanner.parse(ByteBuffer.wrap(xml), new S100PermitFileParser.Visitor() {
+
+            @Override
+            public void header(S100PermitFileHeader header) {
+                assertTrue(result.isEmpty());
+                headers[0]++;
+            }
+
+            @Override
+            public boolean permit(S100DataPermit permit) {
+                assertEquals(1, headers[0]);
+                result.add(permit);
+                return result.size() < max;
+            }
+        });
+        assertEquals(1, headers[0]);
+        return result;
+    }
+
+    static List<S100DataPermit> parseWithStax(byte[] xml) throws Exception {
+        List<S100DataPermit> result = new ArrayList<>();
+        try (S100PermitFileParser parser = new S100PermitFileParser(new ByteArrayInputStream(xml))) {
+            parser.forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    static S100PermitFile createPermitFile(int count) throws Exception {
+        S100PermitFile permitFile = new S100PermitFile("KHRA", HW_ID, UPN);
+        Calendar expiry = Calendar.getInstance();
+        expiry.set(2030, Calendar.JANUARY, 1, 0, 0, 0);
+        expiry.set(Calendar.MILLISECOND, 0);
+        for (int i = 0; i < count; i++) {
+            int product = i % 2 == 0 ? 101 : 102;
+            expiry.add(Calendar.DAY_OF_YEAR, 1);
+            permitFile.add(String.format("%dKR%08d.000", product, i), 1 + i % 5, expiry.getTime(), DATA_KEY,
+                    new S100ProductSpecification(product));
+        }
+        return permitFile;
+    }
+
+    static byte[] write(S100PermitFile permitFile) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        S100PermitFileWriter.write(permitFile, out);
+        return out.toByteArray();
+    }
+
+    static void assertPermitsEqual(List<S100DataPermit> expected, List<S100DataPermit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            S100DataPermit e = expected.get(i);
+            S100DataPermit a = actual.get(i);
+            assertEquals(e.getFileName(), a.getFileName());
+            assertEquals(e.getEdtn(), a.getEdtn());
+            assertEquals(e.getPermitEndDate(), a.getPermitEndDate());
+            assertEquals(e.getEncryptedDataKey(), a.getEncryptedDataKey());
+            assertEquals(e.getProductSpecification(), a.getProductSpecification());
+        }
+    }
+
+}
@@ -1,7 +1,19 @@
 package no.ecc.s100.security;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import com.google.common.io.ByteStreams;
 
@@ -35,6 +47,83 @@ public class S100SignatureTest extends TestCase {
         assertFalse(signature.verify());
     }
 
+    public void testSigningPipeline() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("DSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        S100SigningPipeline pipeline = new S100SigningPipeline(keyPair.getPrivate());
+
+        Path dir = Files.createTempDirectory("s100");
+        List<Path> files = new ArrayList<>();
+        Random random = new Random(1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // sizes around the read buffer size
+            for (int size : new int[] { 0, 1, 65535, 65536, 65537, 200_000, 17, 1000 }) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                Path file = dir.resolve("101KR" + size + ".000");
+                Files.write(file, data);
+                files.add(file);
+            }
+
+            Map<Path, String> signatures = pipeline.signAll(files, pool);
+            assertEquals(files, new ArrayList<>(signatures.keySet()));
+            for (Path file : files) {
+                assertTrue(verify(keyPair, Files.readAllBytes(file), signatures.get(file)));
+                // the signature instance is reused for the next file
+                assertTrue(verify(keyPair, Files.readAllBytes(file), pipeline.sign(file)));
+            }
+            assertFalse(verify(keyPair, Files.readAllBytes(files.get(1)), signatures.get(files.get(2))));
+
+            // the same file name in a product folder is written with its folder
+            Path productDir = Files.createDirectory(dir.resolve("102"));
+            Path sameName = Files.write(productDir.resolve("101KR0.000"), new byte[] { 1 });
+            Map<Path, String> withFolder = new LinkedHashMap<>(signatures);
+            withFolder.put(sameName, pipeline.sign(sameName));
+            Path signatureFile = dir.resolve("signatures.csv");
+            S100SigningPipeline.writeSignatures(withFolder, dir, signatureFile);
+            List<String> lines = Files.readAllLines(signatureFile, StandardCharsets.UTF_8);
+            assertEquals(files.size() + 1, lines.size());
+            assertEquals("101KR0.000," + signatures.get(files.get(0)), lines.get(0));
+            assertEquals("102/101KR0.000," + withFolder.get(sameName), lines.get(files.size()));
+            try {
+                S100SigningPipeline.writeSignatures(withFolder, productDir, signatureFile);
+                fail("Wrote a file outside the root");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            assertEquals(lines, Files.readAllLines(signatureFile, StandardCharsets.UTF_8));
+            Files.delete(signatureFile);
+            Files.delete(sameName);
+            Files.delete(productDir);
+
+            // a read error on a pool thread is rethrown as is
+            List<Path> missing = new ArrayList<>(files);
+            missing.add(dir.resolve("101KR-missing.000"));
+            try {
+                pipeline.signAll(missing, pool);
+                fail();
+            } catch (NoSuchFileException e) {
+                // expected
+            }
+        } finally {
+            pool.shutdown();
+            for (Path file : files) {
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static boolean verify(KeyPair keyPair, byte[] data, String signatureValue)
+            throws GeneralSecurityException {
+        S100Signature signature = new S100Signature(signatureValue);
+        signature.initVerify(keyPair.getPublic());
+        signature.update(data);
+        return signature.verify();
+    }
+
     private S100Certificate loadCertificate(String name) throws GeneralSecurityException, IOException {
         return new S100Certificate(ByteStreams.toByteArray(getClass().getResourceAsStream(name)));
     }
@@ -1,5 +1,12 @@
 package no.ecc.s100.security;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 public class S100UserPermitTest extends TestCase {
@@ -20,4 +27,62 @@ public class S100UserPermitTest extends TestCase {
         assertEquals("AD1DAD797C966EC9F6A55B66ED98281599B3C7B1859868", userPermit.getUserPermitString());
     }
 
+    public void testManufacturerRegistry() throws Exception {
+        String mId = "859868";
+        String mKey = "4D5A79677065774A7343705272664F72";
+        String hwId = "40384B45B54596201114FE9904220101";
+        S100UserPermit userPermit = new S100UserPermit("AD1DAD797C966EC9F6A55B66ED98281599B3C7B1859868");
+
+        Path file = Files.createTempFile("s100", ".csv");
+        try {
+            Files.write(file, Arrays.asList("# M_ID,M_KEY", mId + "," + mKey, "",
+                    "123456,00112233445566778899AABBCCDDEEFF"), StandardCharsets.UTF_8);
+            S100ManufacturerRegistry registry = new S100ManufacturerRegistry(file);
+            assertEquals(2, registry.size());
+            assertEquals(hwId, S100PermitFile.decryptHwId(registry, userPermit));
+            assertSame(registry.manufacturerForMId(mId).getCrypt(), registry.manufacturerForMId(mId).getCrypt());
+            assertNull(registry.manufacturerForMId("000000"));
+            assertEquals(4, registry.getLookupCount());
+            assertEquals(1, registry.getMissCount());
+            assertFalse(registry.reloadIfModified());
+
+            // a broken file keeps the loaded manufacturers
+            Files.write(file, Arrays.asList(mId + "," + mKey, mId + "," + mKey), StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+            try {
+                registry.reloadIfModified();
+                fail();
+            } catch (IOException e) {
+                // expected, duplicate M_ID
+            }
+            assertEquals(2, registry.size());
+
+            Files.write(file, Arrays.asList("123456,00112233445566778899AABBCCDDEEFF"), StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 120_000));
+            assertTrue(registry.reloadIfModified());
+            assertEquals(1, registry.size());
+            assertNull(registry.manufacturerForMId(mId));
+
+            Files.write(file, Arrays.asList("123456,0011"), StandardCharsets.UTF_8);
+            try {
+                registry.reload();
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(":1:"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        S100ManufacturerRegistry registry = new S100ManufacturerRegistry(
+                Arrays.asList(new S100Manufacturer(mId, mKey)));
+        assertEquals(hwId, S100PermitFile.decryptHwId(registry, userPermit));
+        try {
+            new S100ManufacturerRegistry(Arrays.asList(new S100Manufacturer(mId, "00")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
 }